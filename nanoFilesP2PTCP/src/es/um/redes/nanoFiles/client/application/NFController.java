@@ -3,6 +3,9 @@ package es.um.redes.nanoFiles.client.application;
 import es.um.redes.nanoFiles.client.comm.NFConnector;
 import es.um.redes.nanoFiles.client.shell.NFCommands;
 import es.um.redes.nanoFiles.client.shell.NFShell;
+import es.um.redes.nanoFiles.directory.message.DirSearchQuery;
+import es.um.redes.nanoFiles.server.NFServer;
+import es.um.redes.nanoFiles.server.NFServerComm;
 import es.um.redes.nanoFiles.util.FileInfo;
 
 public class NFController {
@@ -42,10 +45,13 @@ public class NFController {
 	 */
 	private String nickname; // Nick del usuario (register)
 	private int serverPort; // Puerto TCP en el que escucha este peer (bgserve/fgserve)
+	private String serverMode; // Modo de servicio del servidor en segundo plano (bgserve)
 	private String directory; // Nombre/IP del host donde está el directorio (login)
 	private String browseUser; // Nickname del peer con el que conectar (browse)
 	private String downloadTargetFileHash; // Hash del fichero a descargar (download)
 	private String downloadLocalFileName; // Nombre con el que se guardará el fichero descargado
+	private DirSearchQuery searchQuery; // Criterios de búsqueda de ficheros en el directorio (search)
+	private String locateHashPrefix; // Prefijo del hash de los ficheros a localizar (locate)
 
 	// Constructor
 	public NFController() {
@@ -89,17 +95,66 @@ public class NFController {
 			browseUser = args[0];
 			break;
 		case NFCommands.COM_FGSERVE:
+			serverPort = Integer.parseInt(args[0]);
+			break;
 		case NFCommands.COM_BGSERVE:
 			serverPort = Integer.parseInt(args[0]);
+			serverMode = (args.length > 1) ? args[1] : NFServer.DEFAULT_MODE;
 			break;
 		case NFCommands.COM_DOWNLOAD:
+		case NFCommands.COM_FETCH:
 			downloadTargetFileHash = args[0];
 			downloadLocalFileName = args[1];
 			break;
+		case NFCommands.COM_SEARCH:
+			searchQuery = parseSearchQuery(args);
+			break;
+		case NFCommands.COM_LOCATE:
+			locateHashPrefix = args[0];
+			break;
 		default:
 		}
 	}
 
+	/**
+	 * Construye los criterios de búsqueda a partir de los argumentos de search
+	 * (ya validados por el shell). Un texto terminado en '*' se busca como
+	 * prefijo del nombre, uno que empieza por '~' se busca de forma aproximada
+	 * (tolerando erratas), y el resto como parte del nombre.
+	 */
+	private static DirSearchQuery parseSearchQuery(String[] args) {
+		DirSearchQuery query = new DirSearchQuery();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0) {
+				query.nameFuzzy = arg.startsWith("~");
+				query.namePrefix = !query.nameFuzzy && arg.endsWith("*");
+				if (query.nameFuzzy) {
+					query.name = arg.substring(1);
+				} else {
+					query.name = query.namePrefix ? arg.substring(0, arg.length() - 1) : arg;
+				}
+				continue;
+			}
+			String value = arg.substring(eq + 1);
+			switch (arg.substring(0, eq)) {
+			case "min":
+				query.minSize = Long.parseLong(value);
+				break;
+			case "max":
+				query.maxSize = Long.parseLong(value);
+				break;
+			case "hash":
+				query.hashPrefix = value;
+				break;
+			case "limit":
+				query.limit = (int) Math.min(Long.parseLong(value), Integer.MAX_VALUE);
+				break;
+			}
+		}
+		return query;
+	}
+
 	/**
 	 * Método para leer un comando general (fuera del browser)
 	 */
@@ -136,6 +191,14 @@ public class NFController {
 		case NFCommands.COM_MYFILES:
 			showMyLocalFiles(); // Muestra los ficheros en el directorio local compartido
 			break;
+		case NFCommands.COM_RESCAN:
+			/*
+			 * Vuelve a examinar la carpeta compartida y, si este peer está sirviendo
+			 * ficheros, publica los cambios en el directorio (a través del
+			 * controllerDir)
+			 */
+			controllerDir.rescanLocalFiles();
+			break;
 		case NFCommands.COM_USERLIST:
 			/*
 			 * Pedir la lista de usuarios registrados en el directorio (a través del
@@ -159,6 +222,39 @@ public class NFController {
 				controllerDir.getFileListFromDirectory();
 			}
 			break;
+		case NFCommands.COM_SEARCH:
+			/*
+			 * Buscar en el directorio los ficheros que cumplen los criterios (a través
+			 * del controllerDir), sin descargar la lista completa de ficheros
+			 */
+			if (clientStatus == PRE_LOGIN) {
+				System.out.println("* You must login before.");
+			} else {
+				controllerDir.searchFilesInDirectory(searchQuery);
+			}
+			break;
+		case NFCommands.COM_LOCATE:
+			/*
+			 * Preguntar al directorio qué peers sirven los ficheros con ese prefijo
+			 * del hash (a través del controllerDir)
+			 */
+			if (clientStatus == PRE_LOGIN) {
+				System.out.println("* You must login before.");
+			} else {
+				controllerDir.locateFileInDirectory(locateHashPrefix);
+			}
+			break;
+		case NFCommands.COM_FETCH:
+			/*
+			 * Descargar el fichero a la vez de todos los peers que lo sirven, que se
+			 * preguntan al directorio (a través del controllerPeer)
+			 */
+			if (clientStatus == PRE_LOGIN) {
+				System.out.println("* You must login before.");
+			} else {
+				controllerPeer.swarmDownloadFile(downloadTargetFileHash, downloadLocalFileName);
+			}
+			break;
 		case NFCommands.COM_REGISTER:
 			/*
 			 * Registrar un nombre de usuario en el directorio (a través del
@@ -196,9 +292,10 @@ public class NFController {
 			/*
 			 * Lanzar un servidor en segundo plano (a través del controllerPeer)
 			 * serverPort: el puerto en el que escuchar nickname: nick a usar para publicar
-			 * ficheros
+			 * ficheros serverMode: pool de hilos, un hilo virtual por conexión o
+			 * selectores (nio)
 			 */
-			controllerPeer.backgroundServeFiles(serverPort, nickname);
+			controllerPeer.backgroundServeFiles(serverPort, nickname, serverMode);
 			break;
 		case NFCommands.COM_QUIT:
 			/*
@@ -213,6 +310,11 @@ public class NFController {
 	private void showMyLocalFiles() {
 		System.out.println("List of files in local folder:");
 		FileInfo.printToSysout(NanoFiles.db.getFiles());
+		long zeroCopy = NFServerComm.getZeroCopyTransfers();
+		long buffered = NFServerComm.getBufferedTransfers();
+		if (zeroCopy + buffered > 0) {
+			System.out.println("Transfers served: " + zeroCopy + " zero-copy, " + buffered + " buffered copy.");
+		}
 	}
 
 	/**
@@ -2,8 +2,13 @@ package es.um.redes.nanoFiles.client.application;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Set;
 
 import es.um.redes.nanoFiles.directory.connector.DirectoryConnector;
+import es.um.redes.nanoFiles.directory.message.DirLocateResult;
+import es.um.redes.nanoFiles.directory.message.DirSearchQuery;
+import es.um.redes.nanoFiles.directory.message.DirSearchResult;
 import es.um.redes.nanoFiles.util.FileInfo;
 
 public class NFControllerLogicDir {
@@ -29,6 +34,9 @@ public class NFControllerLogicDir {
 		try {
 			directoryConnector = new DirectoryConnector(directoryHostname);
 			result = (directoryConnector.logIntoDirectory() != -1);
+			if(result) {
+				System.out.println("Directory round-trip time: " + directoryConnector.getRttEstimator());
+			}
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -81,6 +89,16 @@ public class NFControllerLogicDir {
 		return peerAddr;
 	}
 
+	/**
+	 * Método para olvidar la IP:puerto guardada de un peer con el que no se ha
+	 * podido conectar, de modo que la siguiente búsqueda pregunte al directorio
+	 * 
+	 * @param nickname el nick del peer
+	 */
+	void forgetUserAddress(String nickname) {
+		directoryConnector.forgetUserAddress(nickname);
+	}
+
 	/**
 	 * Método para publicar la lista de ficheros que este peer está compartiendo.
 	 * 
@@ -88,8 +106,9 @@ public class NFControllerLogicDir {
 	 *                 de otros peers.
 	 * @param nickname El nick de este peer, que será asociado a lista de ficheros y
 	 *                 su IP:port
+	 * @return true si el directorio ha aceptado todos los ficheros
 	 */
-	void publishLocalFilesToDirectory(int port, String nickname) {
+	boolean publishLocalFilesToDirectory(int port, String nickname) {
 		/*
 		 * Enviar la lista de ficheros servidos. Comunicarse con el directorio (a
 		 * través del directoryConnector) para enviar la lista de ficheros servidos por
@@ -103,6 +122,40 @@ public class NFControllerLogicDir {
 		else {
 			System.out.println("Error serving files.");
 		}
+		return status;
+	}
+
+	/**
+	 * Método para dejar de publicar los ficheros de este peer cuando su servidor
+	 * de ficheros se detiene, de modo que el directorio no siga anunciándolo
+	 */
+	void stopServingLocalFiles() {
+		if(directoryConnector == null || directoryConnector.getServingNick() == null) {
+			return;
+		}
+		if(!directoryConnector.stopServing()) {
+			System.out.println("Error unregistering served files.");
+		}
+	}
+
+	/**
+	 * Método para volver a examinar la carpeta compartida y, si este peer está
+	 * sirviendo ficheros, publicar en el directorio sólo los ficheros añadidos y
+	 * quitados desde la última publicación
+	 */
+	void rescanLocalFiles() {
+		NanoFiles.db.rescan();
+		System.out.println(NanoFiles.db.getFiles().length + " files in local folder.");
+		if(directoryConnector == null || directoryConnector.getServingNick() == null) {
+			return;
+		}
+		boolean status = directoryConnector.updateServedFiles();
+		if(status) {
+			System.out.println("Served files updated (" + directoryConnector.getServedFileCount() + " files published).");
+		}
+		else {
+			System.out.println("Error updating served files.");
+		}
 	}
 
 	/**
@@ -114,12 +167,17 @@ public class NFControllerLogicDir {
 		 * (a través del directoryConnector) para obtener la lista de nicks registrados
 		 * e imprimirla por pantalla.
 		 */
+		Set<String> users = directoryConnector.getUserList();
+		if(users == null) {
+			System.out.println("Error getting the user list from the directory.");
+			return;
+		}
 		System.out.println("Registered users:");
-		directoryConnector.getUserList().stream().forEach(
+		users.stream().forEach(
 				n -> {
 					System.out.println("- " + n);
 				});
-		System.out.println(directoryConnector.getUserList().size() + " users registered.");
+		System.out.println(users.size() + " users registered.");
 	}
 
 	/**
@@ -132,26 +190,87 @@ public class NFControllerLogicDir {
 		 * través del directoryConnector) para obtener la lista de ficheros e imprimirla
 		 * por pantalla.
 		 */
+		FileInfo[] files = directoryConnector.getFileList();
+		if(files == null) {
+			System.out.println("Error getting the file list from the directory.");
+			return;
+		}
 		System.out.println("Served files:");
-		StringBuffer strBuf = new StringBuffer();
-		
-		strBuf.append(String.format("%1$-30s", "Name"));
-		strBuf.append(String.format("%1$10s", "Size"));
-		strBuf.append(String.format(" %1$-45s", "Hash"));
-		System.out.println(strBuf);
-		directoryConnector.getFileList().stream().forEach(f -> {
-			int index1 = f.indexOf(';');
-			int index2 = f.lastIndexOf(';');
-			String name = f.substring(0, index1);
-			String size = f.substring(index1 + 1, index2);
-			String hash = f.substring(index2 + 1);
-			StringBuffer strBuf2 = new StringBuffer();
-			strBuf2.append(String.format("%1$-30s", name));
-			strBuf2.append(String.format("%1$10s", size));
-			strBuf2.append(String.format(" %1$-45s", hash));
-			System.out.println(strBuf2);
-		});
-		System.out.println(directoryConnector.getFileList().size() + " files served.");
+		FileInfo.printToSysout(files);
+		System.out.println(files.length + " files served.");
+	}
+	
+	/**
+	 * Método para buscar en el directorio los ficheros que cumplen unos criterios
+	 * y mostrarlos
+	 */
+	void searchFilesInDirectory(DirSearchQuery query) {
+		DirSearchResult result = directoryConnector.searchFiles(query);
+		if(result == null) {
+			System.out.println("Error searching files in the directory.");
+			return;
+		}
+		System.out.println("Files matching " + query + ":");
+		FileInfo.printToSysout(result.files.toArray(new FileInfo[result.files.size()]));
+		System.out.println(result.files.size() + " files found"
+				+ (result.truncated ? " (more files match, refine the search or raise the limit)." : "."));
+	}
+	
+	/**
+	 * Método para obtener los peers que sirven los ficheros cuyo hash empieza
+	 * por un prefijo
+	 * 
+	 * @return La respuesta del directorio, o null si no se ha obtenido
+	 */
+	DirLocateResult locateFile(String hashPrefix) {
+		return directoryConnector.locateFile(hashPrefix, DirSearchQuery.DEFAULT_LIMIT);
+	}
+
+	/**
+	 * Busca en el directorio la raíz del árbol de Merkle publicada para un
+	 * fichero, con la que comprobar los hashes de las piezas que envíe un peer
+	 * 
+	 * @return La raíz, o null si no se ha iniciado sesión en el directorio, no
+	 *         responde, o el prefijo no corresponde a un único fichero
+	 */
+	String lookupMerkleRoot(String hashPrefix) {
+		if(directoryConnector == null) {
+			return null;
+		}
+		DirLocateResult result = locateFile(hashPrefix);
+		if(result == null || result.locations.size() != 1) {
+			return null;
+		}
+		return result.locations.get(0).file.merkleRoot;
+	}
+
+	/**
+	 * @return El nick con el que este peer sirve ficheros, o null si no los
+	 *         sirve
+	 */
+	String getServingNick() {
+		return directoryConnector.getServingNick();
+	}
+
+	/**
+	 * Método para mostrar los peers que sirven los ficheros cuyo hash empieza
+	 * por un prefijo
+	 */
+	void locateFileInDirectory(String hashPrefix) {
+		DirLocateResult result = locateFile(hashPrefix);
+		if(result == null) {
+			System.out.println("Error locating files in the directory.");
+			return;
+		}
+		for(DirLocateResult.Location location : result.locations) {
+			System.out.println(location.file.fileHash + "  " + location.file.fileName + " (" + location.file.fileSize
+					+ " bytes), served by " + location.providers.size() + " users:");
+			for(Map.Entry<String, InetSocketAddress> provider : location.providers.entrySet()) {
+				System.out.println("    " + provider.getKey() + " at " + provider.getValue());
+			}
+		}
+		System.out.println(result.locations.size() + " files found"
+				+ (result.truncated ? " (more files match, use a longer prefix)." : "."));
 	}
 	
 	/**
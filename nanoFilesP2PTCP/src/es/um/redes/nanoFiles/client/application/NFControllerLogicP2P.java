@@ -4,8 +4,12 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import es.um.redes.nanoFiles.client.comm.NFConnector;
+import es.um.redes.nanoFiles.client.comm.SwarmDownloader;
+import es.um.redes.nanoFiles.directory.message.DirLocateResult;
 import es.um.redes.nanoFiles.server.NFServer;
 import es.um.redes.nanoFiles.server.NFServerSimple;
 import es.um.redes.nanoFiles.util.FileInfo;
@@ -59,7 +63,12 @@ public class NFControllerLogicP2P {
 			controllerDir.publishLocalFilesToDirectory(port, nickname);
 
 		// Ejecutar servidor en primer plano
-			fgServer.run();
+			try {
+				fgServer.run();
+			} finally {
+				// Dejar de publicar los ficheros cuando el servidor termina (fgstop)
+				controllerDir.stopServingLocalFiles();
+			}
 			
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -76,8 +85,10 @@ public class NFControllerLogicP2P {
 	 *                 otros peers
 	 * @param nickname El nick de este peer, parar publicar los ficheros al
 	 *                 directorio
+	 * @param mode     El modo de servicio (NFServer.MODE_POOL,
+	 *                 NFServer.MODE_VIRTUAL o NFServer.MODE_NIO)
 	 */
-	protected void backgroundServeFiles(int port, String nickname) {
+	protected void backgroundServeFiles(int port, String nickname, String mode) {
 		/*
 		 * Las excepciones que puedan lanzarse deben ser capturadas y tratadas en
 		 * este método. Si se produce una excepción de entrada/salida (error del que no
@@ -91,14 +102,25 @@ public class NFControllerLogicP2P {
 				return;
 			}
 
+			if(!NFServer.isValidMode(mode)) {
+				System.out.println("Unknown serving mode " + mode + ".");
+				return;
+			}
+
 		// Crear objeto servidor NFServer ligado al puerto especificado
-			bgFileServer = new NFServer(port);
+			bgFileServer = new NFServer(port, mode);
 
 		// Arrancar un hilo servidor en segundo plano
 			bgFileServer.startServer();
 
-		// Publicar ficheros compartidos al directorio
-			controllerDir.publishLocalFilesToDirectory(port, nickname);
+		// Publicar ficheros compartidos al directorio. Si falla, se detiene el
+		// servidor y se deshace lo que se haya llegado a publicar
+			if(!controllerDir.publishLocalFilesToDirectory(port, nickname)) {
+				bgFileServer.stopServer();
+				bgFileServer = null;
+				controllerDir.stopServingLocalFiles();
+				return;
+			}
 
 		// Imprimir mensaje informando de que el servidor está en marcha
 			System.out.println("Server successfully launched.");
@@ -172,6 +194,8 @@ public class NFControllerLogicP2P {
 		} catch (IOException e) {
 			// Auto-generated catch block
 			e.printStackTrace();
+			// La dirección guardada del peer puede estar obsoleta
+			controllerDir.forgetUserAddress(nickname);
 			return false;
 		}
 		return true;
@@ -189,7 +213,8 @@ public class NFControllerLogicP2P {
 		 * Usar el NFConnector creado por browserEnter para descargar el fichero
 		 * mediante el método "download". Se debe comprobar si ya existe un fichero con
 		 * el mismo nombre en esta máquina, en cuyo caso se informa y no se realiza la
-		 * descarga
+		 * descarga. Si el directorio conoce el fichero, los hashes de sus piezas se
+		 * comprueban con la raíz publicada.
 		 */
 		File f;
 		for(FileInfo fi : NanoFiles.db.getFiles()) {
@@ -200,7 +225,7 @@ public class NFControllerLogicP2P {
 		}
 		try {
 			f = new File(localFileName);
-			nfConnector.download(targetFileHash, f);
+			nfConnector.download(targetFileHash, f, controllerDir.lookupMerkleRoot(targetFileHash));
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -208,6 +233,69 @@ public class NFControllerLogicP2P {
 
 	}
 
+	/**
+	 * Método para descargar un fichero a la vez de todos los peers servidores
+	 * que lo publican, según el directorio
+	 * 
+	 * @param targetFileHash El hash del fichero a descargar (o un prefijo que lo
+	 *                       identifique)
+	 * @param localFileName  El nombre con el que se guardará el fichero descargado
+	 */
+	protected void swarmDownloadFile(String targetFileHash, String localFileName) {
+		for(FileInfo fi : NanoFiles.db.getFiles()) {
+			if(fi.fileName.equals(localFileName)) {
+				System.out.println("File " + localFileName + " already exists.");
+				return;
+			}
+		}
+		DirLocateResult located = controllerDir.locateFile(targetFileHash);
+		if(located == null) {
+			System.out.println("Error locating the file in the directory.");
+			return;
+		}
+		if(located.locations.size() != 1) {
+			System.out.println(located.locations.isEmpty() ? "No user is serving file " + targetFileHash + "."
+					: "Hash " + targetFileHash + " is ambiguous, use locate to see the matching files.");
+			return;
+		}
+		DirLocateResult.Location location = located.locations.get(0);
+		// Este peer no se descarga el fichero a sí mismo
+		Map<String, InetSocketAddress> providers = new LinkedHashMap<String, InetSocketAddress>(location.providers);
+		String self = controllerDir.getServingNick();
+		if(self != null) {
+			providers.remove(self);
+		}
+		if(providers.isEmpty()) {
+			System.out.println("No other user is serving file " + location.file.fileHash + ".");
+			return;
+		}
+		SwarmDownloader downloader = new SwarmDownloader(location.file, providers);
+		System.out.println("Downloading " + location.file.fileName + " (" + location.file.fileSize + " bytes, "
+				+ downloader.getPieceCount() + " pieces) from " + providers.size() + " users...");
+		long start = System.nanoTime();
+		try {
+			boolean downloaded = downloader.download(new File(localFileName));
+			double seconds = (System.nanoTime() - start) / 1e9;
+			for(SwarmDownloader.PeerStats peer : downloader.getPeerStats()) {
+				System.out.println("  " + peer);
+			}
+			if(!downloader.hasPieceHashes()) {
+				System.out.println("No user sent the piece hashes, only the whole file hash was checked.");
+			}
+			if(downloaded) {
+				System.out.println(String.format("File downloaded successfully in %.2f s (%.2f MB/s).", seconds,
+						location.file.fileSize / 1e6 / seconds));
+			} else if(downloader.getCompletedPieces() < downloader.getPieceCount()) {
+				System.err.println("Download failed: " + downloader.getCompletedPieces() + " of "
+						+ downloader.getPieceCount() + " pieces received.");
+			} else {
+				System.err.println("File's integrity compromised.");
+			}
+		} catch (IOException e) {
+			System.err.println("Download failed: " + e.getMessage());
+		}
+	}
+
 	protected void browserClose() {
 		/*
 		 * TODO: Cerrar el explorador de ficheros remoto (informar al servidor de que se
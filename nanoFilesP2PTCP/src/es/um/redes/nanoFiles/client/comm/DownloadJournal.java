@@ -0,0 +1,241 @@
+package es.um.redes.nanoFiles.client.comm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Diario de una descarga en curso, guardado junto al fichero destino (con el
+ * sufijo JOURNAL_SUFFIX): el hash y tamaño del fichero, el tamaño de pieza y
+ * un mapa de bits con las piezas que ya están escritas en el fichero temporal
+ * de la descarga (el destino con el sufijo PART_SUFFIX), que sólo se renombra
+ * al destino cuando está completo y su hash es correcto. Si la descarga se
+ * interrumpe (o el cliente termina de forma abrupta), al
+ * reanudarla se cargan el diario y sólo se piden las piezas que faltan, sin
+ * volver a leer las que ya están en disco.
+ *
+ * Una pieza se marca en el diario sólo después de que sus datos se han
+ * forzado a disco, de modo que el diario nunca da por escrita una pieza que
+ * no lo está. Si se pierde la última marca, la pieza simplemente se vuelve a
+ * descargar.
+ *
+ * Admite acceso concurrente: varios hilos pueden marcar piezas a la vez.
+ *
+ * Formato: entero mágico, hash (writeUTF), tamaño del fichero (long), tamaño
+ * de pieza (int) y un bit por pieza (la pieza i en el bit i % 8 del byte i /
+ * 8).
+ */
+public class DownloadJournal implements Closeable {
+
+	public static final String JOURNAL_SUFFIX = ".journal";
+	public static final String PART_SUFFIX = ".part";
+	private static final int MAGIC = 0x4E464A31; // "NFJ1"
+
+	private final File journalFile;
+	private final RandomAccessFile raf;
+	private final String fileHash;
+	private final long fileSize;
+	private final int pieceSize;
+	private final int pieceCount;
+	private final BitSet complete;
+	/**
+	 * Posición del mapa de bits en el fichero del diario
+	 */
+	private final long bitmapOffset;
+
+	private DownloadJournal(File journalFile, RandomAccessFile raf, String fileHash, long fileSize, int pieceSize,
+			BitSet complete, long bitmapOffset) {
+		this.journalFile = journalFile;
+		this.raf = raf;
+		this.fileHash = fileHash;
+		this.fileSize = fileSize;
+		this.pieceSize = pieceSize;
+		this.pieceCount = (int) ((fileSize + pieceSize - 1) / pieceSize);
+		this.complete = complete;
+		this.bitmapOffset = bitmapOffset;
+	}
+
+	/**
+	 * @return El fichero en el que se guarda el diario de la descarga en target
+	 */
+	public static File journalFile(File target) {
+		return new File(target.getPath() + JOURNAL_SUFFIX);
+	}
+
+	/**
+	 * @return El fichero temporal en el que se escriben las piezas de la
+	 *         descarga en target
+	 */
+	public static File partFile(File target) {
+		return new File(target.getPath() + PART_SUFFIX);
+	}
+
+	/**
+	 * Crea el diario de una nueva descarga en target, sin ninguna pieza
+	 * escrita, sustituyendo el que hubiera
+	 */
+	public static DownloadJournal create(File target, String fileHash, long fileSize, int pieceSize)
+			throws IOException {
+		File journalFile = journalFile(target);
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(header);
+		dos.writeInt(MAGIC);
+		dos.writeUTF(fileHash);
+		dos.writeLong(fileSize);
+		dos.writeInt(pieceSize);
+		long bitmapOffset = header.size();
+		int pieceCount = (int) ((fileSize + pieceSize - 1) / pieceSize);
+		dos.write(new byte[(pieceCount + 7) / 8]);
+
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+		try {
+			raf.setLength(0);
+			raf.write(header.toByteArray());
+			raf.getChannel().force(false);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		return new DownloadJournal(journalFile, raf, fileHash, fileSize, pieceSize, new BitSet(pieceCount),
+				bitmapOffset);
+	}
+
+	/**
+	 * Carga el diario de una descarga interrumpida en target
+	 *
+	 * @param hashPrefix El hash (o un prefijo de él) del fichero que se quiere
+	 *                   descargar
+	 * @return El diario, o null si no hay diario, no corresponde a ese hash, no
+	 *         se puede leer, o el fichero temporal no tiene el tamaño que crea
+	 *         la descarga
+	 */
+	public static DownloadJournal open(File target, String hashPrefix) {
+		File journalFile = journalFile(target);
+		File partFile = partFile(target);
+		if (!journalFile.isFile()) {
+			return null;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(journalFile, "rw");
+			DataInputStream dis = new DataInputStream(new FileInputStream(raf.getFD()));
+			if (dis.readInt() != MAGIC) {
+				raf.close();
+				return null;
+			}
+			String fileHash = dis.readUTF();
+			long fileSize = dis.readLong();
+			int pieceSize = dis.readInt();
+			long bitmapOffset = raf.getFilePointer();
+			if (!fileHash.startsWith(hashPrefix.toLowerCase()) || fileSize < 0 || pieceSize <= 0
+					|| !partFile.isFile() || partFile.length() != fileSize) {
+				raf.close();
+				return null;
+			}
+			int pieceCount = (int) ((fileSize + pieceSize - 1) / pieceSize);
+			byte[] bitmap = new byte[(pieceCount + 7) / 8];
+			dis.readFully(bitmap);
+			BitSet complete = BitSet.valueOf(bitmap);
+			complete.clear(pieceCount, Math.max(pieceCount, complete.length()));
+			return new DownloadJournal(journalFile, raf, fileHash, fileSize, pieceSize, complete, bitmapOffset);
+		} catch (IOException e) {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e1) {
+				}
+			}
+			return null;
+		}
+	}
+
+	public String getFileHash() {
+		return fileHash;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public int getPieceSize() {
+		return pieceSize;
+	}
+
+	public int getPieceCount() {
+		return pieceCount;
+	}
+
+	public synchronized int getCompletedPieces() {
+		return complete.cardinality();
+	}
+
+	public synchronized boolean isComplete(int piece) {
+		return complete.get(piece);
+	}
+
+	/**
+	 * @return La primera pieza sin escribir a partir de from (incluida), o
+	 *         getPieceCount() si no queda ninguna
+	 */
+	public synchronized int nextMissing(int from) {
+		return Math.min(complete.nextClearBit(from), pieceCount);
+	}
+
+	/**
+	 * @return La primera pieza ya escrita a partir de from (incluida), o
+	 *         getPieceCount() si no hay ninguna
+	 */
+	public synchronized int nextComplete(int from) {
+		int next = complete.nextSetBit(from);
+		return (next < 0) ? pieceCount : Math.min(next, pieceCount);
+	}
+
+	/**
+	 * @return La posición en el fichero del primer byte de la pieza
+	 */
+	public long pieceStart(int piece) {
+		return (long) piece * pieceSize;
+	}
+
+	/**
+	 * @return La posición en el fichero siguiente al último byte de la pieza
+	 */
+	public long pieceEnd(int piece) {
+		return Math.min(pieceStart(piece + 1), fileSize);
+	}
+
+	/**
+	 * Marca la pieza como escrita. Sus datos ya deben estar forzados a disco.
+	 */
+	public synchronized void markComplete(int piece) throws IOException {
+		complete.set(piece);
+		byte bits = 0;
+		for (int i = piece & ~7; i < Math.min((piece & ~7) + 8, pieceCount); i++) {
+			if (complete.get(i)) {
+				bits |= 1 << (i & 7);
+			}
+		}
+		raf.getChannel().write(ByteBuffer.wrap(new byte[] { bits }), bitmapOffset + piece / 8);
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/**
+	 * Cierra y borra el diario (la descarga ha terminado, o no se puede
+	 * reanudar)
+	 */
+	public void delete() throws IOException {
+		raf.close();
+		journalFile.delete();
+	}
+}
@@ -1,29 +1,69 @@
 package es.um.redes.nanoFiles.client.comm;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import es.um.redes.nanoFiles.client.application.NanoFiles;
 import es.um.redes.nanoFiles.message.PeerMessage;
 import es.um.redes.nanoFiles.message.PeerMessageOps;
 import es.um.redes.nanoFiles.util.FileDigest;
+import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.MerkleTree;
 
 //Esta clase proporciona la funcionalidad necesaria para intercambiar mensajes entre el cliente y el servidor de NanoChat
 public class NFConnector {
+	/**
+	 * Número máximo de veces que se piden las piezas de un fichero que faltan
+	 * (la primera vez, todas), mientras sigan llegando piezas corruptas
+	 */
+	private static final int MAX_DOWNLOAD_ROUNDS = 3;
+
 	private Socket socket;
 	protected DataOutputStream dos;
 	protected DataInputStream dis;
+	/**
+	 * Si la conexión usa la codificación binaria de PeerMessage (negociada con
+	 * el servidor al conectar) en lugar de la codificación en texto
+	 */
+	private boolean binary = false;
+	/**
+	 * Si la última llamada a getPieceHashes devolvió null porque el servidor
+	 * respondió OP_FILE_NOT_FOUND: no tiene el fichero, o lo tiene sin los
+	 * hashes de sus piezas
+	 */
+	private boolean pieceHashesNotFound = false;
 
 	public NFConnector(InetSocketAddress serverAddress) throws UnknownHostException, IOException {
+		this(serverAddress, true);
+	}
+
+	/**
+	 * @param serverAddress La dirección del peer servidor
+	 * @param preferBinary  Si se debe proponer al servidor la codificación
+	 *                      binaria; si es falso, o el servidor no la acepta, se
+	 *                      usa la codificación en texto
+	 */
+	public NFConnector(InetSocketAddress serverAddress, boolean preferBinary) throws UnknownHostException, IOException {
 		/*
 		 * Se crea el socket a partir de la dirección del servidor (IP, puerto). La
 		 * creación exitosa del socket significa que la conexión TCP ha sido
@@ -34,11 +74,40 @@ public class NFConnector {
 		/*
 		 * Se crean los DataInputStream/DataOutputStream a partir de los streams de
 		 * entrada/salida del socket creado. Se usarán para enviar (dos) y recibir (dis)
-		 * datos del servidor mediante los métodos readUTF y writeUTF (mensajes
-		 * formateados como cadenas de caracteres codificadas en UTF8)
+		 * datos del servidor mediante PeerMessage.writeMessage/readMessage, con la
+		 * codificación (texto o binaria) negociada al conectar
 		 */
 		dis = new DataInputStream(socket.getInputStream());
-		dos = new DataOutputStream(socket.getOutputStream());
+		dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		
+		if(preferBinary) {
+			negotiateCodec();
+		}
+	}
+
+	/**
+	 * Propone al servidor la codificación binaria. La propuesta y su respuesta
+	 * viajan en texto; si el servidor la acepta, el resto de mensajes de la
+	 * conexión usan la codificación binaria.
+	 */
+	private void negotiateCodec() throws IOException {
+		new PeerMessage(PeerMessageOps.OP_CODEC, PeerMessage.CODEC_BINARY).writeMessage(dos, false);
+		dos.flush();
+		PeerMessage response = PeerMessage.readMessage(dis, false);
+		binary = response != null && response.getOperation().equals(PeerMessageOps.OP_CODEC_OK)
+				&& response.getName().equals(PeerMessage.CODEC_BINARY);
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * Establece el tiempo máximo que puede bloquearse una lectura del socket
+	 * antes de fallar con SocketTimeoutException (0 para esperar sin límite)
+	 */
+	public void setReadTimeout(int millis) throws SocketException {
+		socket.setSoTimeout(millis);
 	}
 
 	/**
@@ -57,6 +126,25 @@ public class NFConnector {
 	 * Método para descargar un fichero a través del socket mediante el que estamos
 	 * conectados con un peer servidor.
 	 * 
+	 * Primero se piden al servidor los hashes de las piezas del fichero
+	 * (getPieceHashes). Los datos se escriben en un fichero temporal
+	 * (DownloadJournal.partFile) creado con su tamaño final, y cada pieza
+	 * recibida se comprueba con su hash en paralelo con la recepción de las
+	 * siguientes (PieceWriter); sólo las piezas correctas se escriben en su
+	 * posición y se anotan en un diario (DownloadJournal). Las piezas corruptas
+	 * se vuelven a pedir (OP_DOWNLOAD_RANGE), hasta MAX_DOWNLOAD_ROUNDS veces.
+	 * El hash del fichero completo se calcula mientras se reciben los datos, y
+	 * sólo si coincide se renombra el fichero temporal al destino, de forma
+	 * atómica: el fichero destino nunca queda a medias.
+	 * 
+	 * Si hay un diario de una descarga anterior interrumpida, sólo se piden las
+	 * piezas que faltan. Si el fichero temporal existe pero no tiene diario, se
+	 * comprueban en paralelo sus piezas con los hashes del servidor y sólo se
+	 * piden las que no coinciden.
+	 * 
+	 * Si el servidor no tiene los hashes de las piezas, el fichero se descarga
+	 * entero (OP_DOWNLOAD) y sólo se comprueba su hash (downloadWhole).
+	 * 
 	 * @param targetFileHashSubstr El hash del fichero a descargar
 	 * @param file                 El objeto File que referencia el nuevo fichero
 	 *                             creado en el cual se escriben los datos
@@ -67,51 +155,419 @@ public class NFConnector {
 	 * @throws IOException Si se produce algún error al leer/escribir del socket.
 	 */
 	public boolean download(String targetFileHashSubstr, File file) throws IOException {
-		boolean downloaded = false;
-		PeerMessage peermsg;
-		String inmsg, outmsg;
-		String fOld;
-		/*
-		 * Construir objeto PeerMessage que modela un mensaje de solicitud de
-		 * descarga de fichero (indicando el fichero a descargar), convertirlo a su
-		 * codificación en String (mediante toEncodedString) y enviarlo al servidor.
-		 */
-		peermsg = new PeerMessage(PeerMessageOps.OP_DOWNLOAD, targetFileHashSubstr);
-		outmsg = peermsg.toEncodedString();
-		dos.writeUTF(outmsg);
-		
-		/*
-		 * Recibir mensajes del servidor codificados como cadena de caracteres,
-		 * convertirlos a PeerMessage (mediante "fromString"), y actuar en función del
-		 * tipo de mensaje recibido.
-		 */
-		inmsg = dis.readUTF();
-		peermsg = PeerMessage.fromString(inmsg);
-		if(peermsg.getOperation().compareTo(PeerMessageOps.OP_UPLOAD) != 0) return false;
-		fOld = peermsg.getName();
-		
-		/*
-		 * Crear un FileOutputStream a partir de "file" para escribir cada
-		 * fragmento recibido en el fichero. Cerrar el FileOutputStream una vez se han
-		 * escrito todos los fragmentos.
-		 */
-		FileOutputStream fos = new FileOutputStream(file);
-		fos.write(fOld.getBytes());
-		fos.close();
+		return download(targetFileHashSubstr, file, null);
+	}
+
+	/**
+	 * Como download(targetFileHashSubstr, file), pero comprobando además que los
+	 * hashes de las piezas enviados por el servidor corresponden a la raíz del
+	 * árbol de Merkle publicada en el directorio
+	 * 
+	 * @param merkleRoot La raíz publicada (en hexadecimal), o null si no se
+	 *                   conoce
+	 */
+	public boolean download(String targetFileHashSubstr, File file, String merkleRoot) throws IOException {
+		FileInfo remote = getPieceHashes(targetFileHashSubstr);
+		if(remote == null) {
+			return pieceHashesNotFound && downloadWhole(targetFileHashSubstr, file);
+		}
+		if(merkleRoot != null && !merkleRoot.equalsIgnoreCase(remote.merkleRoot)) {
+			System.err.println("Piece hashes sent by server do not match the file published in the directory.");
+			return false;
+		}
 		
-		/*
-		 * Comprobar la integridad del fichero creado, calculando su hash y
-		 * comparándolo con el hash del fichero solicitado.
-		 */
-		String newFileHash = FileDigest.getChecksumHexString(FileDigest.computeFileChecksum(file.getName()));
-		if(newFileHash.compareTo(targetFileHashSubstr) == 0) {
-			System.out.println("File downloaded successfully.");
+		DownloadJournal journal = DownloadJournal.open(file, remote.fileHash);
+		if(journal != null && journal.getPieceSize() == MerkleTree.PIECE_SIZE) {
+			System.out.println("Resuming download: " + journal.getCompletedPieces() + " of "
+					+ journal.getPieceCount() + " pieces already downloaded.");
 		}
 		else {
+			if(journal != null) {
+				journal.close();
+			}
+			journal = DownloadJournal.create(file, remote.fileHash, remote.fileSize, MerkleTree.PIECE_SIZE);
+			File part = DownloadJournal.partFile(file);
+			if(part.isFile() && part.length() > 0) {
+				int valid = verifyLocalPieces(part, remote.merkleTree, journal);
+				if(valid > 0) {
+					System.out.println("Resuming download: " + valid + " of " + journal.getPieceCount()
+							+ " pieces of the local file are valid.");
+				}
+			}
+		}
+		return downloadMissing(journal, file, remote.merkleTree);
+	}
+
+	/**
+	 * Pide al servidor los hashes de todas las piezas de un fichero
+	 * (OP_GET_PIECE_HASHES), en tantas peticiones como haga falta
+	 * 
+	 * @param targetFileHashSubstr El hash del fichero, o un prefijo de él
+	 * @return El fichero (hash completo y tamaño) con su árbol de Merkle, o null
+	 *         si el prefijo es ambiguo o el servidor no tiene el fichero o no
+	 *         tiene los hashes de sus piezas (en estos dos casos, sin informar y
+	 *         anotándolo en pieceHashesNotFound)
+	 * @throws IOException Si se produce algún error al leer/escribir del socket,
+	 *                     o la respuesta no es válida
+	 */
+	public FileInfo getPieceHashes(String targetFileHashSubstr) throws IOException {
+		String fileHash = targetFileHashSubstr;
+		long fileSize = 0;
+		List<String> hashes = new ArrayList<String>();
+		int pieceCount = 1;
+		pieceHashesNotFound = false;
+		while(hashes.size() < pieceCount) {
+			new PeerMessage(PeerMessageOps.OP_GET_PIECE_HASHES, fileHash, hashes.size(), PeerMessage.MAX_PIECE_HASHES)
+					.writeMessage(dos, binary);
+			dos.flush();
+			PeerMessage peermsg = PeerMessage.readMessage(dis, binary);
+			if(peermsg != null && peermsg.getOperation().equals(PeerMessageOps.OP_FILE_NOT_FOUND)) {
+				pieceHashesNotFound = true;
+				return null;
+			}
+			if(!isReply(peermsg, PeerMessageOps.OP_PIECE_HASHES, targetFileHashSubstr)) return null;
+			if(peermsg.getOffset() != hashes.size() || (!hashes.isEmpty() && !peermsg.getName().equals(fileHash))) {
+				throw new IOException("Server sent piece hashes of another file or range");
+			}
+			fileHash = peermsg.getName();
+			fileSize = peermsg.getSize();
+			pieceCount = MerkleTree.getPieceCount(fileSize);
+			if(peermsg.getNameList().isEmpty() && hashes.size() < pieceCount) {
+				throw new IOException("Server sent no piece hashes");
+			}
+			hashes.addAll(peermsg.getNameList());
+		}
+		if(hashes.size() != pieceCount) {
+			throw new IOException("Server sent " + hashes.size() + " piece hashes for " + pieceCount + " pieces");
+		}
+		FileInfo file = new FileInfo(fileHash, "", fileSize, "");
+		try {
+			file.merkleTree = MerkleTree.fromHexStrings(hashes);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+		file.merkleRoot = file.merkleTree.getRootHex();
+		if(pieceCount <= 1 && !file.merkleRoot.equals(fileHash)) {
+			throw new IOException("Piece hash does not match file hash " + fileHash);
+		}
+		return file;
+	}
+
+	/**
+	 * Comprueba en paralelo las piezas completas que ya hay en el fichero
+	 * temporal de una descarga y anota en el diario las que coinciden con su hash
+	 * 
+	 * @return El número de piezas correctas
+	 */
+	private static int verifyLocalPieces(File file, MerkleTree tree, DownloadJournal journal) throws IOException {
+		boolean[] valid = new boolean[journal.getPieceCount()];
+		ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[journal.getPieceSize()]);
+		try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long length = fc.size();
+			IntStream.range(0, valid.length).parallel().filter(i -> journal.pieceEnd(i) <= length).forEach(i -> {
+				byte[] data = buffers.get();
+				int pieceLength = (int) (journal.pieceEnd(i) - journal.pieceStart(i));
+				ByteBuffer buf = ByteBuffer.wrap(data, 0, pieceLength);
+				try {
+					long position = journal.pieceStart(i);
+					while(buf.hasRemaining()) {
+						if(fc.read(buf, position + buf.position()) < 0) break;
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				valid[i] = !buf.hasRemaining() && tree.verifyPiece(i, data, 0, pieceLength);
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		int count = 0;
+		for(int i = 0; i < valid.length; i++) {
+			if(valid[i]) {
+				journal.markComplete(i);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Descarga las piezas que faltan según el diario, pidiendo cada tramo de
+	 * piezas consecutivas que faltan en una sola petición, y vuelve a pedir las
+	 * que lleguen corruptas. Al terminar borra el diario y, si el hash del
+	 * fichero completo es correcto, renombra el fichero temporal a file.
+	 * 
+	 * @return Verdadero si el fichero se completa y su hash es correcto, falso si
+	 *         el servidor no puede enviar las piezas (el diario se conserva para
+	 *         volver a intentarlo) o siguen llegando corruptas
+	 */
+	private boolean downloadMissing(DownloadJournal journal, File file, MerkleTree tree) throws IOException {
+		String fileHash = journal.getFileHash();
+		File part = DownloadJournal.partFile(file);
+		String newFileHash;
+		try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+			/*
+			 * Crear el fichero con su tamaño final (lo que aún no se ha escrito queda
+			 * disperso) y escribir cada pieza recibida en su posición
+			 */
+			raf.setLength(journal.getFileSize());
+			PieceWriter writer = new PieceWriter(raf.getChannel(), journal, tree);
+			for(int round = 0; journal.nextMissing(0) < journal.getPieceCount(); round++) {
+				int missing = journal.getPieceCount() - journal.getCompletedPieces();
+				if(round == MAX_DOWNLOAD_ROUNDS) {
+					System.err.println(missing + " pieces are still corrupted, giving up.");
+					journal.close();
+					return false;
+				}
+				if(round > 0) {
+					System.out.println("Requesting " + missing + " corrupted pieces again.");
+				}
+				int piece = journal.nextMissing(0);
+				while(piece < journal.getPieceCount()) {
+					int end = journal.nextComplete(piece);
+					long offset = journal.pieceStart(piece);
+					long length = journal.pieceEnd(end - 1) - offset;
+					writer.startRun(piece);
+					PeerMessage peermsg = requestRange(fileHash, offset, length);
+					if(!isReply(peermsg, PeerMessageOps.OP_UPLOAD, fileHash)) {
+						if(peermsg != null && peermsg.getOperation().equals(PeerMessageOps.OP_INVALID_RANGE)) {
+							System.err.println("File " + fileHash + " has changed on server.");
+						}
+						journal.close();
+						return false;
+					}
+					if(peermsg.getSize() != length) {
+						throw new IOException("Server sent " + peermsg.getSize() + " bytes instead of the requested range");
+					}
+					if(!receivePieces(writer, journal, offset, length)) {
+						journal.close();
+						return false;
+					}
+					piece = journal.nextMissing(end);
+				}
+			}
+			newFileHash = writer.finish();
+		} catch (IOException e) {
+			journal.close();
+			throw e;
+		}
+		journal.delete();
+		return moveIntoPlace(part, file, fileHash, newFileHash);
+	}
+
+	/**
+	 * Descarga un fichero entero (OP_DOWNLOAD), para cuando el servidor no tiene
+	 * los hashes de sus piezas. Los datos se escriben en el fichero temporal a
+	 * la vez que se calcula su hash, y se renombra al destino si coincide.
+	 * 
+	 * @return Verdadero si la descarga se completa y el hash es correcto
+	 */
+	private boolean downloadWhole(String targetFileHashSubstr, File file) throws IOException {
+		new PeerMessage(PeerMessageOps.OP_DOWNLOAD, targetFileHashSubstr).writeMessage(dos, binary);
+		dos.flush();
+		PeerMessage peermsg = PeerMessage.readMessage(dis, binary);
+		if(!isReply(peermsg, PeerMessageOps.OP_UPLOAD, targetFileHashSubstr)) return false;
+		String fileHash = peermsg.getName();
+		if(!fileHash.startsWith(targetFileHashSubstr.toLowerCase())) {
+			throw new IOException("Server sent file " + fileHash + " instead of " + targetFileHashSubstr);
+		}
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(FileDigest.algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		File part = DownloadJournal.partFile(file);
+		long remaining = peermsg.getSize();
+		byte[] chunk = new byte[PeerMessage.CHUNK_SIZE];
+		try (FileOutputStream fos = new FileOutputStream(part)) {
+			while(remaining > 0) {
+				int chunkLength = dis.readInt();
+				if(chunkLength < 0 || chunkLength > PeerMessage.CHUNK_SIZE || chunkLength > remaining) {
+					break;
+				}
+				dis.readFully(chunk, 0, chunkLength);
+				md.update(chunk, 0, chunkLength);
+				fos.write(chunk, 0, chunkLength);
+				remaining -= chunkLength;
+			}
+			fos.getFD().sync();
+		} catch (IOException e) {
+			part.delete();
+			throw e;
+		}
+		if(remaining > 0) {
+			System.err.println("Transfer aborted by server.");
+			part.delete();
+			return false;
+		}
+		return moveIntoPlace(part, file, fileHash, FileDigest.getChecksumHexString(md.digest()));
+	}
+
+	/**
+	 * Renombra de forma atómica el fichero temporal de una descarga al destino
+	 * si su hash es el del fichero pedido, o lo borra si no lo es
+	 */
+	private static boolean moveIntoPlace(File part, File file, String fileHash, String newFileHash)
+			throws IOException {
+		if(!fileHash.equals(newFileHash)) {
+			part.delete();
 			System.err.println("File's integrity compromised.");
-			downloaded = false;
+			return false;
+		}
+		Files.move(part.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		System.out.println("File downloaded successfully.");
+		return true;
+	}
+
+	/**
+	 * Recibe los fragmentos de una transferencia de length bytes a partir de
+	 * offset (el principio de una pieza), los reúne en piezas y entrega cada
+	 * pieza al PieceWriter, que la comprueba y la escribe mientras se reciben
+	 * las siguientes. Vuelve cuando se han escrito todas.
+	 * 
+	 * @return Falso si el servidor aborta la transferencia
+	 */
+	private boolean receivePieces(PieceWriter writer, DownloadJournal journal, long offset, long length)
+			throws IOException {
+		long end = offset + length;
+		int piece = (int) (offset / journal.getPieceSize());
+		try {
+			byte[] data = writer.takeBuffer();
+			int pieceLength = (int) (journal.pieceEnd(piece) - offset);
+			int fill = 0;
+			long position = offset;
+			while(position < end) {
+				int chunkLength = dis.readInt();
+				if(chunkLength < 0 || chunkLength > PeerMessage.CHUNK_SIZE || chunkLength > end - position) {
+					System.err.println("Transfer aborted by server.");
+					writer.await();
+					return false;
+				}
+				position += chunkLength;
+				while(chunkLength > 0) {
+					int n = Math.min(chunkLength, pieceLength - fill);
+					dis.readFully(data, fill, n);
+					fill += n;
+					chunkLength -= n;
+					if(fill == pieceLength) {
+						writer.submit(piece, data, pieceLength);
+						if(++piece < journal.getPieceCount() && journal.pieceStart(piece) < end) {
+							data = writer.takeBuffer();
+							pieceLength = (int) (journal.pieceEnd(piece) - journal.pieceStart(piece));
+							fill = 0;
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			writer.drain();
+			throw e;
 		}
+		writer.await();
+		return true;
+	}
+
+	/**
+	 * Envía una petición OP_DOWNLOAD_RANGE y devuelve la respuesta
+	 */
+	private PeerMessage requestRange(String hash, long offset, long length) throws IOException {
+		new PeerMessage(PeerMessageOps.OP_DOWNLOAD_RANGE, hash, offset, length).writeMessage(dos, binary);
+		dos.flush();
+		return PeerMessage.readMessage(dis, binary);
+	}
+
+	/**
+	 * Comprueba si la respuesta es del tipo esperado, informando del motivo si
+	 * no lo es (el servidor no tiene el fichero o el hash es ambiguo)
+	 */
+	private boolean isReply(PeerMessage peermsg, String operation, String targetFileHashSubstr) {
+		if(peermsg == null) return false;
+		if(peermsg.getOperation().equals(PeerMessageOps.OP_FILE_NOT_FOUND)) {
+			if(targetFileHashSubstr.length() < PeerMessage.MIN_HASH_PREFIX) {
+				System.err.println("Hash " + targetFileHashSubstr + " is too short, give at least "
+						+ PeerMessage.MIN_HASH_PREFIX + " characters.");
+			} else {
+				System.err.println("File " + targetFileHashSubstr + " not found on server.");
+			}
+			return false;
+		}
+		if(peermsg.getOperation().equals(PeerMessageOps.OP_AMBIGUOUS_HASH)) {
+			System.err.println("Hash " + targetFileHashSubstr + " is ambiguous, it matches "
+					+ peermsg.getSize() + " files on server:");
+			peermsg.getNameList().stream().forEach(h -> System.err.println("- " + h));
+			if(peermsg.getSize() > peermsg.getNameList().size()) {
+				System.err.println("- ... and " + (peermsg.getSize() - peermsg.getNameList().size()) + " more");
+			}
+			return false;
+		}
+		return peermsg.getOperation().equals(operation);
+	}
+
+	/**
+	 * Método para descargar una parte de un fichero (OP_DOWNLOAD_RANGE). La
+	 * conexión puede usarse después para pedir otras partes.
+	 * 
+	 * @param fileHash El hash completo del fichero
+	 * @param offset   La posición del primer byte a descargar
+	 * @param length   El número de bytes a descargar
+	 * @param dst      El array en el que se escriben los datos, desde la
+	 *                 posición 0
+	 * @return Verdadero si se ha recibido el rango completo, falso si el
+	 *         servidor no tiene el fichero o no puede enviar el rango
+	 * @throws IOException Si se produce algún error al leer/escribir del socket,
+	 *                     o el servidor envía más datos de los pedidos
+	 */
+	public boolean downloadRange(String fileHash, long offset, int length, byte[] dst) throws IOException {
+		PeerMessage peermsg = requestRange(fileHash, offset, length);
+		if(peermsg == null || !peermsg.getOperation().equals(PeerMessageOps.OP_UPLOAD)) {
+			return false;
+		}
+		if(!peermsg.getName().equals(fileHash) || peermsg.getSize() != length) {
+			throw new IOException("Server sent " + peermsg.getSize() + " bytes of " + peermsg.getName()
+					+ " instead of the requested range");
+		}
+		return receiveRange(dst, length);
+	}
+
+	/**
+	 * Recibe los fragmentos de una transferencia de length bytes en dst
+	 * 
+	 * @return Falso si el servidor aborta la transferencia (el fichero se ha
+	 *         acortado)
+	 * @throws IOException Si el servidor envía más datos de los anunciados
+	 */
+	private boolean receiveRange(byte[] dst, int length) throws IOException {
+		int received = 0;
+		while(received < length) {
+			int chunk = dis.readInt();
+			if(chunk < 0) {
+				return false;
+			}
+			if(chunk > PeerMessage.CHUNK_SIZE || chunk > length - received) {
+				throw new IOException("Invalid chunk length " + chunk);
+			}
+			dis.readFully(dst, received, chunk);
+			received += chunk;
+		}
+		return true;
+	}
 
-		return downloaded;
+	/**
+	 * Informa al servidor de que se cierra la conexión (OP_CLOSE) y cierra el
+	 * socket
+	 */
+	public void close() {
+		try {
+			new PeerMessage(PeerMessageOps.OP_CLOSE).writeMessage(dos, binary);
+			dos.flush();
+		} catch (IOException e) {
+			// La conexión ya no está disponible: basta con cerrar el socket
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 }
@@ -0,0 +1,275 @@
+package es.um.redes.nanoFiles.client.comm;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import es.um.redes.nanoFiles.util.FileDigest;
+import es.um.redes.nanoFiles.util.MerkleTree;
+
+/**
+ * Comprueba y escribe las piezas que recibe NFConnector mientras sigue
+ * recibiendo las siguientes. Cada pieza completa se entrega (submit) a un
+ * hilo de un grupo compartido, con tantos hilos como núcleos, que calcula su
+ * hash y lo compara con el del árbol de Merkle del fichero. Si coincide,
+ * escribe la pieza en su posición del fichero destino, fuerza los datos a
+ * disco y la anota en el diario; si no, la cuenta como corrupta y la pieza
+ * sigue pendiente en el diario, para volver a pedirla.
+ *
+ * Las piezas se reciben en búferes de un grupo de THREADS + 1 búferes: si
+ * todos están ocupados, el receptor espera (takeBuffer) a que se libere uno,
+ * con lo que la memoria está acotada aunque el disco sea más lento que la red.
+ *
+ * El hash del fichero completo se calcula a la vez, con los mismos búferes:
+ * cada pieza correcta se añade al hash en orden (las que terminan antes que
+ * la anterior esperan, sin devolver su búfer, a que ésta se añada), de modo
+ * que los datos recibidos se leen una sola vez. Si una pieza llega corrupta,
+ * el hash se detiene en ella y las siguientes sólo se escriben; antes de la
+ * siguiente transferencia (startRun) o al terminar (finish) se añaden,
+ * leyéndolas del fichero, las piezas ya escritas que el hash aún no incluye.
+ * Esto sólo ocurre al reanudar una descarga o tras una pieza corrupta.
+ */
+class PieceWriter {
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+	private static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, r -> {
+		Thread thread = new Thread(r, "PieceWriter");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final FileChannel fc;
+	private final DownloadJournal journal;
+	private final MerkleTree tree;
+	private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(THREADS + 1);
+	private int allocated = 0;
+	private final MessageDigest fileDigest;
+
+	/*
+	 * Protegidos por el cerrojo de este objeto: piezas entregadas que aún no se
+	 * han comprobado y escrito, piezas corruptas y el primer error de escritura
+	 */
+	private int pending = 0;
+	private int corrupted = 0;
+	private IOException error = null;
+	/*
+	 * También protegidos por el cerrojo: la siguiente pieza que hay que añadir
+	 * al hash del fichero, la pieza en la que se detiene el hash de la
+	 * transferencia actual (la primera corrupta, o Integer.MAX_VALUE) y las
+	 * piezas correctas que esperan a que se añada la anterior
+	 */
+	private int digestedPieces = 0;
+	private int streamEnd = 0;
+	private final Map<Integer, byte[]> ready = new HashMap<Integer, byte[]>();
+	private final Map<Integer, Integer> readyLength = new HashMap<Integer, Integer>();
+
+	PieceWriter(FileChannel fc, DownloadJournal journal, MerkleTree tree) {
+		this.fc = fc;
+		this.journal = journal;
+		this.tree = tree;
+		try {
+			this.fileDigest = MessageDigest.getInstance(FileDigest.algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return Un búfer libre del tamaño de una pieza, esperando a que se libere
+	 *         uno si están todos ocupados
+	 */
+	byte[] takeBuffer() throws IOException {
+		byte[] buffer = free.poll();
+		if (buffer != null) {
+			return buffer;
+		}
+		synchronized (this) {
+			if (allocated < THREADS + 1) {
+				allocated++;
+				return new byte[journal.getPieceSize()];
+			}
+		}
+		try {
+			return free.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a piece buffer");
+		}
+	}
+
+	/**
+	 * Prepara una transferencia que empieza en la pieza firstPiece: añade al
+	 * hash del fichero las piezas ya escritas anteriores a ella, y si con eso
+	 * el hash llega hasta firstPiece, las piezas de la transferencia se añaden
+	 * según llegan. Sólo se puede llamar sin piezas pendientes (tras await).
+	 */
+	synchronized void startRun(int firstPiece) throws IOException {
+		catchUp(firstPiece);
+		streamEnd = (digestedPieces == firstPiece) ? Integer.MAX_VALUE : digestedPieces;
+	}
+
+	/**
+	 * Termina el hash del fichero, añadiendo las piezas escritas que aún no
+	 * incluye. Sólo se puede llamar sin piezas pendientes (tras await).
+	 * 
+	 * @return El hash del fichero en hexadecimal, o null si falta alguna pieza
+	 */
+	synchronized String finish() throws IOException {
+		catchUp(journal.getPieceCount());
+		if (digestedPieces < journal.getPieceCount()) {
+			return null;
+		}
+		return FileDigest.getChecksumHexString(fileDigest.digest());
+	}
+
+	/**
+	 * Añade al hash del fichero, leyéndolas del fichero, las piezas escritas
+	 * consecutivas desde la siguiente que falta en el hash y anteriores a limit
+	 */
+	private void catchUp(int limit) throws IOException {
+		if (digestedPieces >= limit || !journal.isComplete(digestedPieces)) {
+			return;
+		}
+		byte[] data = takeBuffer();
+		try {
+			while (digestedPieces < limit && journal.isComplete(digestedPieces)) {
+				int length = (int) (journal.pieceEnd(digestedPieces) - journal.pieceStart(digestedPieces));
+				ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+				long position = journal.pieceStart(digestedPieces);
+				while (buf.hasRemaining()) {
+					if (fc.read(buf, position + buf.position()) < 0) {
+						throw new IOException("Downloaded file is shorter than expected");
+					}
+				}
+				fileDigest.update(data, 0, length);
+				digestedPieces++;
+			}
+		} finally {
+			free.add(data);
+		}
+	}
+
+	/**
+	 * Entrega una pieza recibida para comprobarla y escribirla. El búfer vuelve
+	 * al grupo cuando termina (y la pieza se ha añadido al hash del fichero).
+	 *
+	 * @throws IOException Si ha fallado la escritura de una pieza anterior
+	 */
+	synchronized void submit(int piece, byte[] data, int length) throws IOException {
+		if (error != null) {
+			throw error;
+		}
+		pending++;
+		POOL.execute(() -> write(piece, data, length));
+	}
+
+	private void write(int piece, byte[] data, int length) {
+		boolean valid = tree.verifyPiece(piece, data, 0, length);
+		IOException failure = null;
+		if (valid) {
+			try {
+				ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+				long position = journal.pieceStart(piece);
+				while (buf.hasRemaining()) {
+					position += fc.write(buf, position);
+				}
+				fc.force(false);
+				journal.markComplete(piece);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		synchronized (this) {
+			if (!valid) {
+				corrupted++;
+			}
+			if (valid && failure == null && piece < streamEnd) {
+				ready.put(piece, data);
+				readyLength.put(piece, length);
+			} else {
+				free.add(data);
+				if (piece < streamEnd) {
+					// El hash no puede pasar de esta pieza
+					streamEnd = piece;
+				}
+			}
+			digestReady();
+			if (failure != null && error == null) {
+				error = failure;
+			}
+			pending--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Añade al hash del fichero las piezas que esperan en orden desde la
+	 * siguiente que le falta, y libera los búferes de las que ya no se van a
+	 * añadir porque el hash se detiene antes
+	 */
+	private void digestReady() {
+		byte[] data;
+		while (digestedPieces < streamEnd && (data = ready.remove(digestedPieces)) != null) {
+			fileDigest.update(data, 0, readyLength.remove(digestedPieces));
+			free.add(data);
+			digestedPieces++;
+		}
+		if (ready.isEmpty()) {
+			return;
+		}
+		ready.keySet().removeIf(piece -> {
+			if (piece < streamEnd) {
+				return false;
+			}
+			free.add(ready.get(piece));
+			readyLength.remove(piece);
+			return true;
+		});
+	}
+
+	/**
+	 * Espera a que se hayan comprobado y escrito todas las piezas entregadas
+	 *
+	 * @throws IOException Si ha fallado la escritura de alguna
+	 */
+	synchronized void await() throws IOException {
+		while (pending > 0) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing pieces");
+			}
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * Como await, pero sin lanzar los errores de escritura, para cuando ya se
+	 * está tratando otro error
+	 */
+	void drain() {
+		try {
+			await();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * @return El número de piezas recibidas cuyo hash no coincidía
+	 */
+	synchronized int getCorrupted() {
+		return corrupted;
+	}
+}
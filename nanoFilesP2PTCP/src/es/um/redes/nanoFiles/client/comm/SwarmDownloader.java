@@ -0,0 +1,529 @@
+package es.um.redes.nanoFiles.client.comm;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.um.redes.nanoFiles.util.FileDigest;
+import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.MerkleTree;
+
+/**
+ * Descarga de un fichero desde varios peers servidores a la vez. El fichero se
+ * divide en piezas de pieceSize bytes y, por cada peer, un hilo abre su propia
+ * conexión (NFConnector) y pide piezas (OP_DOWNLOAD_RANGE) de una cola común:
+ * cada peer pide la siguiente en cuanto recibe la anterior, de modo que los
+ * peers más rápidos descargan más piezas y el caudal total se acerca a la suma
+ * de los de todos ellos.
+ *
+ * Un peer que falla (no acepta la conexión, no tiene el fichero, corta la
+ * conexión o pasa PEER_READ_TIMEOUT sin enviar datos) se descarta, y la pieza
+ * que estaba descargando vuelve a la cola. Cuando la cola se vacía, los peers
+ * que quedan libres piden también las piezas que otros aún están descargando
+ * (hasta MAX_PIECE_REQUESTS peticiones por pieza), y se usa la primera copia
+ * que llega: así un peer lento no retrasa el final de la descarga.
+ *
+ * Antes de empezar se piden los hashes de las piezas (ver MerkleTree) al
+ * primer peer que los envíe y cuya raíz coincida con la publicada en el
+ * directorio para el fichero. Cada pieza se comprueba en el hilo del peer que
+ * la envía, de modo que las piezas de distintos peers se comprueban en
+ * paralelo; un peer que envía una pieza corrupta se descarta y la pieza vuelve
+ * a la cola. Las piezas correctas se escriben en su posición de un fichero
+ * temporal (DownloadJournal.partFile) en cuanto llegan. Si ningún peer tiene
+ * los hashes de las piezas, se descargan igualmente de todos, y sólo se
+ * comprueba el hash del fichero completo (como en la descarga de un único
+ * peer sin hashes, ver NFConnector).
+ *
+ * El hash del fichero completo se calcula mientras llegan las piezas, en
+ * orden: una pieza que llega antes que las anteriores espera en memoria (como
+ * mucho MAX_READY_BYTES en total) a que éstas se añadan al hash, y el peer
+ * sigue con un búfer nuevo. Si no cabe, se añade leyéndola del fichero cuando
+ * le llega el turno. Sólo si el hash coincide se renombra el fichero temporal
+ * al destino, de forma atómica.
+ */
+public class SwarmDownloader {
+
+	/**
+	 * Tamaño de pieza por defecto: el de las piezas del árbol de Merkle, mucho
+	 * mayor que un fragmento (PeerMessage.CHUNK_SIZE), para que el coste de
+	 * cada petición sea pequeño frente al de sus datos
+	 */
+	public static final int DEFAULT_PIECE_SIZE = MerkleTree.PIECE_SIZE;
+	/**
+	 * Número máximo de peers de los que se descarga a la vez
+	 */
+	public static final int MAX_PEERS = 16;
+	/**
+	 * Tiempo máximo en milisegundos que se espera a que un peer envíe datos
+	 * antes de descartarlo
+	 */
+	private static final int PEER_READ_TIMEOUT = 10000;
+	/**
+	 * Número máximo de peers que descargan a la vez una misma pieza en la fase
+	 * final
+	 */
+	private static final int MAX_PIECE_REQUESTS = 2;
+	/**
+	 * Memoria máxima ocupada por las piezas que esperan a que se añadan al hash
+	 * las anteriores
+	 */
+	private static final int MAX_READY_BYTES = 64 * 1024 * 1024;
+
+	/**
+	 * Lo descargado de cada peer, y el motivo por el que se descartó (null si
+	 * siguió hasta el final)
+	 */
+	public static class PeerStats {
+		public final String nick;
+		public final InetSocketAddress address;
+		/**
+		 * Piezas recibidas de este peer que se han usado, y piezas recibidas
+		 * cuando otro peer ya las había enviado (en la fase final)
+		 */
+		public int pieces = 0;
+		public int duplicates = 0;
+		public long bytes = 0;
+		/**
+		 * Tiempo total en nanosegundos esperando las piezas de este peer
+		 */
+		public long nanos = 0;
+		public String error = null;
+
+		PeerStats(String nick, InetSocketAddress address) {
+			this.nick = nick;
+			this.address = address;
+		}
+
+		/**
+		 * @return El caudal medio de este peer en MB/s mientras enviaba piezas
+		 */
+		public double getThroughput() {
+			return (nanos == 0) ? 0 : bytes * 1e3 / nanos;
+		}
+
+		public String toString() {
+			return String.format("%-15s %-22s %6d pieces %6d dup %8.2f MB/s%s", nick, address, pieces, duplicates,
+					getThroughput(), (error == null) ? "" : "  dropped: " + error);
+		}
+	}
+
+	private final FileInfo file;
+	private final int pieceSize;
+	private final int pieceCount;
+	private final List<PeerStats> peers = new ArrayList<PeerStats>();
+	/**
+	 * Hashes de las piezas del fichero, obtenidos al empezar la descarga (null
+	 * si ningún peer los tiene)
+	 */
+	private MerkleTree tree;
+
+	/*
+	 * Estado de las piezas, protegido por el cerrojo de este objeto: las que
+	 * nadie está descargando, las ya escritas y cuántos peers descargan cada una
+	 */
+	private final Deque<Integer> pending = new ArrayDeque<Integer>();
+	private final BitSet done;
+	private int doneCount = 0;
+	private final int[] requests;
+
+	private FileChannel out;
+	/**
+	 * Primer error al escribir en el fichero destino, que detiene la descarga
+	 */
+	private volatile IOException writeError = null;
+
+	/*
+	 * Hash del fichero, protegido por digestLock (nunca se toma con el cerrojo
+	 * de este objeto): la siguiente pieza que hay que añadir, las piezas que
+	 * esperan en memoria su turno y los búferes que han dejado libres
+	 */
+	private final Object digestLock = new Object();
+	private final MessageDigest fileDigest;
+	private int digestedPieces = 0;
+	private final Map<Integer, byte[]> ready = new HashMap<Integer, byte[]>();
+	private final Deque<byte[]> spareBuffers = new ArrayDeque<byte[]>();
+	private final int maxReady;
+
+	/**
+	 * @param file      El fichero a descargar (hash y tamaño)
+	 * @param providers Los peers que lo sirven (como máximo se usan MAX_PEERS)
+	 * @param pieceSize El tamaño de cada pieza en bytes, múltiplo de
+	 *                  MerkleTree.PIECE_SIZE
+	 */
+	public SwarmDownloader(FileInfo file, Map<String, InetSocketAddress> providers, int pieceSize) {
+		if (pieceSize <= 0 || pieceSize % MerkleTree.PIECE_SIZE != 0) {
+			throw new IllegalArgumentException("Piece size must be a multiple of " + MerkleTree.PIECE_SIZE);
+		}
+		this.file = file;
+		this.pieceSize = pieceSize;
+		this.pieceCount = (int) ((file.fileSize + pieceSize - 1) / pieceSize);
+		this.done = new BitSet(pieceCount);
+		this.requests = new int[pieceCount];
+		this.maxReady = Math.max(1, MAX_READY_BYTES / pieceSize);
+		try {
+			this.fileDigest = MessageDigest.getInstance(FileDigest.algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for (int i = 0; i < pieceCount; i++) {
+			pending.add(i);
+		}
+		for (Map.Entry<String, InetSocketAddress> provider : providers.entrySet()) {
+			if (peers.size() == MAX_PEERS) {
+				break;
+			}
+			peers.add(new PeerStats(provider.getKey(), provider.getValue()));
+		}
+	}
+
+	public SwarmDownloader(FileInfo file, Map<String, InetSocketAddress> providers) {
+		this(file, providers, DEFAULT_PIECE_SIZE);
+	}
+
+	/**
+	 * Descarga el fichero y, si su hash es correcto, lo renombra a target
+	 * (sustituyendo el que hubiera). Bloquea hasta que se han recibido todas las
+	 * piezas o han fallado todos los peers.
+	 *
+	 * @return Verdadero si se han recibido todas las piezas y el hash coincide
+	 * @throws IOException Si no se puede escribir en el fichero destino
+	 */
+	public boolean download(File target) throws IOException {
+		tree = fetchPieceHashes();
+		File part = DownloadJournal.partFile(target);
+		String newFileHash = null;
+		try (FileChannel fc = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			out = fc;
+			List<Thread> threads = new ArrayList<Thread>();
+			for (PeerStats peer : peers) {
+				if (peer.error != null) {
+					continue;
+				}
+				Thread thread = new Thread(() -> runPeer(peer), "SwarmDownloader-" + peer.nick);
+				threads.add(thread);
+				thread.start();
+			}
+			for (Thread thread : threads) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Download interrupted", e);
+				}
+			}
+			IOException writeError = this.writeError;
+			if (writeError != null) {
+				throw writeError;
+			}
+			if (doneCount == pieceCount) {
+				synchronized (digestLock) {
+					advanceDigest();
+					newFileHash = FileDigest.getChecksumHexString(fileDigest.digest());
+				}
+			}
+		} catch (IOException e) {
+			part.delete();
+			throw e;
+		}
+		if (!file.fileHash.equals(newFileHash)) {
+			part.delete();
+			return false;
+		}
+		Files.move(part.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		return true;
+	}
+
+	/**
+	 * Pide los hashes de las piezas a los peers, por orden, hasta que uno los
+	 * envía y coinciden con el tamaño del fichero y con la raíz publicada en el
+	 * directorio (si se conoce). Los peers que fallan o envían otros hashes se
+	 * descartan; los que no tienen los hashes siguen en la descarga, por si
+	 * ninguno los tiene.
+	 *
+	 * @return Los hashes de las piezas, o null si ningún peer los ha enviado
+	 */
+	private MerkleTree fetchPieceHashes() {
+		for (PeerStats peer : peers) {
+			NFConnector connector = null;
+			try {
+				connector = new NFConnector(peer.address);
+				connector.setReadTimeout(PEER_READ_TIMEOUT);
+				FileInfo remote = connector.getPieceHashes(file.fileHash);
+				if (remote == null) {
+					// No tiene los hashes: si tampoco tiene el fichero, se descarta al pedirle piezas
+					continue;
+				}
+				if (!remote.fileHash.equals(file.fileHash) || remote.fileSize != file.fileSize) {
+					peer.error = "file not available";
+				} else if (file.merkleRoot != null && !file.merkleRoot.equals(remote.merkleRoot)) {
+					peer.error = "piece hashes do not match";
+				} else {
+					return remote.merkleTree;
+				}
+			} catch (IOException e) {
+				peer.error = e.toString();
+			} finally {
+				if (connector != null) {
+					connector.close();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Hilo de un peer: descarga piezas por su conexión hasta que no quedan o el
+	 * peer falla
+	 */
+	private void runPeer(PeerStats peer) {
+		byte[] buffer = new byte[pieceSize];
+		NFConnector connector = null;
+		int piece = -1;
+		try {
+			connector = new NFConnector(peer.address);
+			connector.setReadTimeout(PEER_READ_TIMEOUT);
+			while ((piece = nextPiece()) >= 0) {
+				int length = pieceLength(piece);
+				long start = System.nanoTime();
+				if (!connector.downloadRange(file.fileHash, (long) piece * pieceSize, length, buffer)) {
+					peer.error = "file not available";
+					break;
+				}
+				peer.nanos += System.nanoTime() - start;
+				peer.bytes += length;
+				if (!verify(piece, buffer, length)) {
+					peer.error = "sent a corrupted piece";
+					break;
+				}
+				buffer = complete(peer, piece, buffer, length);
+				piece = -1;
+			}
+		} catch (IOException e) {
+			peer.error = e.toString();
+		} finally {
+			if (connector != null) {
+				connector.close();
+			}
+			release(piece);
+		}
+	}
+
+	/**
+	 * Elige la siguiente pieza para un peer: la primera de la cola o, si está
+	 * vacía, la pieza sin terminar con menos peticiones en curso. Si todas las
+	 * piezas sin terminar tienen ya MAX_PIECE_REQUESTS peticiones, espera a que
+	 * termine o se libere alguna.
+	 *
+	 * @return La pieza, o -1 si ya no queda ninguna por descargar
+	 */
+	private synchronized int nextPiece() {
+		while (doneCount < pieceCount && writeError == null) {
+			Integer next;
+			while ((next = pending.poll()) != null) {
+				if (!done.get(next)) {
+					requests[next]++;
+					return next;
+				}
+			}
+			int best = -1;
+			for (int i = done.nextClearBit(0); i < pieceCount; i = done.nextClearBit(i + 1)) {
+				if (requests[i] < MAX_PIECE_REQUESTS && (best < 0 || requests[i] < requests[best])) {
+					best = i;
+				}
+			}
+			if (best >= 0) {
+				requests[best]++;
+				return best;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Escribe una pieza recibida en su posición, si ningún otro peer la había
+	 * enviado ya, la añade al hash del fichero y termina su petición
+	 *
+	 * @return El búfer en el que el peer debe recibir su siguiente pieza: el
+	 *         mismo, o uno libre si éste espera en memoria para añadirse al hash
+	 */
+	private byte[] complete(PeerStats peer, int piece, byte[] data, int length) {
+		synchronized (this) {
+			if (done.get(piece)) {
+				peer.duplicates++;
+				release(piece);
+				return data;
+			}
+		}
+		byte[] next = data;
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+			long position = (long) piece * pieceSize;
+			while (buf.hasRemaining()) {
+				position += out.write(buf, position);
+			}
+			boolean first;
+			synchronized (this) {
+				first = !done.get(piece);
+				if (first) {
+					done.set(piece);
+					doneCount++;
+				}
+			}
+			if (first) {
+				peer.pieces++;
+				next = digest(piece, data, length);
+			} else {
+				peer.duplicates++;
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				if (writeError == null) {
+					writeError = e;
+				}
+			}
+		}
+		release(piece);
+		return next;
+	}
+
+	/**
+	 * Añade una pieza recién escrita al hash del fichero si le toca, seguida de
+	 * las que esperaban tras ella; si no le toca, la deja esperando en memoria
+	 * si cabe
+	 *
+	 * @return El búfer que puede usar el peer para su siguiente pieza
+	 */
+	private byte[] digest(int piece, byte[] data, int length) throws IOException {
+		synchronized (digestLock) {
+			if (piece != digestedPieces) {
+				if (piece < digestedPieces || ready.size() >= maxReady) {
+					// Ya se ha añadido (leyéndola del fichero), o se leerá del fichero
+					return data;
+				}
+				ready.put(piece, data);
+				byte[] spare = spareBuffers.poll();
+				return (spare != null) ? spare : new byte[pieceSize];
+			}
+			fileDigest.update(data, 0, length);
+			digestedPieces++;
+			advanceDigest();
+			return data;
+		}
+	}
+
+	/**
+	 * Añade al hash del fichero las piezas ya escritas desde la siguiente que le
+	 * falta: de memoria las que esperan en ready y, leyéndolas del fichero, las
+	 * que no cupieron. Se llama con digestLock.
+	 */
+	private void advanceDigest() throws IOException {
+		while (digestedPieces < pieceCount) {
+			int piece = digestedPieces;
+			byte[] data = ready.remove(piece);
+			if (data != null) {
+				spareBuffers.add(data);
+			} else {
+				synchronized (this) {
+					if (!done.get(piece)) {
+						return;
+					}
+				}
+				if (spareBuffers.isEmpty()) {
+					spareBuffers.add(new byte[pieceSize]);
+				}
+				data = spareBuffers.peek();
+				ByteBuffer buf = ByteBuffer.wrap(data, 0, pieceLength(piece));
+				long position = (long) piece * pieceSize;
+				while (buf.hasRemaining()) {
+					if (out.read(buf, position + buf.position()) < 0) {
+						throw new IOException("Downloaded file is shorter than expected");
+					}
+				}
+			}
+			fileDigest.update(data, 0, pieceLength(piece));
+			digestedPieces++;
+		}
+	}
+
+	/**
+	 * Termina una petición de la pieza (ya recibida, o abandonada porque el
+	 * peer ha fallado). Una pieza abandonada que nadie más está descargando
+	 * vuelve al principio de la cola.
+	 */
+	private synchronized void release(int piece) {
+		if (piece >= 0) {
+			requests[piece]--;
+			if (!done.get(piece) && requests[piece] == 0) {
+				pending.addFirst(piece);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Comprueba una pieza recibida con los hashes de las piezas del árbol de
+	 * Merkle que contiene
+	 */
+	private boolean verify(int piece, byte[] data, int length) {
+		if (tree == null) {
+			// Sin hashes de las piezas, sólo se comprueba el del fichero completo
+			return true;
+		}
+		int first = piece * (pieceSize / MerkleTree.PIECE_SIZE);
+		for (int offset = 0; offset < length; offset += MerkleTree.PIECE_SIZE) {
+			int n = Math.min(MerkleTree.PIECE_SIZE, length - offset);
+			if (!tree.verifyPiece(first + offset / MerkleTree.PIECE_SIZE, data, offset, n)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int pieceLength(int piece) {
+		return (int) Math.min(pieceSize, file.fileSize - (long) piece * pieceSize);
+	}
+
+	/**
+	 * @return Si se han comprobado las piezas una a una, o sólo el hash del
+	 *         fichero completo porque ningún peer tenía los hashes de las piezas
+	 */
+	public boolean hasPieceHashes() {
+		return tree != null;
+	}
+
+	public int getPieceCount() {
+		return pieceCount;
+	}
+
+	public synchronized int getCompletedPieces() {
+		return doneCount;
+	}
+
+	/**
+	 * @return Lo descargado de cada peer (tras download)
+	 */
+	public List<PeerStats> getPeerStats() {
+		return peers;
+	}
+}
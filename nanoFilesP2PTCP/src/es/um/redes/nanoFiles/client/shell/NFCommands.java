@@ -11,8 +11,12 @@ public class NFCommands {
 	public static final byte COM_FILELIST = 4;
 	public static final byte COM_REGISTER = 5;
 	public static final byte COM_MYFILES = 6;
+	public static final byte COM_SEARCH = 7;
+	public static final byte COM_RESCAN = 8;
+	public static final byte COM_LOCATE = 9;
 	public static final byte COM_FGSERVE = 10;
 	public static final byte COM_BGSERVE = 11;
+	public static final byte COM_FETCH = 12;
 	public static final byte COM_BROWSE = 20;
 	public static final byte COM_QUERYFILES = 22;
 	public static final byte COM_DOWNLOAD = 23;
@@ -36,8 +40,12 @@ public class NFCommands {
 		COM_FILELIST,
 		COM_REGISTER,
 		COM_MYFILES,
+		COM_SEARCH,
+		COM_RESCAN,
+		COM_LOCATE,
 		COM_FGSERVE,
 		COM_BGSERVE,
+		COM_FETCH,
 		COM_BROWSE,
 		COM_QUERYFILES,
 		COM_DOWNLOAD,
@@ -57,8 +65,12 @@ public class NFCommands {
 			"filelist",
 			"register",	
 			"myfiles",
+			"search",
+			"rescan",
+			"locate",
 			"fgserve",
 			"bgserve",
+			"fetch",
 			"browse",	
 			"queryfiles",
 			"download",
@@ -76,12 +88,16 @@ public class NFCommands {
 			"to show list of users registered in the directory",
 			"to show list of files tracked by the directory",
 			"to register with directory as user identified by <nickname>",
-			"to show contents of local folder (files that may be served)",
+			"to show contents of local folder (files that may be served) and how many transfers were served zero-copy",
+			"to search files tracked by the directory: [<text>|<prefix>*|~<approx>] [min=<bytes>] [max=<bytes>] [hash=<prefix>] [limit=<n>]",
+			"to rescan the local folder and publish only the added/removed files if serving",
+			"to show the users serving the file(s) whose hash starts with <hash_prefix>",
 			"to begin serving shared files on <port> in foreground (blocking)",
-			"to begin serving shared files on <port> in background (non-blocking)",
+			"to begin serving shared files on <port> in background (non-blocking), [pool|virtual|nio]",
+			"to download the file identified by <hash> (or a unique prefix of it) from all the users serving it, as <local_filename>",
 			"to enter browser in order to query/download files shared by <user>/<IP:port>",
 			"(browser-mode) to query list of files shared by this user",
-			"(browser-mode) to download the file identified by <hash>",
+			"(browser-mode) to download the file identified by <hash> (or a unique prefix of it)",
 			"(browser-mode) to upload a local file given by <filename>",
 			"(browser-mode) to close a browser session",
 			"shows this information"
@@ -79,6 +79,7 @@ public class NFShell {
 			case NFCommands.COM_USERLIST:
 			case NFCommands.COM_FILELIST:
 			case NFCommands.COM_MYFILES:
+			case NFCommands.COM_RESCAN:
 				// Estos comandos son válidos sin parámetros
 				break;
 			case NFCommands.COM_BROWSE:
@@ -86,6 +87,9 @@ public class NFShell {
 			case NFCommands.COM_REGISTER:
 			case NFCommands.COM_FGSERVE:
 			case NFCommands.COM_BGSERVE:
+			case NFCommands.COM_SEARCH:
+			case NFCommands.COM_LOCATE:
+			case NFCommands.COM_FETCH:
 				// Estos requieren un parámetro
 				while (st.hasMoreTokens()) {
 					vargs.add(st.nextToken());
@@ -219,12 +223,35 @@ public class NFShell {
 			break;
 		// serve requiere el parámetro <port>
 		case NFCommands.COM_FGSERVE:
-		case NFCommands.COM_BGSERVE:
 			if (args.length == 0 || args.length > 1) {
 				System.out.println("Correct use:" + NFCommands.commandToString(command) + " <port>");
 				return false;
 			}
 			break;
+		// bgserve admite además el modo de servicio [pool|virtual|nio]
+		case NFCommands.COM_BGSERVE:
+			if (args.length == 0 || args.length > 2) {
+				System.out.println("Correct use:" + NFCommands.commandToString(command) + " <port> [pool|virtual|nio]");
+				return false;
+			}
+			break;
+		// search requiere al menos un criterio de búsqueda
+		case NFCommands.COM_SEARCH:
+			if (args.length == 0 || !validateSearchArguments(args)) {
+				System.out.println("Correct use:" + NFCommands.commandToString(command)
+						+ " [<text>|<prefix>*|~<approx>] [min=<bytes>] [max=<bytes>] [hash=<prefix>] [limit=<n>]");
+				return false;
+			}
+			break;
+		// locate requiere el parámetro <hash_prefix>
+		case NFCommands.COM_LOCATE:
+			if (args.length != 1) {
+				System.out.println("Correct use:" + NFCommands.commandToString(command) + " <hash_prefix>");
+				return false;
+			}
+			break;
+		// fetch requiere el hash del fichero y el nombre local
+		case NFCommands.COM_FETCH:
 		// serve requiere el parámetro <port>
 		case NFCommands.COM_DOWNLOAD:
 			if (args.length != 2) {
@@ -245,4 +272,42 @@ public class NFShell {
 		// El resto no requieren parámetro
 		return true;
 	}
+
+	/**
+	 * Comprueba los criterios de search: como mucho un texto a buscar en el
+	 * nombre y opciones clave=valor con valores numéricos (salvo hash)
+	 */
+	private boolean validateSearchArguments(String[] args) {
+		int names = 0;
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0) {
+				names++;
+				continue;
+			}
+			String key = arg.substring(0, eq);
+			String value = arg.substring(eq + 1);
+			if (value.isEmpty()) {
+				return false;
+			}
+			switch (key) {
+			case "hash":
+				break;
+			case "min":
+			case "max":
+			case "limit":
+				try {
+					if (Long.parseLong(value) < 0) {
+						return false;
+					}
+				} catch (NumberFormatException e) {
+					return false;
+				}
+				break;
+			default:
+				return false;
+			}
+		}
+		return names <= 1;
+	}
 }
@@ -0,0 +1,114 @@
+package es.um.redes.nanoFiles.directory.connector;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caché de respuestas del directorio en el cliente, con un número máximo de
+ * entradas (al llenarse se descarta la usada hace más tiempo) y un tiempo de
+ * vida por entrada. Una entrada caducada no se descarta: se sigue devolviendo
+ * con get para que el conector pueda revalidarla con el directorio indicando
+ * su versión, y renovarla (renew) si el directorio responde que no ha
+ * cambiado.
+ *
+ * Admite acceso concurrente.
+ *
+ * @param <K> Tipo de la clave de cada respuesta (un nick, el tipo de lista)
+ * @param <V> Tipo de las respuestas guardadas
+ */
+public class DirectoryCache<K, V> {
+
+	/**
+	 * Respuesta guardada, con la versión del directorio a la que corresponde (0
+	 * si el directorio no la indica) y el instante en que caduca
+	 */
+	public static class Entry<V> {
+		public final V value;
+		public final long version;
+		private volatile long expiresAt;
+
+		private Entry(V value, long version, long expiresAt) {
+			this.value = value;
+			this.version = version;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * @return Verdadero si la entrada aún no ha caducado
+		 */
+		public boolean isFresh() {
+			return System.nanoTime() - expiresAt < 0;
+		}
+	}
+
+	private final long ttlNanos;
+	private final LinkedHashMap<K, Entry<V>> entries;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param maxEntries Número máximo de entradas
+	 * @param ttlMillis  Tiempo de vida de cada entrada en milisegundos
+	 */
+	public DirectoryCache(int maxEntries, long ttlMillis) {
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		// Con accessOrder, el primer elemento es el usado hace más tiempo
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Busca la respuesta guardada para una clave, aunque haya caducado
+	 *
+	 * @return La entrada, o null si no hay ninguna
+	 */
+	public synchronized Entry<V> get(K key) {
+		Entry<V> entry = entries.get(key);
+		if (entry != null && entry.isFresh()) {
+			hits++;
+		} else {
+			misses++;
+		}
+		return entry;
+	}
+
+	/**
+	 * Guarda una respuesta, sustituyendo la que hubiera para la misma clave
+	 */
+	public synchronized void put(K key, V value, long version) {
+		entries.put(key, new Entry<V>(value, version, System.nanoTime() + ttlNanos));
+	}
+
+	/**
+	 * Renueva el tiempo de vida de una entrada que el directorio ha confirmado
+	 * que sigue vigente. No hace nada si la entrada ya se ha sustituido o
+	 * descartado.
+	 */
+	public synchronized void renew(K key, Entry<V> entry) {
+		if (entries.get(key) == entry) {
+			entry.expiresAt = System.nanoTime() + ttlNanos;
+		}
+	}
+
+	public synchronized void invalidate(K key) {
+		entries.remove(key);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized String toString() {
+		return entries.size() + " entries, " + hits + " hits, " + misses + " misses";
+	}
+}
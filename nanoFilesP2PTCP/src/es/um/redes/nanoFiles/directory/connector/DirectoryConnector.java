@@ -6,13 +6,91 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import es.um.redes.nanoFiles.client.application.NanoFiles;
+import es.um.redes.nanoFiles.directory.message.DirChange;
+import es.um.redes.nanoFiles.directory.message.DirListPage;
+import es.um.redes.nanoFiles.directory.message.DirLocateResult;
 import es.um.redes.nanoFiles.directory.message.DirMessage;
+import es.um.redes.nanoFiles.directory.message.DirMessageOps;
+import es.um.redes.nanoFiles.directory.message.DirSearchQuery;
+import es.um.redes.nanoFiles.directory.message.DirSearchResult;
+import es.um.redes.nanoFiles.util.FileInfo;
 
 /**
  * Cliente con métodos de consulta y actualización específicos del directorio
+ *
+ * Las peticiones no esperan unas a otras: cada una lleva un identificador en
+ * la cabecera del datagrama, que el directorio copia en su respuesta, y los
+ * métodos *Async devuelven un CompletableFuture que completa el hilo receptor
+ * del conector al llegar la respuesta con ese identificador. Así pueden estar
+ * en vuelo muchas peticiones por el mismo socket (hasta
+ * MAX_REQUESTS_IN_FLIGHT; el resto esperan turno) y, por ejemplo, consultar
+ * las direcciones de 50 nicks cuesta un RTT en lugar de 50.
+ *
+ * Las peticiones sin respuesta se reenvían con el plazo que calcula un
+ * RttEstimator a partir de los tiempos de respuesta medidos (cada vez el
+ * doble), hasta que pasa REQUEST_DEADLINE sin respuesta.
+ *
+ * Los métodos síncronos esperan a la operación asíncrona correspondiente y
+ * devuelven -1, false o null si falla.
+ *
+ * Las direcciones de los nicks y las listas de usuarios y de ficheros se
+ * guardan en cachés (DirectoryCache) durante un tiempo, en el que se
+ * responden sin consultar al directorio. Pasado ese tiempo, las listas se
+ * piden indicando la versión guardada, y si no han cambiado el directorio
+ * responde NOT_MODIFIED, en un datagrama de un par de bytes, en lugar de
+ * volver a enviarlas. Las operaciones de este cliente que cambian el
+ * directorio (registro, publicación de ficheros) descartan lo que tenga
+ * guardado sobre ellas; los cambios hechos por otros peers se ven cuando
+ * caduca la entrada.
+ *
+ * Los ficheros que sirve este peer se publican en tantos datagramas como
+ * haga falta: el primero (SERVE_FILES) lo registra como servidor y el resto
+ * (SERVE_FILES_ADD) se envían a la vez. Después, los cambios en la carpeta
+ * compartida se publican enviando sólo los ficheros añadidos y quitados
+ * (SERVE_FILES_ADD, SERVE_FILES_REMOVE).
+ *
+ * El registro como servidor caduca en el directorio si no se renueva, así que
+ * mientras este peer sirve ficheros el conector envía HEARTBEAT cada tercio
+ * de la duración que indica el directorio, hasta que se cierra. Si el
+ * directorio responde que no lo tiene registrado (porque el registro caducó
+ * o el directorio se ha reiniciado), vuelve a publicar todos los ficheros.
+ *
+ * La lista de ficheros se obtiene de una copia local del catálogo
+ * (DirectoryReplica), que se crea la primera vez que se pide y desde entonces
+ * se pone al día cada REPLICA_SYNC_INTERVAL pidiendo al directorio sólo los
+ * cambios posteriores a ella. Mientras la copia está al día, las direcciones
+ * de los peers servidores también se consultan en ella.
  */
 public class DirectoryConnector {
 	/**
@@ -20,17 +98,57 @@ public class DirectoryConnector {
 	 */
 	private static final int DEFAULT_PORT = 6868;
 	/**
-	 * Tiempo máximo en milisegundos que se esperará a recibir una respuesta por el
-	 * socket antes de que se deba lanzar una excepción SocketTimeoutException para
-	 * recuperar el control
+	 * Tiempo máximo en milisegundos desde el primer envío de una petición tras el
+	 * cual, si no se ha recibido respuesta, se deja de reenviar y se da por
+	 * fallida
 	 */
-	private static final int TIMEOUT = 1000;
+	private static final int REQUEST_DEADLINE = 5000;
 	/**
-	 * Número de intentos máximos para obtener del directorio una respuesta a una
-	 * solicitud enviada. Cada vez que expira el timeout sin recibir respuesta se
-	 * cuenta como un intento.
+	 * Número máximo de peticiones de página de una lista (USERLIST, FILELIST)
+	 * enviadas a la vez sin haber recibido su respuesta
 	 */
-	private static final int MAX_NUMBER_OF_ATTEMPTS = 5;
+	private static final int LIST_PIPELINE_WINDOW = 8;
+	/**
+	 * Número máximo de lotes de una publicación de ficheros (SERVE_FILES_ADD,
+	 * SERVE_FILES_REMOVE) enviados a la vez sin haber recibido su respuesta. El
+	 * directorio tarda en procesar cada lote bastante más que un RTT, así que
+	 * con más lotes en vuelo los últimos esperarían en su cola más que el plazo
+	 * de reenvío y se reenviarían sin necesidad.
+	 */
+	private static final int PUBLISH_PIPELINE_WINDOW = 4;
+	/**
+	 * Número máximo de peticiones enviadas al directorio sin haber recibido su
+	 * respuesta. Las que se hagan por encima esperan en cola a que termine
+	 * alguna.
+	 */
+	private static final int MAX_REQUESTS_IN_FLIGHT = 64;
+	/**
+	 * Tiempo de vida en milisegundos de las listas guardadas, tras el que se
+	 * revalidan con el directorio, y de las direcciones de los nicks
+	 */
+	private static final int LIST_CACHE_TTL = 5000;
+	private static final int LOOKUP_CACHE_TTL = 30000;
+	/**
+	 * Número máximo de direcciones de nicks guardadas
+	 */
+	private static final int LOOKUP_CACHE_SIZE = 256;
+	/**
+	 * Cada cuántos milisegundos se pone al día la copia local del catálogo, y
+	 * cuánto tiempo puede pasar sin ponerla al día antes de que las consultas
+	 * esperen a hacerlo
+	 */
+	private static final int REPLICA_SYNC_INTERVAL = 2000;
+	private static final int REPLICA_MAX_AGE = 5000;
+	/**
+	 * Número máximo de veces que se pide el catálogo completo en una puesta al
+	 * día, si cambia mientras se descarga
+	 */
+	private static final int MAX_CATALOG_ATTEMPTS = 3;
+	/**
+	 * Cada cuántos milisegundos se renueva el registro como servidor si el
+	 * directorio no ha indicado aún su duración, o si la renovación ha fallado
+	 */
+	private static final int DEFAULT_HEARTBEAT_INTERVAL = 10000;
 
 	/**
 	 * Socket UDP usado para la comunicación con el directorio
@@ -40,63 +158,343 @@ public class DirectoryConnector {
 	 * Dirección de socket del directorio (IP:puertoUDP)
 	 */
 	private InetSocketAddress directoryAddress;
+	/**
+	 * Búfer en el que se codifican las peticiones antes de copiarlas a su
+	 * datagrama (protegido por su propio cerrojo)
+	 */
+	private final ByteBuffer requestBuffer = ByteBuffer.allocate(DirMessage.PACKET_MAX_SIZE);
+	/**
+	 * Búfer de las respuestas y el datagrama que lo envuelve, usados sólo por el
+	 * hilo receptor: cada respuesta se procesa antes de recibir la siguiente
+	 */
+	private final ByteBuffer responseBuffer = ByteBuffer.allocate(DirMessage.PACKET_MAX_SIZE);
+	private final DatagramPacket responsePacket = new DatagramPacket(responseBuffer.array(),
+			responseBuffer.capacity());
+	/**
+	 * Identificador de la siguiente petición
+	 */
+	private final AtomicInteger nextRequestId = new AtomicInteger();
+	/**
+	 * Peticiones enviadas pendientes de respuesta, por identificador
+	 */
+	private final Map<Integer, PendingRequest<?>> inFlight = new ConcurrentHashMap<Integer, PendingRequest<?>>();
+	/**
+	 * Peticiones a la espera de que haya hueco para enviarlas, y número de
+	 * peticiones enviadas sin terminar (protegidos por el cerrojo de waiting)
+	 */
+	private final Queue<PendingRequest<?>> waiting = new ArrayDeque<PendingRequest<?>>();
+	private int sentCount = 0;
+	/**
+	 * Listas guardadas (por el opcode con el que se piden) y direcciones de los
+	 * nicks que sirven ficheros guardadas
+	 */
+	private final DirectoryCache<Byte, List<?>> listCache = new DirectoryCache<Byte, List<?>>(2, LIST_CACHE_TTL);
+	private final DirectoryCache<String, InetSocketAddress> lookupCache = new DirectoryCache<String, InetSocketAddress>(
+			LOOKUP_CACHE_SIZE, LOOKUP_CACHE_TTL);
+	/**
+	 * Copia local del catálogo, la puesta al día en curso y la tarea que la
+	 * repite periódicamente (protegidas por el cerrojo del conector)
+	 */
+	private final DirectoryReplica replica = new DirectoryReplica();
+	private CompletableFuture<DirectoryReplica> replicaSync = null;
+	private ScheduledFuture<?> replicaTimer = null;
+	/**
+	 * Nick y puerto con los que este peer sirve ficheros (null si no los
+	 * sirve), ficheros que el directorio ha confirmado que tiene publicados, por
+	 * hash, y próxima renovación del registro (protegidos por el cerrojo de
+	 * servedFiles)
+	 */
+	private String servingNick = null;
+	private int servingPort;
+	private ScheduledFuture<?> heartbeat = null;
+	private final Map<String, FileInfo> servedFiles = new HashMap<String, FileInfo>();
+	/**
+	 * Estimador del RTT con el directorio, que da el plazo de cada reenvío
+	 */
+	private final RttEstimator rtt;
+	/**
+	 * Temporizador de las retransmisiones
+	 */
+	private final ScheduledExecutorService timer;
+	/**
+	 * Hilo que recibe las respuestas y completa las peticiones
+	 */
+	private final Thread receiver;
+
+	/**
+	 * Método de DirMessage que construye las peticiones de página de una lista
+	 */
+	private interface ListRequestEncoder {
+		void encode(ByteBuffer out, int offset, int limit, long knownVersion);
+	}
+
+	/**
+	 * Petición al directorio: el datagrama (cabecera y mensaje) para poder
+	 * reenviarlo, cómo procesar la respuesta y el futuro que se completa con el
+	 * resultado
+	 */
+	private static class PendingRequest<T> {
+		final int id;
+		final DatagramPacket packet;
+		final Function<ByteBuffer, T> decoder;
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		volatile int attempts = 0;
+		volatile long firstSent;
+		volatile ScheduledFuture<?> retransmission;
+
+		PendingRequest(int id, DatagramPacket packet, Function<ByteBuffer, T> decoder) {
+			this.id = id;
+			this.packet = packet;
+			this.decoder = decoder;
+		}
+	}
 
 	public DirectoryConnector(String address) throws IOException {
+		this(address, new RttEstimator());
+	}
+
+	/**
+	 * @param rtt El estimador que da los plazos de reenvío de las peticiones
+	 */
+	DirectoryConnector(String address, RttEstimator rtt) throws IOException {
+		this.rtt = rtt;
 		/*
 		 * Crear el socket UDP para comunicación con el directorio durante el
 		 * resto de la ejecución del programa, y guardar su dirección (IP:puerto) en
 		 * atributos
 		 */
 		socket = new DatagramSocket();
-		socket.setSoTimeout(TIMEOUT);
+		/*
+		 * Espacio para recibir las respuestas de todas las páginas en vuelo (el
+		 * sistema puede concederle menos)
+		 */
+		socket.setReceiveBufferSize(LIST_PIPELINE_WINDOW * DirMessage.PACKET_MAX_SIZE);
 		directoryAddress = new InetSocketAddress(InetAddress.getByName(address), DEFAULT_PORT);
+		timer = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "DirectoryConnector-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		receiver = new Thread(this::receiveResponses, "DirectoryConnector-receiver");
+		receiver.setDaemon(true);
+		receiver.start();
 	}
 
 	/**
 	 * Método para enviar y recibir datagramas al/del directorio
-	 * 
-	 * @param requestData los datos a enviar al directorio (mensaje de solicitud)
-	 * @return los datos recibidos del directorio (mensaje de respuesta)
+	 *
+	 * @param requestData los datos a enviar al directorio (mensaje de solicitud,
+	 *                    sin cabecera)
+	 * @return los datos recibidos del directorio (mensaje de respuesta, sin
+	 *         cabecera), con la longitud exacta del datagrama, o null si no se ha
+	 *         recibido respuesta
 	 */
 	public byte[] sendAndReceiveDatagrams(byte[] requestData) {
-		byte responseData[] = new byte[DirMessage.PACKET_MAX_SIZE];
-		int attempts = 0;
-		boolean done = false;
-		/*
-		 * Enviar datos en un datagrama al directorio y recibir una respuesta.
-		 * Debe implementarse un mecanismo de reintento usando temporizador, en caso de
-		 * que no se reciba respuesta en el plazo de TIMEOUT. En caso de salte el
-		 * timeout, se debe reintentar como máximo en MAX_NUMBER_OF_ATTEMPTS ocasiones
-		 */
-		
-		while(attempts < MAX_NUMBER_OF_ATTEMPTS && !done) {
+		return await(submit(out -> out.put(requestData), response -> {
+			byte[] responseData = new byte[response.remaining()];
+			response.get(responseData);
+			return responseData;
+		}), null);
+	}
+
+	/**
+	 * Envía una petición al directorio, o la deja en cola si ya hay
+	 * MAX_REQUESTS_IN_FLIGHT en vuelo
+	 *
+	 * @param encoder Escribe el mensaje de la petición en el búfer
+	 * @param decoder Procesa el mensaje de la respuesta, en el hilo receptor y
+	 *                directamente sobre su búfer
+	 * @return El futuro que se completará con el resultado del decoder, o con una
+	 *         excepción si la petición no puede enviarse, no se recibe respuesta
+	 *         o la respuesta no es válida
+	 */
+	private <T> CompletableFuture<T> submit(Consumer<ByteBuffer> encoder, Function<ByteBuffer, T> decoder) {
+		int id = nextRequestId.getAndIncrement() & Integer.MAX_VALUE;
+		byte[] datagram;
+		try {
+			synchronized (requestBuffer) {
+				requestBuffer.clear();
+				DirMessage.putRequestId(requestBuffer, id);
+				encoder.accept(requestBuffer);
+				datagram = Arrays.copyOf(requestBuffer.array(), requestBuffer.position());
+			}
+		} catch (BufferOverflowException e) {
+			return CompletableFuture.failedFuture(new IOException("request too large for a single datagram"));
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		PendingRequest<T> request = new PendingRequest<T>(id,
+				new DatagramPacket(datagram, datagram.length, directoryAddress), decoder);
+		boolean sendNow;
+		synchronized (waiting) {
+			sendNow = sentCount < MAX_REQUESTS_IN_FLIGHT;
+			if (sendNow) {
+				sentCount++;
+			} else {
+				waiting.add(request);
+			}
+		}
+		if (sendNow) {
+			send(request);
+		}
+		return request.future;
+	}
+
+	private void send(PendingRequest<?> request) {
+		request.firstSent = System.nanoTime();
+		inFlight.put(request.id, request);
+		transmit(request);
+	}
+
+	/**
+	 * Envía (o reenvía) el datagrama de una petición y programa su reenvío, sin
+	 * pasar de REQUEST_DEADLINE
+	 */
+	private void transmit(PendingRequest<?> request) {
+		request.attempts++;
+		long remaining = TimeUnit.MILLISECONDS.toNanos(REQUEST_DEADLINE) - (System.nanoTime() - request.firstSent);
+		long timeout = Math.min(rtt.getTimeoutNanos(request.attempts), remaining);
+		try {
+			// ** SEND TO SERVER **
+			socket.send(request.packet);
+			request.retransmission = timer.schedule(() -> retransmit(request), timeout, TimeUnit.NANOSECONDS);
+		} catch (IOException | RuntimeException e) {
+			if (inFlight.remove(request.id, request)) {
+				finish(request);
+				request.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	private void retransmit(PendingRequest<?> request) {
+		if (!inFlight.containsKey(request.id)) {
+			// Ya ha llegado la respuesta
+			return;
+		}
+		if (System.nanoTime() - request.firstSent >= TimeUnit.MILLISECONDS.toNanos(REQUEST_DEADLINE)) {
+			if (inFlight.remove(request.id, request)) {
+				finish(request);
+				request.future.completeExceptionally(new SocketTimeoutException("no response from the directory after "
+						+ request.attempts + " attempts in " + REQUEST_DEADLINE + " ms"));
+			}
+			return;
+		}
+		System.err.println("Timeout: Attempt " + request.attempts + ", resending (" + rtt + ")");
+		transmit(request);
+	}
+
+	/**
+	 * Libera el hueco de una petición terminada, enviando la primera de la cola
+	 * si hay alguna esperando
+	 */
+	private void finish(PendingRequest<?> request) {
+		ScheduledFuture<?> retransmission = request.retransmission;
+		if (retransmission != null) {
+			retransmission.cancel(false);
+		}
+		PendingRequest<?> next;
+		synchronized (waiting) {
+			next = waiting.poll();
+			if (next == null) {
+				sentCount--;
+			}
+		}
+		if (next != null) {
+			send(next);
+		}
+	}
+
+	/**
+	 * Bucle del hilo receptor: recibe las respuestas, las empareja por su
+	 * identificador con la petición en vuelo y completa su futuro. Las
+	 * respuestas duplicadas o a peticiones ya terminadas se descartan. Termina
+	 * al cerrar el socket.
+	 */
+	private void receiveResponses() {
+		while (!socket.isClosed()) {
+			PendingRequest<?> request;
 			try {
-				// ** SEND TO SERVER **
-				DatagramPacket packetToServer = new DatagramPacket(requestData, requestData.length, directoryAddress);
-				socket.send(packetToServer);
 				// ** RECEIVE FROM SERVER **
-				DatagramPacket packetFromServer = new DatagramPacket(responseData, responseData.length);
-				socket.receive(packetFromServer);
-				done = true;
-			} catch (SocketTimeoutException e) {
-				attempts++;
-				System.err.println("Timeout: Attempt " + attempts + " of " + MAX_NUMBER_OF_ATTEMPTS);
-				// System.exit(1);
+				responsePacket.setLength(responseBuffer.capacity());
+				socket.receive(responsePacket);
+				responseBuffer.clear();
+				responseBuffer.limit(responsePacket.getLength());
+				request = inFlight.remove(DirMessage.getRequestId(responseBuffer));
 			} catch (IOException e) {
-				// Auto-generated catch block
-				System.err.println("Error: " + e.getMessage());
-				done = true;
+				if (!socket.isClosed()) {
+					System.err.println("Error: " + e.getMessage());
+				}
+				continue;
+			} catch (RuntimeException e) {
+				// Datagrama sin cabecera válida
+				continue;
+			}
+			if (request != null) {
+				if (request.attempts == 1) {
+					// Algoritmo de Karn: sólo se miden las peticiones no reenviadas
+					rtt.addSample(System.nanoTime() - request.firstSent);
+				}
+				finish(request);
+				complete(request, responseBuffer);
 			}
 		}
-		
-		return responseData;
+		failPending(new IOException("directory connector closed"));
+	}
+
+	private static <T> void complete(PendingRequest<T> request, ByteBuffer response) {
+		T result;
+		try {
+			result = request.decoder.apply(response);
+		} catch (RuntimeException e) {
+			request.future.completeExceptionally(e);
+			return;
+		}
+		request.future.complete(result);
+	}
+
+	private void failPending(IOException cause) {
+		List<PendingRequest<?>> pending = new ArrayList<PendingRequest<?>>(inFlight.values());
+		inFlight.clear();
+		synchronized (waiting) {
+			pending.addAll(waiting);
+			waiting.clear();
+		}
+		for (PendingRequest<?> request : pending) {
+			request.future.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * @return El estimador del RTT con el directorio, para consultar el RTT
+	 *         medio y el plazo de retransmisión actuales
+	 */
+	public RttEstimator getRttEstimator() {
+		return rtt;
+	}
+
+	/**
+	 * Espera el resultado de una operación asíncrona
+	 *
+	 * @param failureValue Valor a devolver si la operación falla
+	 */
+	private static <T> T await(CompletableFuture<T> future, T failureValue) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+			System.err.println("Error: " + cause.getMessage());
+			return failureValue;
+		}
 	}
 
 	public int logIntoDirectory() { // Returns number of file servers
-		byte[] requestData = DirMessage.buildLoginRequestMessage();
-		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
-		return DirMessage.processLoginResponse(responseData);
+		return await(logIntoDirectoryAsync(), -1);
+	}
+
+	public CompletableFuture<Integer> logIntoDirectoryAsync() {
+		return submit(DirMessage::buildLoginRequestMessage, DirMessage::processLoginResponse);
 	}
+
 	/*
 	 * TODO: Crear un método distinto para cada intercambio posible de mensajes con
 	 * el directorio, basándose en logIntoDirectory o registerNickname, haciendo uso
@@ -104,40 +502,691 @@ public class DirectoryConnector {
 	 * procesar mensajes de respuesta
 	 */
 	public boolean registerNickname(String nick) {
-		byte[] requestData = DirMessage.buildRegisterRequestMessage(nick);
-		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
-		return DirMessage.processRegisterResponseMessage(responseData);
+		return await(registerNicknameAsync(nick), false);
+	}
+
+	public CompletableFuture<Boolean> registerNicknameAsync(String nick) {
+		return submit(out -> DirMessage.buildRegisterRequestMessage(out, nick),
+				DirMessage::processRegisterResponseMessage).whenComplete((registered, error) -> {
+					// Aunque falle, puede haberse registrado en un intento anterior
+					listCache.invalidate(DirMessageOps.OPCODE_GETUSERS);
+				});
 	}
-	
+
+	/**
+	 * @return Los nicks registrados, en orden alfabético, o null si el
+	 *         directorio no responde
+	 */
 	public Set<String> getUserList(){
-		byte[] requestData = DirMessage.buildUserListRequestMessage();
-		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
-		return DirMessage.processUserListResponse(responseData);
+		return await(getUserListAsync(), null);
+	}
+
+	public CompletableFuture<Set<String>> getUserListAsync() {
+		return getListAsync(DirMessageOps.OPCODE_GETUSERS, DirMessage::buildUserListRequestMessage,
+				DirMessage::processUserListResponse)
+				.thenApply(LinkedHashSet<String>::new);
 	}
-	
+
 	public InetSocketAddress getUserAddress(String nick) {
-		byte[] requestData = DirMessage.buildUserLookupRequestMessage(nick);
-		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
-		return DirMessage.processUserLookupResponse(responseData);
+		return await(getUserAddressAsync(nick), null);
+	}
+
+	/**
+	 * Obtiene la dirección del servidor de ficheros del nick, de la caché si la
+	 * tiene. Las respuestas negativas no se guardan, para ver en seguida a un
+	 * peer que empieza a servir ficheros.
+	 * 
+	 * @return El futuro con la dirección, o con null si el nick no está
+	 *         sirviendo ficheros
+	 */
+	public CompletableFuture<InetSocketAddress> getUserAddressAsync(String nick) {
+		if (replica.isFresh(TimeUnit.MILLISECONDS.toNanos(REPLICA_MAX_AGE))) {
+			InetSocketAddress addr = replica.getServerAddress(nick);
+			if (addr != null) {
+				return CompletableFuture.completedFuture(addr);
+			}
+		}
+		DirectoryCache.Entry<InetSocketAddress> cached = lookupCache.get(nick);
+		if (cached != null && cached.isFresh()) {
+			return CompletableFuture.completedFuture(cached.value);
+		}
+		return submit(out -> DirMessage.buildUserLookupRequestMessage(out, nick),
+				DirMessage::processUserLookupResponse).thenApply(addr -> {
+					if (addr != null) {
+						lookupCache.put(nick, addr, 0);
+					} else {
+						lookupCache.invalidate(nick);
+					}
+					return addr;
+				});
+	}
+
+	/**
+	 * Descarta la dirección guardada de un nick, por ejemplo si no se ha podido
+	 * conectar con ella, para que la próxima consulta se haga al directorio
+	 */
+	public void forgetUserAddress(String nick) {
+		lookupCache.invalidate(nick);
+		replica.forgetServer(nick);
+	}
+
+	/**
+	 * Consulta a la vez las direcciones de varios nicks
+	 *
+	 * @return Las direcciones por nick, en el orden recibido (null para los nicks
+	 *         que no están sirviendo ficheros), o null si alguna consulta falla
+	 */
+	public Map<String, InetSocketAddress> getUserAddresses(Collection<String> nicks) {
+		return await(getUserAddressesAsync(nicks), null);
+	}
+
+	public CompletableFuture<Map<String, InetSocketAddress>> getUserAddressesAsync(Collection<String> nicks) {
+		Map<String, CompletableFuture<InetSocketAddress>> lookups = new LinkedHashMap<String, CompletableFuture<InetSocketAddress>>();
+		for (String nick : nicks) {
+			lookups.putIfAbsent(nick, getUserAddressAsync(nick));
+		}
+		return CompletableFuture.allOf(lookups.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+			Map<String, InetSocketAddress> addresses = new LinkedHashMap<String, InetSocketAddress>();
+			lookups.forEach((nick, lookup) -> addresses.put(nick, lookup.join()));
+			return addresses;
+		});
+	}
+
+	/**
+	 * @return Los ficheros publicados, ordenados por nombre y sin hashes
+	 *         repetidos, o null si el directorio no responde
+	 */
+	public FileInfo[] getFileList(){
+		return await(getFileListAsync(), null);
+	}
+
+	/**
+	 * Obtiene la lista de ficheros de la copia local del catálogo, poniéndola
+	 * antes al día si hace más de REPLICA_MAX_AGE que no se hace (o si aún no
+	 * existe)
+	 */
+	public CompletableFuture<FileInfo[]> getFileListAsync() {
+		if (replica.isFresh(TimeUnit.MILLISECONDS.toNanos(REPLICA_MAX_AGE))) {
+			return CompletableFuture.completedFuture(replica.getFiles());
+		}
+		return syncReplicaAsync().thenApply(DirectoryReplica::getFiles);
+	}
+
+	/**
+	 * Pone al día la copia local del catálogo y, la primera vez, programa que
+	 * se haga cada REPLICA_SYNC_INTERVAL. Si ya hay una puesta al día en curso,
+	 * devuelve esa.
+	 *
+	 * @return El futuro con la copia ya al día
+	 */
+	public synchronized CompletableFuture<DirectoryReplica> syncReplicaAsync() {
+		if (replicaSync != null && !replicaSync.isDone()) {
+			return replicaSync;
+		}
+		if (replicaTimer == null) {
+			replicaTimer = timer.scheduleWithFixedDelay(this::syncReplicaAsync, REPLICA_SYNC_INTERVAL,
+					REPLICA_SYNC_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+		replicaSync = updateReplica(0).whenComplete((updated, error) -> {
+			if (error == null) {
+				replica.markSynced();
+			}
+		});
+		return replicaSync;
+	}
+
+	/**
+	 * Pide los cambios posteriores a la secuencia de la copia y los aplica,
+	 * repitiendo mientras queden cambios. Si no hay copia o el directorio ya no
+	 * tiene esos cambios, se descarga el catálogo completo.
+	 *
+	 * @param catalogAttempts Veces que se ha pedido ya el catálogo completo
+	 */
+	private CompletableFuture<DirectoryReplica> updateReplica(int catalogAttempts) {
+		long since = replica.getSequence();
+		if (since == 0) {
+			return loadCatalog(catalogAttempts);
+		}
+		return submit(out -> DirMessage.buildChangesRequestMessage(out, since),
+				DirMessage::processChangesResponseMessage).thenCompose(changeSet -> {
+					if (changeSet == null) {
+						return CompletableFuture.failedFuture(new IOException("invalid changes response"));
+					}
+					if (changeSet.truncated) {
+						return loadCatalog(catalogAttempts);
+					}
+					replica.apply(since, changeSet);
+					if (!changeSet.changes.isEmpty() && since + changeSet.changes.size() < changeSet.sequence) {
+						return updateReplica(catalogAttempts);
+					}
+					return CompletableFuture.completedFuture(replica);
+				});
+	}
+
+	/**
+	 * Descarga el catálogo completo, lo copia en la réplica y pide los cambios
+	 * posteriores. Si las páginas del catálogo son de versiones distintas
+	 * (cambió durante la descarga) se vuelve a pedir.
+	 */
+	private CompletableFuture<DirectoryReplica> loadCatalog(int attempts) {
+		if (attempts >= MAX_CATALOG_ATTEMPTS) {
+			return CompletableFuture.failedFuture(new IOException("the directory catalog keeps changing"));
+		}
+		return new ListFetch<DirChange>(DirMessage::buildCatalogRequestMessage,
+				DirMessage::processCatalogResponseMessage, 0).start().thenCompose(catalog -> {
+					if (catalog.version == 0) {
+						return loadCatalog(attempts + 1);
+					}
+					replica.reset(catalog.version, catalog.entries);
+					return updateReplica(attempts + 1);
+				});
+	}
+
+	/**
+	 * Obtiene una lista completa del directorio página a página. La primera
+	 * página indica el total de entradas; el resto se piden a la vez, con hasta
+	 * LIST_PIPELINE_WINDOW peticiones en vuelo. Si el directorio devuelve menos
+	 * entradas de las pedidas (no cabían en un datagrama), se pide el resto del
+	 * tramo.
+	 *
+	 * Si la lista cambia en el directorio mientras se recorre, puede faltar o
+	 * repetirse alguna entrada de las páginas pedidas después del cambio; en
+	 * ese caso (las páginas son de versiones distintas) la lista no se guarda.
+	 *
+	 * Mientras la lista guardada no caduca se devuelve sin consultar al
+	 * directorio. Después, la primera página se pide con la versión guardada, y
+	 * si el directorio responde NOT_MODIFIED se sigue usando la lista guardada.
+	 *
+	 * @param requestOpcode OPCODE_GETUSERS u OPCODE_GETFILES, con el que se
+	 *                      guarda la lista
+	 * @param encoder       Método de DirMessage que construye las peticiones
+	 * @param parser        Método de DirMessage que procesa las páginas
+	 * @return El futuro con las entradas de la lista en el orden del directorio
+	 *         (que no deben modificarse)
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> CompletableFuture<List<T>> getListAsync(byte requestOpcode, ListRequestEncoder encoder,
+			Function<ByteBuffer, DirListPage<T>> parser) {
+		DirectoryCache.Entry<List<?>> cached = listCache.get(requestOpcode);
+		if (cached != null && cached.isFresh()) {
+			return CompletableFuture.completedFuture((List<T>) cached.value);
+		}
+		long knownVersion = (cached != null) ? cached.version : 0;
+		return new ListFetch<T>(encoder, parser, knownVersion).start().thenApply(listing -> {
+			if (listing.notModified) {
+				listCache.renew(requestOpcode, cached);
+				return (List<T>) cached.value;
+			}
+			List<T> entries = Collections.unmodifiableList(listing.entries);
+			if (listing.version > 0) {
+				listCache.put(requestOpcode, entries, listing.version);
+			}
+			return entries;
+		});
+	}
+
+	/**
+	 * Recorrido de una lista del directorio, cuyo resultado es la lista
+	 * completa como una sola página (o la respuesta NOT_MODIFIED a la primera
+	 * petición). Sus métodos se ejecutan en el hilo que completa cada página
+	 * (normalmente el receptor), así que se sincronizan.
+	 */
+	private class ListFetch<T> {
+		private final ListRequestEncoder encoder;
+		private final Function<ByteBuffer, DirListPage<T>> parser;
+		private final long knownVersion;
+		private final CompletableFuture<DirListPage<T>> result = new CompletableFuture<DirListPage<T>>();
+		// Páginas recibidas por posición, para devolver las entradas en orden
+		private final SortedMap<Integer, List<T>> pages = new TreeMap<Integer, List<T>>();
+		// Tramos [posición, número de entradas] pendientes de pedir
+		private final Queue<int[]> toRequest = new ArrayDeque<int[]>();
+		private int pagesInFlight = 0;
+		private int total;
+		// Versión de la primera página, o 0 si alguna página es de otra versión
+		private long version;
+
+		/**
+		 * @param knownVersion La versión de la lista que ya se tiene, o 0
+		 */
+		ListFetch(ListRequestEncoder encoder, Function<ByteBuffer, DirListPage<T>> parser, long knownVersion) {
+			this.encoder = encoder;
+			this.parser = parser;
+			this.knownVersion = knownVersion;
+		}
+
+		CompletableFuture<DirListPage<T>> start() {
+			request(0, DirMessage.LIST_PAGE_DEFAULT_LIMIT, knownVersion).whenComplete((first, error) -> {
+				if (error != null) {
+					result.completeExceptionally(error);
+					return;
+				}
+				if (first == null) {
+					result.completeExceptionally(new IOException("invalid list response"));
+					return;
+				}
+				if (first.notModified || first.isLast() || first.entries.isEmpty()) {
+					result.complete(first);
+					return;
+				}
+				int limit = DirMessage.LIST_PAGE_DEFAULT_LIMIT;
+				synchronized (this) {
+					total = first.total;
+					version = first.version;
+					pages.put(first.offset, first.entries);
+					for (int offset = first.getNextOffset(); offset < first.total; offset += limit) {
+						toRequest.add(new int[] { offset, Math.min(limit, first.total - offset) });
+					}
+				}
+				requestMore();
+			});
+			return result;
+		}
+
+		private CompletableFuture<DirListPage<T>> request(int offset, int limit, long knownVersion) {
+			return submit(out -> encoder.encode(out, offset, limit, knownVersion), parser);
+		}
+
+		/**
+		 * Pide tramos pendientes hasta llenar la ventana, o completa el resultado
+		 * si ya se han recibido todas las páginas
+		 */
+		private void requestMore() {
+			List<int[]> ranges = new ArrayList<int[]>();
+			DirListPage<T> listing = null;
+			synchronized (this) {
+				if (result.isDone()) {
+					return;
+				}
+				while (pagesInFlight < LIST_PIPELINE_WINDOW && !toRequest.isEmpty()) {
+					ranges.add(toRequest.poll());
+					pagesInFlight++;
+				}
+				if (pagesInFlight == 0 && toRequest.isEmpty()) {
+					listing = new DirListPage<T>(version, 0, total);
+					for (List<T> page : pages.values()) {
+						listing.entries.addAll(page);
+					}
+				}
+			}
+			if (listing != null) {
+				result.complete(listing);
+			}
+			for (int[] range : ranges) {
+				request(range[0], range[1], 0).whenComplete((page, error) -> received(range[1], page, error));
+			}
+		}
+
+		private void received(int requested, DirListPage<T> page, Throwable error) {
+			if (error != null || page == null || page.notModified) {
+				result.completeExceptionally((error != null) ? error : new IOException("invalid list response"));
+				return;
+			}
+			synchronized (this) {
+				pagesInFlight--;
+				if (page.version != version) {
+					version = 0;
+				}
+				pages.put(page.offset, page.entries);
+				int received = page.entries.size();
+				if (received > 0 && received < requested && !page.isLast()) {
+					toRequest.add(new int[] { page.getNextOffset(), requested - received });
+				}
+			}
+			requestMore();
+		}
+	}
+
+	/**
+	 * Busca en el directorio los ficheros que cumplen los criterios indicados
+	 *
+	 * @return Los ficheros encontrados, o null si el directorio no responde
+	 */
+	public DirSearchResult searchFiles(DirSearchQuery query) {
+		return await(searchFilesAsync(query), null);
+	}
+
+	public CompletableFuture<DirSearchResult> searchFilesAsync(DirSearchQuery query) {
+		return submit(out -> DirMessage.buildSearchRequestMessage(out, query),
+				DirMessage::processSearchResponseMessage);
+	}
+
+	public DirLocateResult locateFile(String hashPrefix, int limit) {
+		return await(locateFileAsync(hashPrefix, limit), null);
 	}
-	
-	public Set<String> getFileList(){
-		byte[] requestData = DirMessage.buildFileListRequestMessage();
-		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
-		return DirMessage.processFileListResponseMessage(responseData);
+
+	/**
+	 * Pide al directorio los ficheros cuyo hash empieza por el prefijo (o tiene
+	 * el hash completo) con todos los peers servidores que los publican, para
+	 * elegir de cuál descargar o descargar de varios a la vez
+	 *
+	 * @param limit Número máximo de ficheros (el directorio puede devolver menos)
+	 */
+	public CompletableFuture<DirLocateResult> locateFileAsync(String hashPrefix, int limit) {
+		return submit(out -> DirMessage.buildLocateRequestMessage(out, hashPrefix, limit),
+				DirMessage::processLocateResponseMessage);
 	}
-	
+
 	public boolean serveFiles(int port, String nick) {
-		byte[] requestData = DirMessage.buildServeFilesRequestMessage(port, nick, NanoFiles.db.getFiles());
-		byte[] responseData = this.sendAndReceiveDatagrams(requestData);
-		return DirMessage.processServeFilesResponseMessage(responseData);
+		return await(serveFilesAsync(port, nick), false);
+	}
+
+	/**
+	 * Registra a este peer como servidor de ficheros con el nick y publica los
+	 * ficheros de la carpeta compartida. Si no caben en un datagrama, el
+	 * registro lleva los primeros y el resto se envían en altas
+	 * (SERVE_FILES_ADD) en cuanto el directorio confirma el registro.
+	 *
+	 * @return El futuro con true si el directorio ha aceptado el registro y
+	 *         todos los ficheros
+	 */
+	public CompletableFuture<Boolean> serveFilesAsync(int port, String nick) {
+		List<FileInfo> files = Arrays.asList(NanoFiles.db.getFiles());
+		int first = DirMessage.serveFilesBatchSize(nick, files, 0);
+		if (first == 0 && !files.isEmpty()) {
+			return CompletableFuture.failedFuture(new IOException("file entry too large for a datagram"));
+		}
+		FileInfo[] batch = files.subList(0, first).toArray(new FileInfo[first]);
+		return submit(out -> DirMessage.buildServeFilesRequestMessage(out, port, nick, batch),
+				DirMessage::processServeFilesResponseMessage).thenCompose(served -> {
+					if (!served) {
+						return CompletableFuture.completedFuture(false);
+					}
+					synchronized (servedFiles) {
+						servingNick = nick;
+						servingPort = port;
+						servedFiles.clear();
+						addServed(Arrays.asList(batch));
+					}
+					scheduleHeartbeat(DEFAULT_HEARTBEAT_INTERVAL);
+					return addServedFilesAsync(files.subList(first, files.size()));
+				}).whenComplete((served, error) -> {
+					lookupCache.invalidate(nick);
+					replica.markStale();
+				});
+	}
+
+	/**
+	 * Publica los cambios de la carpeta compartida desde la última publicación:
+	 * los ficheros nuevos se dan de alta y los que ya no están se dan de baja,
+	 * sin reenviar el resto
+	 *
+	 * @return true si el directorio ha aceptado todos los cambios, false si
+	 *         falla o este peer no está sirviendo ficheros
+	 */
+	public boolean updateServedFiles() {
+		return await(updateServedFilesAsync(), false);
+	}
+
+	public CompletableFuture<Boolean> updateServedFilesAsync() {
+		List<FileInfo> added = new ArrayList<FileInfo>();
+		List<String> removed;
+		synchronized (servedFiles) {
+			if (servingNick == null) {
+				return CompletableFuture.completedFuture(false);
+			}
+			Set<String> gone = new HashSet<String>(servedFiles.keySet());
+			for (FileInfo file : NanoFiles.db.getFiles()) {
+				if (!gone.remove(file.fileHash)) {
+					added.add(file);
+				}
+			}
+			removed = new ArrayList<String>(gone);
+		}
+		CompletableFuture<Boolean> adding = addServedFilesAsync(added);
+		CompletableFuture<Boolean> removing = removeServedFilesAsync(removed);
+		return adding.thenCombine(removing, Boolean::logicalAnd);
 	}
-	
+
+	public boolean addServedFiles(Collection<FileInfo> files) {
+		return await(addServedFilesAsync(files), false);
+	}
+
+	/**
+	 * Da de alta ficheros entre los que publica este peer, en tantas peticiones
+	 * SERVE_FILES_ADD como hagan falta, enviadas a la vez. Repetir un alta no
+	 * tiene efecto, así que las peticiones pueden reenviarse sin problema.
+	 *
+	 * @return El futuro con true si el directorio ha aceptado todas las altas,
+	 *         false si alguna falla o este peer no está sirviendo ficheros
+	 */
+	public CompletableFuture<Boolean> addServedFilesAsync(Collection<FileInfo> files) {
+		String nick = getServingNick();
+		if (nick == null) {
+			return CompletableFuture.completedFuture(false);
+		}
+		List<FileInfo> pending = new ArrayList<FileInfo>(files);
+		List<Supplier<CompletableFuture<Boolean>>> batches = new ArrayList<Supplier<CompletableFuture<Boolean>>>();
+		for (int from = 0; from < pending.size();) {
+			int count = DirMessage.serveFilesBatchSize(nick, pending, from);
+			if (count == 0) {
+				return CompletableFuture.failedFuture(new IOException("file entry too large for a datagram"));
+			}
+			List<FileInfo> batch = pending.subList(from, from + count);
+			batches.add(() -> submit(out -> DirMessage.buildServeFilesAddRequestMessage(out, nick, batch),
+					DirMessage::processServeFilesResponseMessage).thenApply(added -> {
+						if (added) {
+							synchronized (servedFiles) {
+								addServed(batch);
+							}
+						}
+						return added;
+					}));
+			from += count;
+		}
+		return new BatchSequence(batches).start().whenComplete((done, error) -> replica.markStale());
+	}
+
+	public boolean removeServedFiles(Collection<String> hashes) {
+		return await(removeServedFilesAsync(hashes), false);
+	}
+
+	/**
+	 * Da de baja ficheros de los que publica este peer, en tantas peticiones
+	 * SERVE_FILES_REMOVE como hagan falta, enviadas a la vez
+	 *
+	 * @param hashes Los hashes de los ficheros que deja de servir
+	 * @return El futuro con true si el directorio ha aceptado todas las bajas,
+	 *         false si alguna falla o este peer no está sirviendo ficheros
+	 */
+	public CompletableFuture<Boolean> removeServedFilesAsync(Collection<String> hashes) {
+		String nick = getServingNick();
+		if (nick == null) {
+			return CompletableFuture.completedFuture(false);
+		}
+		List<String> pending = new ArrayList<String>(hashes);
+		int batchSize = DirMessage.removeFilesBatchSize(nick);
+		List<Supplier<CompletableFuture<Boolean>>> batches = new ArrayList<Supplier<CompletableFuture<Boolean>>>();
+		for (int from = 0; from < pending.size(); from += batchSize) {
+			List<String> batch = pending.subList(from, Math.min(from + batchSize, pending.size()));
+			batches.add(() -> submit(out -> DirMessage.buildServeFilesRemoveRequestMessage(out, nick, batch),
+					DirMessage::processServeFilesResponseMessage).thenApply(removed -> {
+						if (removed) {
+							synchronized (servedFiles) {
+								servedFiles.keySet().removeAll(batch);
+							}
+						}
+						return removed;
+					}));
+		}
+		return new BatchSequence(batches).start().whenComplete((done, error) -> replica.markStale());
+	}
+
+	/**
+	 * @return El nick con el que este peer sirve ficheros, o null si no los
+	 *         sirve
+	 */
+	public String getServingNick() {
+		synchronized (servedFiles) {
+			return servingNick;
+		}
+	}
+
+	/**
+	 * @return El número de ficheros que el directorio ha confirmado que tiene
+	 *         publicados por este peer
+	 */
+	public int getServedFileCount() {
+		synchronized (servedFiles) {
+			return servedFiles.size();
+		}
+	}
+
+	/**
+	 * Deja de servir ficheros: cancela las renovaciones del registro, olvida
+	 * los ficheros publicados y da de baja el nick como servidor en el
+	 * directorio (STOP_SERVING), que quita sus ficheros del catálogo. No hace
+	 * nada si este peer no está sirviendo ficheros.
+	 *
+	 * @return true si el directorio ha confirmado la baja o no había nada que
+	 *         dar de baja
+	 */
+	public boolean stopServing() {
+		String nick;
+		synchronized (servedFiles) {
+			nick = servingNick;
+			servingNick = null;
+			servedFiles.clear();
+			if (heartbeat != null) {
+				heartbeat.cancel(false);
+				heartbeat = null;
+			}
+		}
+		if (nick == null) {
+			return true;
+		}
+		boolean stopped = await(submit(out -> DirMessage.buildStopServingRequestMessage(out, nick),
+				DirMessage::processServeFilesResponseMessage), false);
+		lookupCache.invalidate(nick);
+		replica.markStale();
+		return stopped;
+	}
+
+	/**
+	 * Programa la próxima renovación del registro como servidor, sustituyendo
+	 * la que hubiera programada. No hace nada si este peer ha dejado de servir
+	 * ficheros.
+	 */
+	private void scheduleHeartbeat(long delayMillis) {
+		synchronized (servedFiles) {
+			if (heartbeat != null) {
+				heartbeat.cancel(false);
+				heartbeat = null;
+			}
+			if (servingNick == null) {
+				return;
+			}
+			try {
+				heartbeat = timer.schedule(this::sendHeartbeat, delayMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// El conector ya se ha cerrado
+				heartbeat = null;
+			}
+		}
+	}
+
+	/**
+	 * Renueva el registro como servidor (HEARTBEAT) y programa la siguiente
+	 * renovación. Si el directorio ya no tiene el registro, vuelve a publicar
+	 * los ficheros, lo que programa de nuevo las renovaciones.
+	 */
+	private void sendHeartbeat() {
+		String nick;
+		int port;
+		synchronized (servedFiles) {
+			nick = servingNick;
+			port = servingPort;
+		}
+		if (nick == null) {
+			return;
+		}
+		submit(out -> DirMessage.buildHeartbeatRequestMessage(out, nick),
+				DirMessage::processHeartbeatResponseMessage).whenComplete((leaseMillis, error) -> {
+					if (!nick.equals(getServingNick())) {
+						// Ha dejado de servir ficheros mientras tanto
+						return;
+					}
+					if (error == null && leaseMillis == 0) {
+						System.err.println("* Directory lost the registration of " + nick + ", publishing files again");
+						serveFilesAsync(port, nick).whenComplete((served, publishError) -> {
+							if (publishError != null || !served) {
+								scheduleHeartbeat(DEFAULT_HEARTBEAT_INTERVAL);
+							}
+						});
+					} else if (error == null && leaseMillis > 0) {
+						scheduleHeartbeat(Math.max(1, leaseMillis / 3));
+					} else {
+						scheduleHeartbeat(DEFAULT_HEARTBEAT_INTERVAL);
+					}
+				});
+	}
+
+	// Debe llamarse con el cerrojo de servedFiles
+	private void addServed(List<FileInfo> files) {
+		for (FileInfo file : files) {
+			servedFiles.put(file.fileHash, file);
+		}
+	}
+
+	/**
+	 * Envío de los lotes de una publicación de ficheros con como mucho
+	 * PUBLISH_PIPELINE_WINDOW en vuelo: cada vez que termina uno se envía el
+	 * siguiente. El resultado es true si el directorio acepta todos, false si
+	 * rechaza alguno, o la excepción del primero que falle (tras la cual no se
+	 * envían más).
+	 */
+	private static class BatchSequence {
+		private final List<Supplier<CompletableFuture<Boolean>>> batches;
+		private final CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+		private int next = 0;
+		private int finished = 0;
+		private boolean accepted = true;
+
+		BatchSequence(List<Supplier<CompletableFuture<Boolean>>> batches) {
+			this.batches = batches;
+		}
+
+		synchronized CompletableFuture<Boolean> start() {
+			if (batches.isEmpty()) {
+				result.complete(true);
+			}
+			for (int i = 0; i < PUBLISH_PIPELINE_WINDOW; i++) {
+				sendNext();
+			}
+			return result;
+		}
+
+		private synchronized void sendNext() {
+			if (next < batches.size() && !result.isDone()) {
+				batches.get(next++).get().whenComplete(this::finish);
+			}
+		}
+
+		private synchronized void finish(Boolean batchAccepted, Throwable error) {
+			if (error != null) {
+				result.completeExceptionally(error);
+				return;
+			}
+			accepted &= batchAccepted;
+			if (++finished == batches.size()) {
+				result.complete(accepted);
+			} else {
+				sendNext();
+			}
+		}
+	}
+
+	/**
+	 * Da de baja el nick en el directorio (si no es null) y cierra el conector.
+	 * Las peticiones que sigan pendientes fallan.
+	 */
 	public void logout(String nick) {
 		if(nick != null) {
-			byte[] requestData = DirMessage.buildLogoutRequestMessage(nick);
-			this.sendAndReceiveDatagrams(requestData);
+			await(submit(out -> DirMessage.buildLogoutRequestMessage(out, nick),
+					response -> response.get() == DirMessageOps.OPCODE_LOGOUT_OK), false);
 		}
 		socket.close();
+		timer.shutdownNow();
+		listCache.clear();
+		lookupCache.clear();
 	}
 }
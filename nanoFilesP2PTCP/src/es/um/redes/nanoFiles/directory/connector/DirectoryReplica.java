@@ -0,0 +1,153 @@
+package es.um.redes.nanoFiles.directory.connector;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.um.redes.nanoFiles.directory.message.DirChange;
+import es.um.redes.nanoFiles.directory.message.DirChangeSet;
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Copia local del catálogo del directorio (ficheros publicados y peers
+ * servidores), que el DirectoryConnector mantiene al día aplicando los cambios
+ * que le pide al directorio (GETCHANGES) a partir de la secuencia de la copia.
+ * Si el directorio ya no conserva esos cambios, la copia se rehace con el
+ * catálogo completo (CATALOG).
+ *
+ * Admite acceso concurrente: los cambios los aplica el hilo receptor del
+ * conector mientras la aplicación consulta la copia.
+ */
+public class DirectoryReplica {
+
+	/**
+	 * Orden en que se devuelven los ficheros: por nombre y por hash, como en
+	 * FILELIST
+	 */
+	private static final Comparator<FileInfo> FILE_ORDER = Comparator.comparing((FileInfo f) -> f.fileName)
+			.thenComparing(f -> f.fileHash);
+
+	/**
+	 * Secuencia del último cambio aplicado, o 0 si aún no hay copia
+	 */
+	private long sequence = 0;
+	private final Map<String, FileInfo> files = new HashMap<String, FileInfo>();
+	private final Map<String, InetSocketAddress> servers = new HashMap<String, InetSocketAddress>();
+	/**
+	 * Ficheros ordenados, calculados en la primera consulta tras un cambio
+	 */
+	private FileInfo[] sortedFiles = null;
+	/**
+	 * Instante (System.nanoTime) de la última vez que se comprobó que la copia
+	 * estaba al día, o null si hay que comprobarlo antes de usarla
+	 */
+	private Long lastSync = null;
+
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Sustituye el contenido de la copia por un catálogo completo
+	 *
+	 * @param sequence La secuencia del catálogo
+	 * @param catalog  Los cambios que crean el catálogo
+	 */
+	synchronized void reset(long sequence, List<DirChange> catalog) {
+		files.clear();
+		servers.clear();
+		for (DirChange change : catalog) {
+			apply(change);
+		}
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Aplica los cambios posteriores a una secuencia
+	 *
+	 * @param since La secuencia a partir de la que se pidieron los cambios
+	 * @return Falso, sin aplicar nada, si la copia no está en esa secuencia
+	 */
+	synchronized boolean apply(long since, DirChangeSet changeSet) {
+		if (since != sequence) {
+			return false;
+		}
+		for (DirChange change : changeSet.changes) {
+			apply(change);
+		}
+		sequence += changeSet.changes.size();
+		return true;
+	}
+
+	private void apply(DirChange change) {
+		switch (change.type) {
+		case DirChange.FILE_ADDED:
+			files.put(change.file.fileHash, change.file);
+			break;
+		case DirChange.FILE_REMOVED:
+			files.remove(change.fileHash);
+			break;
+		case DirChange.SERVER_ADDED:
+			servers.put(change.nick, change.address);
+			break;
+		case DirChange.SERVER_REMOVED:
+			servers.remove(change.nick);
+			break;
+		}
+		if (change.type == DirChange.FILE_ADDED || change.type == DirChange.FILE_REMOVED) {
+			sortedFiles = null;
+		}
+	}
+
+	synchronized void markSynced() {
+		lastSync = System.nanoTime();
+	}
+
+	/**
+	 * Hace que la próxima consulta compruebe antes que la copia está al día
+	 */
+	synchronized void markStale() {
+		lastSync = null;
+	}
+
+	/**
+	 * @return Verdadero si la copia se ha puesto al día hace menos de maxAgeNanos
+	 */
+	synchronized boolean isFresh(long maxAgeNanos) {
+		return lastSync != null && System.nanoTime() - lastSync < maxAgeNanos;
+	}
+
+	/**
+	 * @return Los ficheros publicados, ordenados por nombre
+	 */
+	public synchronized FileInfo[] getFiles() {
+		if (sortedFiles == null) {
+			sortedFiles = files.values().toArray(new FileInfo[files.size()]);
+			Arrays.sort(sortedFiles, FILE_ORDER);
+		}
+		return sortedFiles.clone();
+	}
+
+	/**
+	 * @return La dirección en la que sirve ficheros el nick, o null si no es un
+	 *         peer servidor
+	 */
+	public synchronized InetSocketAddress getServerAddress(String nick) {
+		return servers.get(nick);
+	}
+
+	/**
+	 * Olvida la dirección de un peer servidor con el que no se ha podido
+	 * conectar, hasta que la copia se rehaga o el directorio la vuelva a anunciar
+	 */
+	synchronized void forgetServer(String nick) {
+		servers.remove(nick);
+	}
+
+	public synchronized String toString() {
+		return files.size() + " files, " + servers.size() + " servers at sequence " + sequence;
+	}
+}
@@ -0,0 +1,62 @@
+package es.um.redes.nanoFiles.directory.connector;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compara el tiempo que tardan en completarse las peticiones al directorio
+ * con el plazo de retransmisión adaptativo (RttEstimator) y con el plazo fijo
+ * de 1 s que usaba el conector. Para medir cuánto se tarda en recuperarse de
+ * las pérdidas, el directorio debe lanzarse con la opción -loss, por ejemplo:
+ *
+ * java es.um.redes.nanoFiles.directory.server.Directory -loss 0.1
+ *
+ * Las peticiones (LOGIN) se hacen de una en una, para que cada pérdida se
+ * refleje en el tiempo de su petición.
+ *
+ * Uso: java es.um.redes.nanoFiles.directory.connector.DirectoryRetransmissionBenchmark
+ * [directoryHost] [requests]
+ */
+public class DirectoryRetransmissionBenchmark {
+
+	private static final long FIXED_TIMEOUT_MILLIS = 1000;
+
+	public static void main(String[] args) throws IOException {
+		String host = (args.length > 0) ? args[0] : "localhost";
+		int requests = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+
+		System.out.println(String.format("%-9s %8s %8s %8s %8s %8s %8s %6s", "Timeout", "mean ms", "p50 ms",
+				"p90 ms", "p99 ms", "max ms", "total s", "lost"));
+		run("fixed", new DirectoryConnector(host, RttEstimator.fixed(FIXED_TIMEOUT_MILLIS)), requests);
+		run("adaptive", new DirectoryConnector(host, new RttEstimator()), requests);
+		System.exit(0);
+	}
+
+	private static void run(String label, DirectoryConnector connector, int requests) {
+		// Las primeras peticiones sirven de calentamiento y de muestras iniciales
+		for (int i = 0; i < 20; i++) {
+			connector.logIntoDirectory();
+		}
+		double[] millis = new double[requests];
+		int failed = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			long sent = System.nanoTime();
+			if (connector.logIntoDirectory() < 0) {
+				failed++;
+			}
+			millis[i] = (System.nanoTime() - sent) / 1e6;
+		}
+		double total = (System.nanoTime() - start) / 1e9;
+		Arrays.sort(millis);
+		System.out.println(String.format("%-9s %8.2f %8.2f %8.2f %8.2f %8.2f %8.2f %6d", label,
+				Arrays.stream(millis).average().orElse(0), percentile(millis, 0.5), percentile(millis, 0.9),
+				percentile(millis, 0.99), millis[millis.length - 1], total, failed));
+		System.out.println("  " + connector.getRttEstimator());
+		connector.logout(null);
+	}
+
+	private static double percentile(double[] sorted, double p) {
+		return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+	}
+}
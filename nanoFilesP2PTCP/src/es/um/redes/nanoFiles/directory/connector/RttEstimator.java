@@ -0,0 +1,138 @@
+package es.um.redes.nanoFiles.directory.connector;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Estimación del tiempo de ida y vuelta (RTT) de las peticiones al directorio
+ * y del plazo de retransmisión (RTO) que se deriva de ella, como en TCP (RFC
+ * 6298): se mantiene una media móvil del RTT (SRTT) y de su variación
+ * (RTTVAR), y RTO = SRTT + 4 * RTTVAR, acotado entre MIN_RTO_MILLIS y
+ * MAX_RTO_MILLIS. Hasta la primera muestra, el RTO es INITIAL_RTO_MILLIS.
+ *
+ * Sólo deben añadirse muestras de peticiones respondidas al primer intento
+ * (algoritmo de Karn): si se ha reenviado, no se sabe a qué envío corresponde
+ * la respuesta. Cada reenvío de una misma petición espera el doble que el
+ * anterior, con una variación aleatoria de hasta un JITTER para que las
+ * peticiones perdidas a la vez no se reenvíen todas a la vez.
+ *
+ * Admite acceso concurrente.
+ */
+public class RttEstimator {
+	public static final long INITIAL_RTO_MILLIS = 1000;
+	public static final long MIN_RTO_MILLIS = 20;
+	public static final long MAX_RTO_MILLIS = 8000;
+	/**
+	 * Pesos de cada muestra en SRTT y en RTTVAR
+	 */
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+	/**
+	 * Fracción máxima que se añade al azar al plazo de cada reenvío
+	 */
+	private static final double JITTER = 0.25;
+	private static final long NANOS_PER_MILLI = 1000000;
+
+	/**
+	 * Falso si el plazo es fijo: se ignoran las muestras y no hay espera
+	 * exponencial ni variación aleatoria
+	 */
+	private final boolean adaptive;
+	private double srtt;
+	private double rttvar;
+	private long rto;
+	private long samples = 0;
+
+	public RttEstimator() {
+		this(true, INITIAL_RTO_MILLIS);
+	}
+
+	private RttEstimator(boolean adaptive, long rtoMillis) {
+		this.adaptive = adaptive;
+		this.rto = rtoMillis * NANOS_PER_MILLI;
+	}
+
+	/**
+	 * Estimador que siempre da el mismo plazo a todos los intentos, para
+	 * comparar con el comportamiento adaptativo
+	 */
+	public static RttEstimator fixed(long timeoutMillis) {
+		return new RttEstimator(false, timeoutMillis);
+	}
+
+	/**
+	 * Añade una muestra de RTT, de una petición respondida al primer intento
+	 *
+	 * @param rttNanos El tiempo entre el envío y la respuesta en nanosegundos
+	 */
+	public synchronized void addSample(long rttNanos) {
+		if (!adaptive) {
+			return;
+		}
+		if (samples == 0) {
+			srtt = rttNanos;
+			rttvar = rttNanos / 2.0;
+		} else {
+			rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rttNanos);
+			srtt = (1 - ALPHA) * srtt + ALPHA * rttNanos;
+		}
+		samples++;
+		long value = (long) (srtt + 4 * rttvar);
+		rto = Math.max(MIN_RTO_MILLIS * NANOS_PER_MILLI, Math.min(MAX_RTO_MILLIS * NANOS_PER_MILLI, value));
+	}
+
+	/**
+	 * Plazo de espera de un intento de una petición: el RTO actual, doblado por
+	 * cada intento anterior y con variación aleatoria
+	 *
+	 * @param attempt El número del intento, empezando en 1
+	 * @return El plazo en nanosegundos
+	 */
+	public long getTimeoutNanos(int attempt) {
+		long base;
+		synchronized (this) {
+			base = rto;
+		}
+		if (!adaptive) {
+			return base;
+		}
+		long max = MAX_RTO_MILLIS * NANOS_PER_MILLI;
+		for (int i = 1; i < attempt && base < max; i++) {
+			base *= 2;
+		}
+		base = Math.min(base, max);
+		return base + (long) (base * JITTER * ThreadLocalRandom.current().nextDouble());
+	}
+
+	/**
+	 * @return El RTT medio en milisegundos, o 0 si aún no hay muestras
+	 */
+	public synchronized double getSmoothedRttMillis() {
+		return srtt / NANOS_PER_MILLI;
+	}
+
+	/**
+	 * @return La variación media del RTT en milisegundos
+	 */
+	public synchronized double getRttVariationMillis() {
+		return rttvar / NANOS_PER_MILLI;
+	}
+
+	/**
+	 * @return El plazo de retransmisión del primer intento en milisegundos
+	 */
+	public synchronized double getRetransmissionTimeoutMillis() {
+		return (double) rto / NANOS_PER_MILLI;
+	}
+
+	public synchronized long getSampleCount() {
+		return samples;
+	}
+
+	public synchronized String toString() {
+		if (!adaptive) {
+			return String.format("fixed RTO %.1f ms", getRetransmissionTimeoutMillis());
+		}
+		return String.format("SRTT %.3f ms, RTTVAR %.3f ms, RTO %.1f ms (%d samples)", getSmoothedRttMillis(),
+				getRttVariationMillis(), getRetransmissionTimeoutMillis(), samples);
+	}
+}
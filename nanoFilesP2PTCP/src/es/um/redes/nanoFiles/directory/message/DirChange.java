@@ -0,0 +1,75 @@
+package es.um.redes.nanoFiles.directory.message;
+
+import java.net.InetSocketAddress;
+
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Cambio en el catálogo del directorio (ficheros publicados y peers que los
+ * sirven), tal como se envía en las respuestas CHANGES y CATALOG. Aplicar en
+ * orden los cambios de una respuesta CHANGES a una copia del catálogo la
+ * actualiza; las respuestas CATALOG describen el catálogo completo como los
+ * cambios que lo crean (FILE_ADDED y SERVER_ADDED).
+ */
+public class DirChange {
+
+	public static final byte FILE_ADDED = 1;
+	public static final byte FILE_REMOVED = 2;
+	public static final byte SERVER_ADDED = 3;
+	public static final byte SERVER_REMOVED = 4;
+
+	public final byte type;
+	/**
+	 * Fichero añadido (FILE_ADDED)
+	 */
+	public final FileInfo file;
+	/**
+	 * Hash del fichero eliminado (FILE_REMOVED)
+	 */
+	public final String fileHash;
+	/**
+	 * Nick del peer servidor (SERVER_ADDED, SERVER_REMOVED)
+	 */
+	public final String nick;
+	/**
+	 * Dirección en la que sirve ficheros el peer (SERVER_ADDED)
+	 */
+	public final InetSocketAddress address;
+
+	private DirChange(byte type, FileInfo file, String fileHash, String nick, InetSocketAddress address) {
+		this.type = type;
+		this.file = file;
+		this.fileHash = fileHash;
+		this.nick = nick;
+		this.address = address;
+	}
+
+	public static DirChange fileAdded(FileInfo file) {
+		return new DirChange(FILE_ADDED, file, file.fileHash, null, null);
+	}
+
+	public static DirChange fileRemoved(String fileHash) {
+		return new DirChange(FILE_REMOVED, null, fileHash, null, null);
+	}
+
+	public static DirChange serverAdded(String nick, InetSocketAddress address) {
+		return new DirChange(SERVER_ADDED, null, null, nick, address);
+	}
+
+	public static DirChange serverRemoved(String nick) {
+		return new DirChange(SERVER_REMOVED, null, null, nick, null);
+	}
+
+	public String toString() {
+		switch (type) {
+		case FILE_ADDED:
+			return "+file " + file.fileHash + " " + file.fileName;
+		case FILE_REMOVED:
+			return "-file " + fileHash;
+		case SERVER_ADDED:
+			return "+server " + nick + " " + address;
+		default:
+			return "-server " + nick;
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package es.um.redes.nanoFiles.directory.message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Respuesta del directorio a una petición de cambios (GETCHANGES): los
+ * cambios del catálogo posteriores a la secuencia indicada por el cliente, en
+ * orden, o la indicación de que el directorio ya no los conserva.
+ */
+public class DirChangeSet {
+
+	/**
+	 * Verdadero si el directorio ya no tiene todos los cambios posteriores a la
+	 * secuencia pedida (CHANGES_TRUNCATED), y el cliente debe pedir el catálogo
+	 * completo
+	 */
+	public boolean truncated = false;
+	/**
+	 * Secuencia del último cambio del catálogo en el directorio. Si es mayor que
+	 * la pedida más el número de cambios recibidos, quedan más cambios por
+	 * pedir.
+	 */
+	public long sequence;
+	/**
+	 * Cambios posteriores a la secuencia pedida, consecutivos y en orden
+	 */
+	public List<DirChange> changes = new ArrayList<DirChange>();
+}
@@ -0,0 +1,76 @@
+package es.um.redes.nanoFiles.directory.message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Página de una respuesta paginada del directorio (USERLIST o FILELIST). El
+ * directorio ordena la lista y la sirve por tramos: cada página indica a
+ * partir de qué posición empieza, cuántas entradas tiene la lista completa y
+ * las entradas de este tramo. La posición siguiente (getNextOffset) es el
+ * cursor con el que pedir la siguiente página.
+ *
+ * Cada página indica también la versión de la lista de la que se ha sacado.
+ * Si el cliente pide una página indicando la versión que ya tiene y la lista
+ * no ha cambiado, el directorio responde NOT_MODIFIED, que se representa como
+ * una página sin entradas con notModified a verdadero.
+ *
+ * @param <T> Tipo de las entradas: nicks (String) en USERLIST y ficheros
+ *            (FileInfo) en FILELIST
+ */
+public class DirListPage<T> {
+
+	/**
+	 * Posición en la lista completa de la primera entrada de esta página
+	 */
+	public int offset;
+	/**
+	 * Número total de entradas de la lista en el directorio
+	 */
+	public int total;
+	/**
+	 * Versión de la lista en el directorio (mayor que 0, o 0 en una respuesta
+	 * NOT_MODIFIED)
+	 */
+	public long version;
+	/**
+	 * Verdadero si el directorio ha respondido que la lista no ha cambiado desde
+	 * la versión que indicó el cliente
+	 */
+	public boolean notModified;
+	/**
+	 * Entradas de esta página
+	 */
+	public List<T> entries;
+
+	public DirListPage(long version, int offset, int total) {
+		this.version = version;
+		this.offset = offset;
+		this.total = total;
+		this.entries = new ArrayList<T>();
+	}
+
+	/**
+	 * @return Una respuesta NOT_MODIFIED (la versión es la que indicó el
+	 *         cliente, que no viaja en la respuesta)
+	 */
+	public static <T> DirListPage<T> notModified() {
+		DirListPage<T> page = new DirListPage<T>(0, 0, 0);
+		page.notModified = true;
+		return page;
+	}
+
+	/**
+	 * @return La posición de la primera entrada que no está en esta página
+	 */
+	public int getNextOffset() {
+		return offset + entries.size();
+	}
+
+	/**
+	 * @return Verdadero si no quedan más entradas tras esta página
+	 */
+	public boolean isLast() {
+		return getNextOffset() >= total;
+	}
+}
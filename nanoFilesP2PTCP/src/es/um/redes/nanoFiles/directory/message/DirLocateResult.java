@@ -0,0 +1,37 @@
+package es.um.redes.nanoFiles.directory.message;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Respuesta del directorio a una localización de ficheros por hash
+ * (LOCATE_RESULTS): los ficheros cuyo hash empieza por el prefijo pedido, cada
+ * uno con todos los peers servidores que lo publican, y si había más.
+ */
+public class DirLocateResult {
+
+	/**
+	 * Un fichero y los peers que lo sirven: nick y dirección en la que sirven
+	 * ficheros, por nick
+	 */
+	public static class Location {
+		public final FileInfo file;
+		public final Map<String, InetSocketAddress> providers = new LinkedHashMap<String, InetSocketAddress>();
+
+		public Location(FileInfo file) {
+			this.file = file;
+		}
+	}
+
+	public List<Location> locations = new ArrayList<Location>();
+	/**
+	 * Verdadero si hay más ficheros con ese prefijo que no se han incluido (por
+	 * el límite de resultados o porque no cabían en el datagrama)
+	 */
+	public boolean truncated = false;
+}
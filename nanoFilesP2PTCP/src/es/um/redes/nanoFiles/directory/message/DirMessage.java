@@ -1,14 +1,46 @@
 package es.um.redes.nanoFiles.directory.message;
 
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
+import es.um.redes.nanoFiles.util.ByteBufferPool;
+import es.um.redes.nanoFiles.util.FileDigest;
 import es.um.redes.nanoFiles.util.FileInfo;
 
+/**
+ * Mensajes del protocolo con el directorio, codificados en binario. Los
+ * números (longitudes, tamaños, posiciones, puertos) se codifican como varint,
+ * de modo que los valores pequeños ocupan un solo byte; las cadenas van en
+ * UTF-8 precedidas de su longitud en bytes, y los hashes de los ficheros se
+ * envían como los bytes del digest, no en hexadecimal. Cada datagrama tiene
+ * exactamente el tamaño del mensaje.
+ *
+ * Todos los datagramas empiezan por el identificador de la petición (varint),
+ * seguido del mensaje (opcode y campos). El directorio copia en cada respuesta
+ * el identificador de la petición a la que responde, con lo que un cliente
+ * puede tener varias peticiones en curso y emparejar cada respuesta con la
+ * suya. La cabecera se escribe y se lee con putRequestId y getRequestId, antes
+ * de construir o procesar el mensaje.
+ *
+ * Cada mensaje puede construirse como un array nuevo (buildXXX(...)) o
+ * escribirse en un búfer del llamante a partir de su posición
+ * (buildXXX(ByteBuffer, ...)), y procesarse desde un array o directamente
+ * desde un búfer. Las variantes con búfer no reservan memoria salvo para los
+ * datos que devuelven, de modo que el directorio y el cliente pueden
+ * reutilizar los mismos búferes en todas las peticiones.
+ */
 
 public class DirMessage {
 
@@ -18,6 +50,43 @@ public class DirMessage {
 	
 	public static final int BYTE_MAX_VALUE = 255;
 
+	/**
+	 * Tamaño máximo de una página de USERLIST o FILELIST, por debajo de la carga
+	 * útil máxima de un datagrama UDP (65507 bytes)
+	 */
+	public static final int LIST_PAGE_MAX_SIZE = 65000;
+
+	/**
+	 * Número máximo de entradas por página que piden los clientes. El directorio
+	 * puede devolver menos si no caben en LIST_PAGE_MAX_SIZE.
+	 */
+	public static final int LIST_PAGE_DEFAULT_LIMIT = 500;
+
+	/**
+	 * Flag de una petición SEARCH: el nombre se busca como prefijo
+	 */
+	private static final byte SEARCH_FLAG_NAME_PREFIX = 1;
+	/**
+	 * Flag de una petición SEARCH: búsqueda aproximada del nombre
+	 */
+	private static final byte SEARCH_FLAG_NAME_FUZZY = 2;
+
+	/**
+	 * Tamaño en bytes del digest de un fichero
+	 */
+	private static final int DIGEST_SIZE = FileDigest.getFileDigestSize();
+
+	/**
+	 * Tamaño mínimo de una entrada de fichero: digest + nombre vacío + tamaño +
+	 * indicador de raíz de Merkle
+	 */
+	private static final int FILE_ENTRY_MIN_SIZE = DIGEST_SIZE + 3;
+
+	/**
+	 * Búferes en los que se codifican los mensajes que se devuelven como array
+	 */
+	private static final ByteBufferPool SCRATCH_BUFFERS = new ByteBufferPool(PACKET_MAX_SIZE, 4);
+
 	private byte opcode;
 
 	private String userName;
@@ -26,6 +95,18 @@ public class DirMessage {
 	
 	private FileInfo[] fi;
 
+	private String[] fileHashes;
+
+	private Integer offset;
+
+	private Integer limit;
+
+	private Long knownVersion;
+
+	private Long sequence;
+
+	private DirSearchQuery query;
+
 	public DirMessage(byte operation) {
 		opcode = operation;
 	}
@@ -53,6 +134,56 @@ public class DirMessage {
 		this.port = port;
 		this.fi = files;
 	}
+
+	/**
+	 * Constructor para las altas de ficheros de un peer servidor ya registrado
+	 * (SERVE_FILES_ADD)
+	 */
+	public DirMessage(byte operation, String nick, FileInfo[] files) {
+		opcode = operation;
+		userName = nick;
+		this.fi = files;
+	}
+
+	/**
+	 * Constructor para las bajas de ficheros de un peer servidor
+	 * (SERVE_FILES_REMOVE)
+	 * 
+	 * @param hashes Los hashes de los ficheros que deja de servir
+	 */
+	public DirMessage(byte operation, String nick, String[] hashes) {
+		opcode = operation;
+		userName = nick;
+		this.fileHashes = hashes;
+	}
+
+	/**
+	 * Constructor para las peticiones de una página de una lista (GETUSERS,
+	 * GETFILES)
+	 * 
+	 * @param knownVersion La versión de la lista que ya tiene el cliente, o 0
+	 */
+	public DirMessage(byte operation, int offset, int limit, long knownVersion) {
+		opcode = operation;
+		this.offset = offset;
+		this.limit = limit;
+		this.knownVersion = knownVersion;
+	}
+	
+	/**
+	 * Constructor para las peticiones de cambios del catálogo (GETCHANGES)
+	 * 
+	 * @param sequence La secuencia del último cambio que tiene el cliente
+	 */
+	public DirMessage(byte operation, long sequence) {
+		opcode = operation;
+		this.sequence = sequence;
+	}
+
+	public DirMessage(byte operation, DirSearchQuery query) {
+		opcode = operation;
+		this.query = query;
+	}
 	
 	/**
 	 * Método para obtener el tipo de mensaje (opcode)
@@ -92,21 +223,107 @@ public class DirMessage {
 		return fi;
 	}
 
+	public String[] getFileHashes() {
+		if (fileHashes == null) {
+			System.err.println(
+					"PANIC: DirMessage.getFileHashes called but 'fileHashes' field is not defined for messages of type "
+							+ DirMessageOps.opcodeToOperation(opcode));
+			System.exit(-1);
+		}
+		return fileHashes;
+	}
+
+	public int getOffset() {
+		if (offset == null) {
+			System.err.println(
+					"PANIC: DirMessage.getOffset called but 'offset' field is not defined for messages of type "
+							+ DirMessageOps.opcodeToOperation(opcode));
+			System.exit(-1);
+		}
+		return offset;
+	}
+
+	public int getLimit() {
+		if (limit == null) {
+			System.err.println(
+					"PANIC: DirMessage.getLimit called but 'limit' field is not defined for messages of type "
+							+ DirMessageOps.opcodeToOperation(opcode));
+			System.exit(-1);
+		}
+		return limit;
+	}
+
+	public long getKnownVersion() {
+		if (knownVersion == null) {
+			System.err.println(
+					"PANIC: DirMessage.getKnownVersion called but 'knownVersion' field is not defined for messages of type "
+							+ DirMessageOps.opcodeToOperation(opcode));
+			System.exit(-1);
+		}
+		return knownVersion;
+	}
+
+	public long getSequence() {
+		if (sequence == null) {
+			System.err.println(
+					"PANIC: DirMessage.getSequence called but 'sequence' field is not defined for messages of type "
+							+ DirMessageOps.opcodeToOperation(opcode));
+			System.exit(-1);
+		}
+		return sequence;
+	}
+
+	public DirSearchQuery getSearchQuery() {
+		if (query == null) {
+			System.err.println(
+					"PANIC: DirMessage.getSearchQuery called but 'query' field is not defined for messages of type "
+							+ DirMessageOps.opcodeToOperation(opcode));
+			System.exit(-1);
+		}
+		return query;
+	}
+
+
+	/**
+	 * Escribe la cabecera de un datagrama: el identificador de la petición
+	 * 
+	 * @param requestId Identificador elegido por el cliente (no negativo), o el
+	 *                  de la petición a la que se responde
+	 */
+	public static void putRequestId(ByteBuffer out, int requestId) {
+		putVarint(out, requestId);
+	}
+
+	/**
+	 * Lee la cabecera de un datagrama, dejando el búfer al principio del mensaje
+	 * 
+	 * @return El identificador de la petición
+	 */
+	public static int getRequestId(ByteBuffer in) {
+		return getVarintInt(in);
+	}
 
 	/**
 	 * Método de clase para parsear los campos de un mensaje y construir el objeto
 	 * DirMessage que contiene los datos del mensaje recibido
 	 * 
-	 * @param data El
-	 * @return
+	 * @param data El mensaje recibido, con la longitud exacta del datagrama
+	 * @return El mensaje, o null si el opcode no corresponde a una petición
 	 */
 	public static DirMessage buildMessageFromReceivedData(byte[] data) {
+		return buildMessageFromReceivedData(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Parsea el mensaje que hay entre la posición y el límite del búfer,
+	 * leyéndolo directamente del búfer (que puede reutilizarse después)
+	 */
+	public static DirMessage buildMessageFromReceivedData(ByteBuffer bb) {
 		/*
 		 * En función del tipo de mensaje, parsear el resto de campos para extraer
 		 * los valores y llamar al constructor para crear un objeto DirMessage que
 		 * contenga en sus atributos toda la información del mensaje
 		 */
-		ByteBuffer bb = ByteBuffer.wrap(data);
 		byte opcode = bb.get();
 		DirMessage msg;
 		switch(opcode) {
@@ -114,55 +331,53 @@ public class DirMessage {
 				msg = new DirMessage(opcode);
 			break;
 			case DirMessageOps.OPCODE_REGISTER_USERNAME:
-				byte size = bb.get();
-				byte[] b = new byte[size];
-				bb.get(b);
-				msg = new DirMessage(opcode, new String(b));
+				msg = new DirMessage(opcode, getString(bb));
 			break;
 			case DirMessageOps.OPCODE_GETUSERS:
-				msg = new DirMessage(opcode);
+				msg = parseListRequest(opcode, bb);
 			break;
 			case DirMessageOps.OPCODE_LOOKUP_USERNAME:
-				byte size_ = bb.get();
-				byte[] b_ = new byte[size_];
-				bb.get(b_);
-				int port_ = bb.getInt();
-				msg = new DirMessage(opcode, new String(b_), port_);
-				
+				msg = new DirMessage(opcode, getString(bb));
 			break;
 			case DirMessageOps.OPCODE_GETFILES:
-				msg = new DirMessage(opcode);
+				msg = parseListRequest(opcode, bb);
 			break;
 			case DirMessageOps.OPCODE_LOGOUT:
-				byte size___ = bb.get();
-				byte[] b___ = new byte[size___];
-				bb.get(b___);
-				msg = new DirMessage(opcode, new String(b___));
+				msg = new DirMessage(opcode, getString(bb));
 			break;
 			case DirMessageOps.OPCODE_SERVE_FILES:
-				byte size__ = bb.get();
-				byte[] b__ = new byte[size__];
-				bb.get(b__);
-				int port__ = bb.getInt();
-				int tamSet = bb.getInt();
-				FileInfo[] files = new FileInfo[tamSet];
-				for(int i = 0; i < tamSet; i++) {
-					byte hashsize = bb.get();
-					byte[] hash = new byte[hashsize];
-					bb.get(hash);
-					
-					byte namesize = bb.get();
-					byte[] name = new byte[namesize];
-					bb.get(name);
-					
-					byte pathsize = bb.get();
-					byte[] path = new byte[pathsize];
-					bb.get(path);
-					
-					int filesize = bb.getInt();
-					files[i] = new FileInfo(new String(hash), new String(name), filesize, new String(path));
+				String nick = getString(bb);
+				int port = getVarintInt(bb);
+				msg = new DirMessage(opcode, nick, port, getFileEntries(bb));
+			break;
+			case DirMessageOps.OPCODE_SERVE_FILES_ADD:
+				msg = new DirMessage(opcode, getString(bb), getFileEntries(bb));
+			break;
+			case DirMessageOps.OPCODE_SERVE_FILES_REMOVE:
+				nick = getString(bb);
+				String[] hashes = new String[getCount(bb, DIGEST_SIZE)];
+				for(int i = 0; i < hashes.length; i++) {
+					hashes[i] = FileDigest.getChecksumHexString(bb, DIGEST_SIZE);
 				}
-				msg = new DirMessage(opcode, new String(b__), port__, files);
+				msg = new DirMessage(opcode, nick, hashes);
+			break;
+			case DirMessageOps.OPCODE_HEARTBEAT:
+				msg = new DirMessage(opcode, getString(bb));
+			break;
+			case DirMessageOps.OPCODE_STOP_SERVING:
+				msg = new DirMessage(opcode, getString(bb));
+			break;
+			case DirMessageOps.OPCODE_SEARCH:
+				msg = new DirMessage(opcode, parseSearchQuery(bb));
+			break;
+			case DirMessageOps.OPCODE_LOCATE:
+				msg = new DirMessage(opcode, parseLocateQuery(bb));
+			break;
+			case DirMessageOps.OPCODE_GETCHANGES:
+				msg = new DirMessage(opcode, getVarint(bb));
+			break;
+			case DirMessageOps.OPCODE_GETCATALOG:
+				msg = parseListRequest(opcode, bb);
 			break;
 			default:
 				msg = null;
@@ -170,15 +385,64 @@ public class DirMessage {
 		return msg;
 	}
 
+	/**
+	 * Parsea la posición, el número máximo de entradas y la versión conocida de
+	 * una petición de página. Una petición sin ellos (sólo el opcode) pide la
+	 * lista desde el principio, y una sin versión no tiene ninguna.
+	 */
+	private static DirMessage parseListRequest(byte opcode, ByteBuffer bb) {
+		if (!bb.hasRemaining()) {
+			return new DirMessage(opcode, 0, LIST_PAGE_DEFAULT_LIMIT, 0);
+		}
+		int offset = getVarintInt(bb);
+		int limit = getVarintInt(bb);
+		long knownVersion = bb.hasRemaining() ? getVarint(bb) : 0;
+		return new DirMessage(opcode, offset, limit, knownVersion);
+	}
+
+	/**
+	 * Parsea los criterios de una búsqueda: flags (bit 0: buscar el nombre como
+	 * prefijo, bit 1: búsqueda aproximada del nombre) + nombre + tamaño mínimo +
+	 * tamaño máximo + prefijo del hash + límite de resultados. Un nombre o
+	 * prefijo de hash vacío indica que no se busca por ese criterio.
+	 */
+	private static DirSearchQuery parseSearchQuery(ByteBuffer bb) {
+		DirSearchQuery query = new DirSearchQuery();
+		byte flags = bb.get();
+		query.namePrefix = (flags & SEARCH_FLAG_NAME_PREFIX) != 0;
+		query.nameFuzzy = (flags & SEARCH_FLAG_NAME_FUZZY) != 0;
+		String name = getString(bb);
+		query.name = name.isEmpty() ? null : name;
+		query.minSize = getVarint(bb);
+		query.maxSize = getVarint(bb);
+		String hash = getString(bb);
+		query.hashPrefix = hash.isEmpty() ? null : hash;
+		query.limit = getVarintInt(bb);
+		return query;
+	}
+
+	/**
+	 * Parsea una localización como una búsqueda sólo por prefijo del hash, con
+	 * su número máximo de ficheros
+	 */
+	private static DirSearchQuery parseLocateQuery(ByteBuffer bb) {
+		DirSearchQuery query = new DirSearchQuery();
+		query.hashPrefix = getString(bb);
+		query.limit = getVarintInt(bb);
+		return query;
+	}
+
 	/**
 	 * Método para construir una solicitud de ingreso en el directorio
 	 * 
 	 * @return El array de bytes con el mensaje de solicitud de login
 	 */
 	public static byte[] buildLoginRequestMessage() {
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES);
-		bb.put(DirMessageOps.OPCODE_LOGIN);
-		return bb.array();
+		return toArray(out -> buildLoginRequestMessage(out));
+	}
+
+	public static void buildLoginRequestMessage(ByteBuffer out) {
+		out.put(DirMessageOps.OPCODE_LOGIN);
 	}
 
 	/**
@@ -189,10 +453,12 @@ public class DirMessage {
 	 * @return El array de bytes con el mensaje de solicitud de login
 	 */
 	public static byte[] buildLoginOKResponseMessage(int numServers) {
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES + Integer.BYTES);
-		bb.put(DirMessageOps.OPCODE_LOGIN_OK);
-		bb.putInt(numServers);
-		return bb.array();
+		return toArray(out -> buildLoginOKResponseMessage(out, numServers));
+	}
+
+	public static void buildLoginOKResponseMessage(ByteBuffer out, int numServers) {
+		out.put(DirMessageOps.OPCODE_LOGIN_OK);
+		putVarint(out, numServers);
 	}
 
 	/**
@@ -203,34 +469,41 @@ public class DirMessage {
 	 *         momento del login, o -1 si el login en el servidor ha fallado
 	 */
 	public static int processLoginResponse(byte[] data) {
-		ByteBuffer buf = ByteBuffer.wrap(data);
+		return processLoginResponse(ByteBuffer.wrap(data));
+	}
+
+	public static int processLoginResponse(ByteBuffer buf) {
 		byte opcode = buf.get();
 		if (opcode == DirMessageOps.OPCODE_LOGIN_OK) {
-			return buf.getInt(); // Return number of available file servers
+			return getVarintInt(buf); // Return number of available file servers
 		} else {
 			return -1;
 		}
 	}
 	
 	public static byte[] buildRegisterRequestMessage(String nick) {
-		byte[] cadena = nick.getBytes();
-		byte longitud = (byte) nick.length();
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES * 2 + longitud);
-		bb.put(DirMessageOps.OPCODE_REGISTER_USERNAME);
-		bb.put(longitud);
-		bb.put(cadena);
-		return bb.array();
+		return toArray(out -> buildRegisterRequestMessage(out, nick));
+	}
+
+	public static void buildRegisterRequestMessage(ByteBuffer out, String nick) {
+		out.put(DirMessageOps.OPCODE_REGISTER_USERNAME);
+		putString(out, nick);
 	}
 	
 	public static byte[] buildRegisterResponseMessage(boolean success) {
-		ByteBuffer bb = ByteBuffer.allocate(OPCODE_SIZE_BYTES);
-		if(success) bb.put(DirMessageOps.OPCODE_REGISTER_USERNAME_OK);
-		else bb.put(DirMessageOps.OPCODE_REGISTER_USERNAME_FAIL);
-		return bb.array();
+		return toArray(out -> buildRegisterResponseMessage(out, success));
+	}
+
+	public static void buildRegisterResponseMessage(ByteBuffer out, boolean success) {
+		if(success) out.put(DirMessageOps.OPCODE_REGISTER_USERNAME_OK);
+		else out.put(DirMessageOps.OPCODE_REGISTER_USERNAME_FAIL);
 	}
 	
 	public static boolean processRegisterResponseMessage(byte[] responseData) {
-		ByteBuffer buf = ByteBuffer.wrap(responseData);
+		return processRegisterResponseMessage(ByteBuffer.wrap(responseData));
+	}
+
+	public static boolean processRegisterResponseMessage(ByteBuffer buf) {
 		byte opcode = buf.get();
 		if(opcode == DirMessageOps.OPCODE_REGISTER_USERNAME_OK) {
 			return true;
@@ -239,164 +512,444 @@ public class DirMessage {
 		}
 	}
 	
-	public static byte[] buildUserListRequestMessage() {
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES);
-		bb.put(DirMessageOps.OPCODE_GETUSERS);
-		return bb.array();
+	public static byte[] buildUserListRequestMessage(int offset, int limit) {
+		return toArray(out -> buildUserListRequestMessage(out, offset, limit, 0));
+	}
+
+	/**
+	 * @param knownVersion La versión de la lista que tiene ya el cliente, para
+	 *                     que el directorio responda NOT_MODIFIED si no ha
+	 *                     cambiado, o 0 para pedir la página en cualquier caso
+	 */
+	public static void buildUserListRequestMessage(ByteBuffer out, int offset, int limit, long knownVersion) {
+		buildListRequest(out, DirMessageOps.OPCODE_GETUSERS, offset, limit, knownVersion);
 	}
 	
-	public static byte[] buildUserListResponseMessage(Set<String> nicks) {
-		int tamSet = nicks.size();
-		// Opcode + Tam lista + (Tam usuario + usuario) por cada entrada de la lista
-		ByteBuffer bb = ByteBuffer.allocate(OPCODE_SIZE_BYTES + Integer.BYTES + tamSet * (OPCODE_SIZE_BYTES + BYTE_MAX_VALUE));
-		bb.put(DirMessageOps.OPCODE_USERLIST);
-		bb.putInt(tamSet);
-		for(String n : nicks) {
-			bb.put((byte) n.length());
-			bb.put(n.getBytes());
-		}
-		return bb.array();
+	/**
+	 * Construye la página de la lista de usuarios que empieza en offset, con
+	 * como mucho limit entradas (menos si no caben en un datagrama)
+	 * 
+	 * @param nicks   La lista completa de usuarios, siempre en el mismo orden
+	 * @param version La versión de la lista
+	 */
+	public static byte[] buildUserListResponseMessage(List<String> nicks, long version, int offset, int limit) {
+		return toArray(out -> buildUserListResponseMessage(out, nicks, version, offset, limit));
+	}
+
+	public static void buildUserListResponseMessage(ByteBuffer out, List<String> nicks, long version, int offset,
+			int limit) {
+		buildListPage(out, DirMessageOps.OPCODE_USERLIST, nicks, version, offset, limit, DirMessage::stringSize,
+				DirMessage::putString);
 	}
 	
-	public static Set<String> processUserListResponse(byte[] data) {
-		Set<String> response = new HashSet<String>();
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		byte opcode = bb.get();
-		if(opcode == DirMessageOps.OPCODE_USERLIST) {
-			int tamSet = bb.getInt();
-			byte tamString;
-			byte[] _string;
-			for(int i = 0; i < tamSet; i++) {
-				tamString = bb.get();
-				_string = new byte[tamString];
-				bb.get(_string);
-				response.add(new String(_string));
-			}
-			return response;
-		}
-		else return null;
+	public static DirListPage<String> processUserListResponse(byte[] data) {
+		return processUserListResponse(ByteBuffer.wrap(data));
+	}
+
+	public static DirListPage<String> processUserListResponse(ByteBuffer data) {
+		return processListPage(DirMessageOps.OPCODE_USERLIST, data, DirMessage::getString);
 	}
 
 
 	public static byte[] buildUserLookupRequestMessage(String nick) {
-		byte[] cadena = nick.getBytes();
-		byte longitud = (byte) nick.length();
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES * 2 + longitud);
-		bb.put(DirMessageOps.OPCODE_LOOKUP_USERNAME);
-		bb.put(longitud);
-		bb.put(cadena);
-		return bb.array();
+		return toArray(out -> buildUserLookupRequestMessage(out, nick));
+	}
+
+	public static void buildUserLookupRequestMessage(ByteBuffer out, String nick) {
+		out.put(DirMessageOps.OPCODE_LOOKUP_USERNAME);
+		putString(out, nick);
 	}
 	
+	/**
+	 * Construye la respuesta a una búsqueda de usuario: opcode + dirección IP
+	 * (tam + bytes de la dirección, 4 en IPv4 y 16 en IPv6) + puerto
+	 */
 	public static byte[] buildUserLookupResponseMessage(InetSocketAddress addr) {
-		ByteBuffer bb;
-		if(addr == null) {
-			bb = ByteBuffer.allocate(OPCODE_SIZE_BYTES);
-			bb.put(DirMessageOps.OPCODE_LOOKUP_USERNAME_NOTFOUND);
+		return toArray(out -> buildUserLookupResponseMessage(out, addr));
+	}
+
+	public static void buildUserLookupResponseMessage(ByteBuffer out, InetSocketAddress addr) {
+		if(addr == null || addr.getAddress() == null) {
+			out.put(DirMessageOps.OPCODE_LOOKUP_USERNAME_NOTFOUND);
 		}
 		else {
-			String dir = addr.getHostName();
-			int port = addr.getPort();
-			byte[] cadena = dir.getBytes();
-			byte longitud = (byte) dir.length();
-			bb = ByteBuffer.allocate(OPCODE_SIZE_BYTES * 2 + longitud + Integer.BYTES);
-			bb.put(DirMessageOps.OPCODE_LOOKUP_USERNAME_FOUND);
-			bb.put(longitud);
-			bb.put(cadena);
-			bb.putInt(port);
+			out.put(DirMessageOps.OPCODE_LOOKUP_USERNAME_FOUND);
+			putAddress(out, addr);
 		}
-		return bb.array();
 	}
 
 	public static InetSocketAddress processUserLookupResponse(byte[] data) {
-		InetSocketAddress addr;
-		ByteBuffer bb = ByteBuffer.wrap(data);
+		return processUserLookupResponse(ByteBuffer.wrap(data));
+	}
+
+	public static InetSocketAddress processUserLookupResponse(ByteBuffer bb) {
 		byte opcode = bb.get();
 		if(opcode == DirMessageOps.OPCODE_LOOKUP_USERNAME_FOUND) {
-			byte tam = bb.get();
-			byte[] dir = new byte[tam];
-			for(int i = 0; i < tam; i++) {
-				dir[i] = bb.get();
-			}
-			int port = bb.getInt();
-			addr = new InetSocketAddress(new String(dir), port);
-			return addr;
+			return getAddress(bb);
 		}
 		else return null;
 	}
 
-	public static byte[] buildFileListRequestMessage() {
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES);
-		bb.put(DirMessageOps.OPCODE_GETFILES);
-		return bb.array();
+	public static byte[] buildFileListRequestMessage(int offset, int limit) {
+		return toArray(out -> buildFileListRequestMessage(out, offset, limit, 0));
+	}
+
+	/**
+	 * @param knownVersion La versión de la lista que tiene ya el cliente, o 0
+	 */
+	public static void buildFileListRequestMessage(ByteBuffer out, int offset, int limit, long knownVersion) {
+		buildListRequest(out, DirMessageOps.OPCODE_GETFILES, offset, limit, knownVersion);
+	}
+
+	/**
+	 * Construye la página de la lista de ficheros que empieza en offset, con
+	 * como mucho limit entradas (menos si no caben en un datagrama)
+	 * 
+	 * @param filelist La lista completa de ficheros, siempre en el mismo orden
+	 * @param version  La versión de la lista
+	 */
+	public static byte[] buildFileListResponseMessage(List<FileInfo> filelist, long version, int offset, int limit) {
+		return toArray(out -> buildFileListResponseMessage(out, filelist, version, offset, limit));
+	}
+
+	public static void buildFileListResponseMessage(ByteBuffer out, List<FileInfo> filelist, long version,
+			int offset, int limit) {
+		buildListPage(out, DirMessageOps.OPCODE_FILELIST, filelist, version, offset, limit, DirMessage::fileEntrySize,
+				DirMessage::putFileEntry);
+	}
+
+	/**
+	 * Construye la respuesta a una petición de página de una lista que no ha
+	 * cambiado desde la versión que indicó el cliente: sólo el opcode
+	 */
+	public static byte[] buildNotModifiedResponseMessage() {
+		return toArray(out -> buildNotModifiedResponseMessage(out));
+	}
+
+	public static void buildNotModifiedResponseMessage(ByteBuffer out) {
+		out.put(DirMessageOps.OPCODE_NOT_MODIFIED);
+	}
+	
+	public static DirListPage<FileInfo> processFileListResponseMessage(byte[] data) {
+		return processFileListResponseMessage(ByteBuffer.wrap(data));
+	}
+
+	public static DirListPage<FileInfo> processFileListResponseMessage(ByteBuffer data) {
+		return processListPage(DirMessageOps.OPCODE_FILELIST, data, DirMessage::getFileEntry);
 	}
 
-	public static byte[] buildFileListResponseMessage(Set<String> filelist) {
-		int tamSet = filelist.size();
-		// Opcode + Tam lista + (Tam file + file) por cada entrada de la lista
-		ByteBuffer bb = ByteBuffer.allocate(OPCODE_SIZE_BYTES + Integer.BYTES + tamSet * (OPCODE_SIZE_BYTES + BYTE_MAX_VALUE));
-		bb.put(DirMessageOps.OPCODE_FILELIST);
-		bb.putInt(tamSet);
-		for(String n : filelist) {
-			bb.put((byte) n.length());
-			bb.put(n.getBytes());
+	private static void buildListRequest(ByteBuffer out, byte opcode, int offset, int limit, long knownVersion) {
+		// Opcode + posición + número máximo de entradas + versión conocida
+		out.put(opcode);
+		putVarint(out, offset);
+		putVarint(out, limit);
+		putVarint(out, knownVersion);
+	}
+
+	/**
+	 * Construye una página de una lista: opcode + versión + total + posición +
+	 * número de entradas + entradas codificadas. Primero se calcula cuántas
+	 * entradas caben en LIST_PAGE_MAX_SIZE (y en el búfer) y después se
+	 * escriben, sin codificarlas por separado.
+	 */
+	private static <T> void buildListPage(ByteBuffer out, byte opcode, List<T> list, long version, int offset,
+			int limit, ToIntFunction<T> entrySize, BiConsumer<ByteBuffer, T> entryWriter) {
+		int total = list.size();
+		int first = Math.max(0, Math.min(offset, total));
+		int end = (int) Math.min((long) first + Math.max(limit, 0), total);
+		int maxSize = Math.min(LIST_PAGE_MAX_SIZE, out.remaining());
+		// Cabecera con el número máximo de entradas, que ocupa lo mismo o más que el real
+		int size = OPCODE_SIZE_BYTES + varintSize(version) + varintSize(total) + varintSize(first)
+				+ varintSize(end - first);
+		int count = 0;
+		while (first + count < end) {
+			int entry = entrySize.applyAsInt(list.get(first + count));
+			if (size + entry > maxSize) {
+				break;
+			}
+			size += entry;
+			count++;
+		}
+		out.put(opcode);
+		putVarint(out, version);
+		putVarint(out, total);
+		putVarint(out, first);
+		putVarint(out, count);
+		for (int i = 0; i < count; i++) {
+			entryWriter.accept(out, list.get(first + i));
+		}
+	}
+
+	private static <T> DirListPage<T> processListPage(byte opcode, ByteBuffer bb, Function<ByteBuffer, T> decoder) {
+		byte received = bb.get();
+		if (received == DirMessageOps.OPCODE_NOT_MODIFIED) {
+			return DirListPage.notModified();
+		}
+		if (received != opcode) {
+			return null;
+		}
+		long version = getVarint(bb);
+		int total = getVarintInt(bb);
+		DirListPage<T> page = new DirListPage<T>(version, getVarintInt(bb), total);
+		int count = getCount(bb, 1);
+		for (int i = 0; i < count; i++) {
+			page.entries.add(decoder.apply(bb));
 		}
-		return bb.array();
+		return page;
 	}
 	
-	public static Set<String> processFileListResponseMessage(byte[] data) {
-		Set<String> response = new HashSet<String>();
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		byte opcode = bb.get();
-		if(opcode == DirMessageOps.OPCODE_FILELIST) {
-			int tamSet = bb.getInt();
-			byte tamString;
-			byte[] _string;
-			for(int i = 0; i < tamSet; i++) {
-				tamString = bb.get();
-				_string = new byte[tamString];
-				bb.get(_string);
-				response.add(new String(_string));
+	public static byte[] buildSearchRequestMessage(DirSearchQuery query) {
+		return toArray(out -> buildSearchRequestMessage(out, query));
+	}
+
+	public static void buildSearchRequestMessage(ByteBuffer out, DirSearchQuery query) {
+		// Opcode + flags + nombre + mín + máx + prefijo del hash + límite
+		out.put(DirMessageOps.OPCODE_SEARCH);
+		out.put((byte) ((query.namePrefix ? SEARCH_FLAG_NAME_PREFIX : 0) | (query.nameFuzzy ? SEARCH_FLAG_NAME_FUZZY : 0)));
+		putString(out, (query.name == null) ? "" : query.name);
+		putVarint(out, Math.max(0, query.minSize));
+		putVarint(out, Math.max(0, query.maxSize));
+		putString(out, (query.hashPrefix == null) ? "" : query.hashPrefix);
+		putVarint(out, Math.max(0, query.limit));
+	}
+
+	/**
+	 * Construye la respuesta a una búsqueda: opcode + truncada (byte) + número
+	 * de resultados + una entrada de fichero por resultado. Se incluyen
+	 * resultados mientras quepan en LIST_PAGE_MAX_SIZE; si no caben todos, la
+	 * respuesta se marca como truncada.
+	 */
+	public static byte[] buildSearchResponseMessage(List<FileInfo> results, boolean truncated) {
+		return toArray(out -> buildSearchResponseMessage(out, results, truncated));
+	}
+
+	public static void buildSearchResponseMessage(ByteBuffer out, List<FileInfo> results, boolean truncated) {
+		int maxSize = Math.min(LIST_PAGE_MAX_SIZE, out.remaining());
+		int size = OPCODE_SIZE_BYTES + 1 + varintSize(results.size());
+		int count = 0;
+		while (count < results.size()) {
+			int entry = fileEntrySize(results.get(count));
+			if (size + entry > maxSize) {
+				truncated = true;
+				break;
 			}
-			return response;
+			size += entry;
+			count++;
 		}
-		else return null;
+		out.put(DirMessageOps.OPCODE_SEARCH_RESULTS);
+		out.put((byte) (truncated ? 1 : 0));
+		putVarint(out, count);
+		for (int i = 0; i < count; i++) {
+			putFileEntry(out, results.get(i));
+		}
+	}
+
+	public static DirSearchResult processSearchResponseMessage(byte[] data) {
+		return processSearchResponseMessage(ByteBuffer.wrap(data));
+	}
+
+	public static DirSearchResult processSearchResponseMessage(ByteBuffer bb) {
+		if (bb.get() != DirMessageOps.OPCODE_SEARCH_RESULTS) {
+			return null;
+		}
+		DirSearchResult result = new DirSearchResult();
+		result.truncated = bb.get() != 0;
+		int count = getCount(bb, FILE_ENTRY_MIN_SIZE);
+		for (int i = 0; i < count; i++) {
+			result.files.add(getFileEntry(bb));
+		}
+		return result;
 	}
 	
+	/**
+	 * Construye la localización de los peers que sirven los ficheros cuyo hash
+	 * empieza por un prefijo (o un hash completo): opcode + prefijo + número
+	 * máximo de ficheros
+	 */
+	public static byte[] buildLocateRequestMessage(String hashPrefix, int limit) {
+		return toArray(out -> buildLocateRequestMessage(out, hashPrefix, limit));
+	}
+
+	public static void buildLocateRequestMessage(ByteBuffer out, String hashPrefix, int limit) {
+		out.put(DirMessageOps.OPCODE_LOCATE);
+		putString(out, hashPrefix);
+		putVarint(out, Math.max(0, limit));
+	}
+
+	/**
+	 * Construye la respuesta a una localización: opcode + truncada (byte) +
+	 * número de ficheros + por cada fichero, su entrada, el número de peers que
+	 * lo sirven y el nick y la dirección de cada uno. Se incluyen ficheros
+	 * mientras quepan en LIST_PAGE_MAX_SIZE; si no caben todos, la respuesta se
+	 * marca como truncada.
+	 */
+	public static byte[] buildLocateResponseMessage(List<DirLocateResult.Location> locations, boolean truncated) {
+		return toArray(out -> buildLocateResponseMessage(out, locations, truncated));
+	}
+
+	public static void buildLocateResponseMessage(ByteBuffer out, List<DirLocateResult.Location> locations,
+			boolean truncated) {
+		int maxSize = Math.min(LIST_PAGE_MAX_SIZE, out.remaining());
+		int size = OPCODE_SIZE_BYTES + 1 + varintSize(locations.size());
+		int count = 0;
+		while (count < locations.size()) {
+			int entry = locationSize(locations.get(count));
+			if (size + entry > maxSize) {
+				truncated = true;
+				break;
+			}
+			size += entry;
+			count++;
+		}
+		out.put(DirMessageOps.OPCODE_LOCATE_RESULTS);
+		out.put((byte) (truncated ? 1 : 0));
+		putVarint(out, count);
+		for (int i = 0; i < count; i++) {
+			DirLocateResult.Location location = locations.get(i);
+			putFileEntry(out, location.file);
+			putVarint(out, location.providers.size());
+			for (Map.Entry<String, InetSocketAddress> provider : location.providers.entrySet()) {
+				putString(out, provider.getKey());
+				putAddress(out, provider.getValue());
+			}
+		}
+	}
+
+	public static DirLocateResult processLocateResponseMessage(byte[] data) {
+		return processLocateResponseMessage(ByteBuffer.wrap(data));
+	}
+
+	public static DirLocateResult processLocateResponseMessage(ByteBuffer bb) {
+		if (bb.get() != DirMessageOps.OPCODE_LOCATE_RESULTS) {
+			return null;
+		}
+		DirLocateResult result = new DirLocateResult();
+		result.truncated = bb.get() != 0;
+		int count = getCount(bb, FILE_ENTRY_MIN_SIZE + 1);
+		for (int i = 0; i < count; i++) {
+			DirLocateResult.Location location = new DirLocateResult.Location(getFileEntry(bb));
+			int providers = getCount(bb, 2);
+			for (int j = 0; j < providers; j++) {
+				String nick = getString(bb);
+				InetSocketAddress address = getAddress(bb);
+				if (address == null) {
+					throw new IllegalArgumentException("Invalid address in directory message");
+				}
+				location.providers.put(nick, address);
+			}
+			result.locations.add(location);
+		}
+		return result;
+	}
+
+	/**
+	 * Construye la publicación de ficheros de un peer servidor: opcode + nick +
+	 * puerto + número de ficheros + una entrada de fichero por fichero
+	 * 
+	 * @throws BufferOverflowException Si los ficheros no caben en un datagrama
+	 */
 	public static byte[] buildServeFilesRequestMessage(int port, String nick, FileInfo[] fi) {
-		int tamSet = fi.length;
-		byte tamNick = (byte) nick.length();
-		// Opcode + Tam nick + nick + Puerto (int) +
-		// Tam lista + (Tam string + String[entrada]) por cada entrada de la lista
-		ByteBuffer bb = ByteBuffer.allocate(OPCODE_SIZE_BYTES + Integer.BYTES +
-				OPCODE_SIZE_BYTES + tamNick +
-				tamSet *(Integer.BYTES + 3 * (OPCODE_SIZE_BYTES + BYTE_MAX_VALUE)));
-		bb.put(DirMessageOps.OPCODE_SERVE_FILES);
-		bb.put(tamNick);
-		bb.put(nick.getBytes());
-		bb.putInt(port);
-		bb.putInt(tamSet);
-		for(FileInfo n : fi) {
-			bb.put((byte) n.fileHash.length());
-			bb.put(n.fileHash.getBytes());
-			bb.put((byte) n.fileName.length());
-			bb.put(n.fileName.getBytes());
-			bb.put((byte) n.filePath.length());
-			bb.put(n.filePath.getBytes());
-			bb.putInt((int) n.fileSize);
-		}
-		return bb.array();
+		return toArray(out -> buildServeFilesRequestMessage(out, port, nick, fi));
+	}
+
+	public static void buildServeFilesRequestMessage(ByteBuffer out, int port, String nick, FileInfo[] fi) {
+		out.put(DirMessageOps.OPCODE_SERVE_FILES);
+		putString(out, nick);
+		putVarint(out, port);
+		putVarint(out, fi.length);
+		for(FileInfo file : fi) {
+			putFileEntry(out, file);
+		}
+	}
+	
+	/**
+	 * Construye un alta de ficheros de un peer ya registrado como servidor:
+	 * opcode + nick + número de ficheros + una entrada de fichero por fichero.
+	 * Para publicar muchos ficheros se envían varias, cada una con los que
+	 * indique serveFilesBatchSize.
+	 * 
+	 * @throws BufferOverflowException Si los ficheros no caben en un datagrama
+	 */
+	public static byte[] buildServeFilesAddRequestMessage(String nick, List<FileInfo> files) {
+		return toArray(out -> buildServeFilesAddRequestMessage(out, nick, files));
+	}
+
+	public static void buildServeFilesAddRequestMessage(ByteBuffer out, String nick, List<FileInfo> files) {
+		out.put(DirMessageOps.OPCODE_SERVE_FILES_ADD);
+		putString(out, nick);
+		putVarint(out, files.size());
+		for(FileInfo file : files) {
+			putFileEntry(out, file);
+		}
+	}
+
+	/**
+	 * Construye una baja de ficheros de un peer servidor: opcode + nick + número
+	 * de ficheros + el digest de cada fichero. Como mucho caben
+	 * removeFilesBatchSize(nick) ficheros.
+	 * 
+	 * @param hashes Los hashes de los ficheros que deja de servir
+	 * @throws BufferOverflowException Si los hashes no caben en un datagrama
+	 */
+	public static byte[] buildServeFilesRemoveRequestMessage(String nick, List<String> hashes) {
+		return toArray(out -> buildServeFilesRemoveRequestMessage(out, nick, hashes));
+	}
+
+	public static void buildServeFilesRemoveRequestMessage(ByteBuffer out, String nick, List<String> hashes) {
+		out.put(DirMessageOps.OPCODE_SERVE_FILES_REMOVE);
+		putString(out, nick);
+		putVarint(out, hashes.size());
+		for(String hash : hashes) {
+			putDigest(out, hash);
+		}
+	}
+
+	/**
+	 * Calcula cuántos ficheros, a partir de la posición from, caben en una
+	 * petición SERVE_FILES o SERVE_FILES_ADD del nick sin pasar de
+	 * LIST_PAGE_MAX_SIZE
+	 * 
+	 * @return El número de ficheros, 0 sólo si no queda ninguno o el primero no
+	 *         cabe por sí solo
+	 */
+	public static int serveFilesBatchSize(String nick, List<FileInfo> files, int from) {
+		// Cabecera con el puerto y el número de ficheros más largos posibles
+		int size = OPCODE_SIZE_BYTES + stringSize(nick) + varintSize(0xFFFF) + varintSize(Integer.MAX_VALUE);
+		int count = 0;
+		while (from + count < files.size()) {
+			int entry = fileEntrySize(files.get(from + count));
+			if (size + entry > LIST_PAGE_MAX_SIZE) {
+				break;
+			}
+			size += entry;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return El número máximo de ficheros de una petición SERVE_FILES_REMOVE del
+	 *         nick
+	 */
+	public static int removeFilesBatchSize(String nick) {
+		int header = OPCODE_SIZE_BYTES + stringSize(nick) + varintSize(Integer.MAX_VALUE);
+		return Math.max(0, (LIST_PAGE_MAX_SIZE - header) / DIGEST_SIZE);
 	}
 	
 	public static byte[] buildServeFilesResponseMessage(boolean success) {
-		ByteBuffer bb = ByteBuffer.allocate(OPCODE_SIZE_BYTES);
-		if(success) bb.put(DirMessageOps.OPCODE_SERVE_FILES_OK);
-		else bb.put(DirMessageOps.OPCODE_SERVE_FILES_FAIL);
-		return bb.array();
+		return toArray(out -> buildServeFilesResponseMessage(out, success));
+	}
+
+	public static void buildServeFilesResponseMessage(ByteBuffer out, boolean success) {
+		if(success) out.put(DirMessageOps.OPCODE_SERVE_FILES_OK);
+		else out.put(DirMessageOps.OPCODE_SERVE_FILES_FAIL);
 	}
 	
 	public static boolean processServeFilesResponseMessage(byte[] responseData) {
-		ByteBuffer buf = ByteBuffer.wrap(responseData);
+		return processServeFilesResponseMessage(ByteBuffer.wrap(responseData));
+	}
+
+	public static boolean processServeFilesResponseMessage(ByteBuffer buf) {
 		byte opcode = buf.get();
 		if(opcode == DirMessageOps.OPCODE_SERVE_FILES_OK) {
 			return true;
@@ -405,20 +958,201 @@ public class DirMessage {
 		}
 	}
 
+	/**
+	 * Construye la renovación del registro de un peer servidor: opcode + nick
+	 */
+	public static byte[] buildHeartbeatRequestMessage(String nick) {
+		return toArray(out -> buildHeartbeatRequestMessage(out, nick));
+	}
+
+	public static void buildHeartbeatRequestMessage(ByteBuffer out, String nick) {
+		out.put(DirMessageOps.OPCODE_HEARTBEAT);
+		putString(out, nick);
+	}
+
+	/**
+	 * Construye la respuesta a una renovación: opcode + duración del registro
+	 * renovado en milisegundos (HEARTBEAT_OK), o sólo el opcode si el nick no
+	 * está registrado como servidor (HEARTBEAT_UNKNOWN), por ejemplo porque su
+	 * registro ya ha caducado
+	 * 
+	 * @param leaseMillis La duración del registro, o 0 si no está registrado
+	 */
+	public static byte[] buildHeartbeatResponseMessage(long leaseMillis) {
+		return toArray(out -> buildHeartbeatResponseMessage(out, leaseMillis));
+	}
+
+	public static void buildHeartbeatResponseMessage(ByteBuffer out, long leaseMillis) {
+		if(leaseMillis > 0) {
+			out.put(DirMessageOps.OPCODE_HEARTBEAT_OK);
+			putVarint(out, leaseMillis);
+		}
+		else out.put(DirMessageOps.OPCODE_HEARTBEAT_UNKNOWN);
+	}
+
+	public static long processHeartbeatResponseMessage(byte[] responseData) {
+		return processHeartbeatResponseMessage(ByteBuffer.wrap(responseData));
+	}
+
+	/**
+	 * @return La duración del registro renovado en milisegundos, 0 si el nick
+	 *         no está registrado como servidor, o -1 si la respuesta no es
+	 *         válida
+	 */
+	public static long processHeartbeatResponseMessage(ByteBuffer buf) {
+		byte opcode = buf.get();
+		if(opcode == DirMessageOps.OPCODE_HEARTBEAT_OK) {
+			return getVarint(buf);
+		} else if(opcode == DirMessageOps.OPCODE_HEARTBEAT_UNKNOWN) {
+			return 0;
+		} else {
+			return -1;
+		}
+	}
+
+	/**
+	 * Construye la baja de un peer como servidor de ficheros, sin salir del
+	 * directorio: opcode + nick. La respuesta es SERVE_FILES_OK, o
+	 * SERVE_FILES_FAIL si el nick está registrado como servidor en otra
+	 * dirección.
+	 */
+	public static byte[] buildStopServingRequestMessage(String nick) {
+		return toArray(out -> buildStopServingRequestMessage(out, nick));
+	}
+
+	public static void buildStopServingRequestMessage(ByteBuffer out, String nick) {
+		out.put(DirMessageOps.OPCODE_STOP_SERVING);
+		putString(out, nick);
+	}
+
 	public static byte[] buildLogoutRequestMessage(String nick) {
-		byte[] cadena = nick.getBytes();
-		byte longitud = (byte) nick.length();
-		ByteBuffer bb = ByteBuffer.allocate(DirMessage.OPCODE_SIZE_BYTES * 2 + longitud);
-		bb.put(DirMessageOps.OPCODE_LOGOUT);
-		bb.put(longitud);
-		bb.put(cadena);
-		return bb.array();
+		return toArray(out -> buildLogoutRequestMessage(out, nick));
+	}
+
+	public static void buildLogoutRequestMessage(ByteBuffer out, String nick) {
+		out.put(DirMessageOps.OPCODE_LOGOUT);
+		putString(out, nick);
 	}
 	
 	public static byte[] buildLogoutResponseMessage() {
-		ByteBuffer bb = ByteBuffer.allocate(OPCODE_SIZE_BYTES);
-		bb.put(DirMessageOps.OPCODE_LOGOUT_OK);
-		return bb.array();
+		return toArray(out -> buildLogoutResponseMessage(out));
+	}
+
+	public static void buildLogoutResponseMessage(ByteBuffer out) {
+		out.put(DirMessageOps.OPCODE_LOGOUT_OK);
+	}
+
+	/**
+	 * Construye una petición de los cambios del catálogo posteriores a una
+	 * secuencia: opcode + secuencia
+	 */
+	public static byte[] buildChangesRequestMessage(long since) {
+		return toArray(out -> buildChangesRequestMessage(out, since));
+	}
+
+	public static void buildChangesRequestMessage(ByteBuffer out, long since) {
+		out.put(DirMessageOps.OPCODE_GETCHANGES);
+		putVarint(out, since);
+	}
+
+	/**
+	 * Construye la respuesta a una petición de cambios: opcode + secuencia del
+	 * último cambio del catálogo + número de cambios + cambios. Los cambios son
+	 * los siguientes a la secuencia pedida, en orden; se incluyen los que caben
+	 * en LIST_PAGE_MAX_SIZE, y el cliente pide el resto a continuación.
+	 *
+	 * @param changes  Los cambios posteriores a la secuencia pedida
+	 * @param sequence La secuencia del último cambio del catálogo
+	 */
+	public static byte[] buildChangesResponseMessage(List<DirChange> changes, long sequence) {
+		return toArray(out -> buildChangesResponseMessage(out, changes, sequence));
+	}
+
+	public static void buildChangesResponseMessage(ByteBuffer out, List<DirChange> changes, long sequence) {
+		int maxSize = Math.min(LIST_PAGE_MAX_SIZE, out.remaining());
+		int size = OPCODE_SIZE_BYTES + varintSize(sequence) + varintSize(changes.size());
+		int count = 0;
+		while (count < changes.size()) {
+			int entry = changeSize(changes.get(count));
+			if (size + entry > maxSize) {
+				break;
+			}
+			size += entry;
+			count++;
+		}
+		out.put(DirMessageOps.OPCODE_CHANGES);
+		putVarint(out, sequence);
+		putVarint(out, count);
+		for (int i = 0; i < count; i++) {
+			putChange(out, changes.get(i));
+		}
+	}
+
+	/**
+	 * Construye la respuesta a una petición de cambios anteriores a los que
+	 * conserva el directorio: sólo el opcode
+	 */
+	public static byte[] buildChangesTruncatedResponseMessage() {
+		return toArray(out -> buildChangesTruncatedResponseMessage(out));
+	}
+
+	public static void buildChangesTruncatedResponseMessage(ByteBuffer out) {
+		out.put(DirMessageOps.OPCODE_CHANGES_TRUNCATED);
+	}
+
+	public static DirChangeSet processChangesResponseMessage(byte[] data) {
+		return processChangesResponseMessage(ByteBuffer.wrap(data));
+	}
+
+	public static DirChangeSet processChangesResponseMessage(ByteBuffer bb) {
+		byte opcode = bb.get();
+		DirChangeSet result = new DirChangeSet();
+		if (opcode == DirMessageOps.OPCODE_CHANGES_TRUNCATED) {
+			result.truncated = true;
+			return result;
+		}
+		if (opcode != DirMessageOps.OPCODE_CHANGES) {
+			return null;
+		}
+		result.sequence = getVarint(bb);
+		int count = getCount(bb, 2);
+		for (int i = 0; i < count; i++) {
+			result.changes.add(getChange(bb));
+		}
+		return result;
+	}
+
+	/**
+	 * @param knownVersion La versión del catálogo (secuencia) que tiene ya el
+	 *                     cliente, o 0
+	 */
+	public static void buildCatalogRequestMessage(ByteBuffer out, int offset, int limit, long knownVersion) {
+		buildListRequest(out, DirMessageOps.OPCODE_GETCATALOG, offset, limit, knownVersion);
+	}
+
+	/**
+	 * Construye la página del catálogo que empieza en offset: una página de
+	 * lista cuyas entradas son los cambios FILE_ADDED y SERVER_ADDED que crean
+	 * el catálogo, y cuya versión es la secuencia del último cambio incluido
+	 *
+	 * @param catalog El catálogo completo, siempre en el mismo orden
+	 */
+	public static byte[] buildCatalogResponseMessage(List<DirChange> catalog, long sequence, int offset, int limit) {
+		return toArray(out -> buildCatalogResponseMessage(out, catalog, sequence, offset, limit));
+	}
+
+	public static void buildCatalogResponseMessage(ByteBuffer out, List<DirChange> catalog, long sequence,
+			int offset, int limit) {
+		buildListPage(out, DirMessageOps.OPCODE_CATALOG, catalog, sequence, offset, limit, DirMessage::changeSize,
+				DirMessage::putChange);
+	}
+
+	public static DirListPage<DirChange> processCatalogResponseMessage(byte[] data) {
+		return processCatalogResponseMessage(ByteBuffer.wrap(data));
+	}
+
+	public static DirListPage<DirChange> processCatalogResponseMessage(ByteBuffer data) {
+		return processListPage(DirMessageOps.OPCODE_CATALOG, data, DirMessage::getChange);
 	}
 
 	/*
@@ -433,4 +1167,317 @@ public class DirMessage {
 	 */
 	// public static boolean processXXXXXXXResponseMessage(byte[] responseData)
 
+	/**
+	 * Codifica un mensaje en un búfer auxiliar y devuelve una copia con el
+	 * tamaño exacto del mensaje
+	 */
+	private static byte[] toArray(Consumer<ByteBuffer> encoder) {
+		ByteBuffer out = SCRATCH_BUFFERS.acquire();
+		try {
+			encoder.accept(out);
+			return Arrays.copyOf(out.array(), out.position());
+		} finally {
+			SCRATCH_BUFFERS.release(out);
+		}
+	}
+
+	/**
+	 * Tamaño de una entrada de fichero: digest (DIGEST_SIZE bytes, no su
+	 * representación hexadecimal) + nombre + tamaño + un byte que indica si
+	 * sigue la raíz del árbol de Merkle de sus piezas (otro digest). La ruta
+	 * local del fichero no se envía, sólo tiene sentido en el peer que lo sirve.
+	 */
+	private static int fileEntrySize(FileInfo file) {
+		return DIGEST_SIZE + stringSize(file.fileName) + varintSize(file.fileSize) + 1
+				+ ((file.merkleRoot != null) ? DIGEST_SIZE : 0);
+	}
+
+	/**
+	 * @throws IllegalArgumentException Si el hash del fichero no es un digest
+	 *                                  hexadecimal válido
+	 */
+	private static void putFileEntry(ByteBuffer out, FileInfo file) {
+		putDigest(out, file.fileHash);
+		putString(out, file.fileName);
+		putVarint(out, file.fileSize);
+		out.put((byte) ((file.merkleRoot != null) ? 1 : 0));
+		if (file.merkleRoot != null) {
+			putDigest(out, file.merkleRoot);
+		}
+	}
+
+	/**
+	 * Escribe el digest de un fichero a partir de su hash en hexadecimal
+	 * 
+	 * @throws IllegalArgumentException Si el hash no es un digest hexadecimal
+	 *                                  válido
+	 */
+	private static void putDigest(ByteBuffer out, String hash) {
+		if (hash == null || hash.length() != 2 * DIGEST_SIZE || !FileDigest.putChecksumFromHexString(hash, out)) {
+			throw new IllegalArgumentException("Invalid file hash: " + hash);
+		}
+	}
+
+	/**
+	 * Lee un número de ficheros seguido de sus entradas
+	 */
+	private static FileInfo[] getFileEntries(ByteBuffer bb) {
+		FileInfo[] files = new FileInfo[getCount(bb, FILE_ENTRY_MIN_SIZE)];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = getFileEntry(bb);
+		}
+		return files;
+	}
+
+	private static FileInfo getFileEntry(ByteBuffer bb) {
+		String hash = FileDigest.getChecksumHexString(bb, DIGEST_SIZE);
+		String name = getString(bb);
+		long size = getVarint(bb);
+		FileInfo file = new FileInfo(hash, name, size, "");
+		if (bb.get() != 0) {
+			file.merkleRoot = FileDigest.getChecksumHexString(bb, DIGEST_SIZE);
+		}
+		return file;
+	}
+
+	/**
+	 * Tamaño de un fichero localizado: entrada de fichero + número de peers +
+	 * nick y dirección de cada peer
+	 */
+	private static int locationSize(DirLocateResult.Location location) {
+		int size = fileEntrySize(location.file) + varintSize(location.providers.size());
+		for (Map.Entry<String, InetSocketAddress> provider : location.providers.entrySet()) {
+			size += stringSize(provider.getKey()) + addressSize(provider.getValue());
+		}
+		return size;
+	}
+
+	/**
+	 * Tamaño de un cambio del catálogo: tipo + entrada de fichero (FILE_ADDED),
+	 * digest (FILE_REMOVED), nick + dirección (SERVER_ADDED) o nick
+	 * (SERVER_REMOVED)
+	 */
+	private static int changeSize(DirChange change) {
+		switch (change.type) {
+		case DirChange.FILE_ADDED:
+			return 1 + fileEntrySize(change.file);
+		case DirChange.FILE_REMOVED:
+			return 1 + DIGEST_SIZE;
+		case DirChange.SERVER_ADDED:
+			return 1 + stringSize(change.nick) + addressSize(change.address);
+		default:
+			return 1 + stringSize(change.nick);
+		}
+	}
+
+	private static void putChange(ByteBuffer out, DirChange change) {
+		out.put(change.type);
+		switch (change.type) {
+		case DirChange.FILE_ADDED:
+			putFileEntry(out, change.file);
+			break;
+		case DirChange.FILE_REMOVED:
+			putDigest(out, change.fileHash);
+			break;
+		case DirChange.SERVER_ADDED:
+			putString(out, change.nick);
+			putAddress(out, change.address);
+			break;
+		default:
+			putString(out, change.nick);
+		}
+	}
+
+	private static DirChange getChange(ByteBuffer bb) {
+		byte type = bb.get();
+		switch (type) {
+		case DirChange.FILE_ADDED:
+			return DirChange.fileAdded(getFileEntry(bb));
+		case DirChange.FILE_REMOVED:
+			return DirChange.fileRemoved(FileDigest.getChecksumHexString(bb, DIGEST_SIZE));
+		case DirChange.SERVER_ADDED:
+			String nick = getString(bb);
+			InetSocketAddress address = getAddress(bb);
+			if (address == null) {
+				throw new IllegalArgumentException("Invalid address in directory message");
+			}
+			return DirChange.serverAdded(nick, address);
+		case DirChange.SERVER_REMOVED:
+			return DirChange.serverRemoved(getString(bb));
+		default:
+			throw new IllegalArgumentException("Unknown catalog change type: " + type);
+		}
+	}
+
+	/**
+	 * Tamaño de una dirección de socket: longitud de la IP + bytes de la IP (4
+	 * en IPv4 y 16 en IPv6) + puerto
+	 */
+	private static int addressSize(InetSocketAddress addr) {
+		int length = addr.getAddress().getAddress().length;
+		return varintSize(length) + length + varintSize(addr.getPort());
+	}
+
+	private static void putAddress(ByteBuffer out, InetSocketAddress addr) {
+		byte[] ip = addr.getAddress().getAddress();
+		putVarint(out, ip.length);
+		out.put(ip);
+		putVarint(out, addr.getPort());
+	}
+
+	/**
+	 * @return La dirección, o null si la IP no tiene una longitud válida
+	 */
+	private static InetSocketAddress getAddress(ByteBuffer bb) {
+		byte[] ip = new byte[getCount(bb, 1)];
+		bb.get(ip);
+		int port = getVarintInt(bb);
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+		} catch (UnknownHostException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Tamaño de una cadena codificada en UTF-8 precedida de su longitud en bytes
+	 * (varint)
+	 */
+	private static int stringSize(String value) {
+		int length = utf8Length(value);
+		return varintSize(length) + length;
+	}
+
+	/**
+	 * Escribe una cadena en UTF-8 precedida de su longitud en bytes (varint),
+	 * codificándola directamente en el búfer. Como String.getBytes, los
+	 * surrogates sin pareja se sustituyen por '?'.
+	 */
+	private static void putString(ByteBuffer out, String value) {
+		putVarint(out, utf8Length(value));
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xC0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < value.length()
+						&& Character.isLowSurrogate(value.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, value.charAt(++i));
+					out.put((byte) (0xF0 | (cp >> 18)));
+					out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+					out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+					out.put((byte) (0x80 | (cp & 0x3F)));
+				} else {
+					out.put((byte) '?');
+				}
+			} else {
+				out.put((byte) (0xE0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	private static int utf8Length(String value) {
+		int length = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < value.length()
+						&& Character.isLowSurrogate(value.charAt(i + 1))) {
+					i++;
+					length += 4;
+				} else {
+					length++;
+				}
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Lee una cadena en UTF-8 precedida de su longitud en bytes (varint),
+	 * decodificándola directamente del array del búfer
+	 */
+	private static String getString(ByteBuffer bb) {
+		int length = getCount(bb, 1);
+		String value;
+		if (bb.hasArray()) {
+			value = new String(bb.array(), bb.arrayOffset() + bb.position(), length, StandardCharsets.UTF_8);
+			bb.position(bb.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			bb.get(bytes);
+			value = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return value;
+	}
+
+	/**
+	 * Número de bytes que ocupa un valor codificado como varint
+	 */
+	private static int varintSize(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Escribe un valor sin signo como varint: 7 bits por byte, empezando por los
+	 * menos significativos, con el bit alto a 1 en todos los bytes salvo el
+	 * último. Los valores menores que 128 ocupan un solo byte.
+	 */
+	private static void putVarint(ByteBuffer bb, long value) {
+		while ((value & ~0x7FL) != 0) {
+			bb.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		bb.put((byte) value);
+	}
+
+	private static long getVarint(ByteBuffer bb) {
+		long value = 0;
+		for (int shift = 0; shift < Long.SIZE; shift += 7) {
+			byte b = bb.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint in directory message");
+	}
+
+	private static int getVarintInt(ByteBuffer bb) {
+		long value = getVarint(bb);
+		if (value < 0 || value > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Value out of range in directory message: " + value);
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Lee un número de elementos y comprueba que caben en lo que queda del
+	 * mensaje, suponiendo que cada uno ocupa al menos minElementSize bytes, para
+	 * no reservar memoria a partir de un número corrupto
+	 */
+	private static int getCount(ByteBuffer bb, int minElementSize) {
+		int count = getVarintInt(bb);
+		if (count > bb.remaining() / minElementSize) {
+			throw new BufferUnderflowException();
+		}
+		return count;
+	}
+
 }
@@ -23,6 +23,22 @@ public class DirMessageOps {
 	public static final byte OPCODE_FILELIST = 15;
 	public static final byte OPCODE_LOGOUT = 16;
 	public static final byte OPCODE_LOGOUT_OK = 17;
+	public static final byte OPCODE_SEARCH = 18;
+	public static final byte OPCODE_SEARCH_RESULTS = 19;
+	public static final byte OPCODE_NOT_MODIFIED = 20;
+	public static final byte OPCODE_GETCHANGES = 21;
+	public static final byte OPCODE_CHANGES = 22;
+	public static final byte OPCODE_CHANGES_TRUNCATED = 23;
+	public static final byte OPCODE_GETCATALOG = 24;
+	public static final byte OPCODE_CATALOG = 25;
+	public static final byte OPCODE_SERVE_FILES_ADD = 26;
+	public static final byte OPCODE_SERVE_FILES_REMOVE = 27;
+	public static final byte OPCODE_HEARTBEAT = 28;
+	public static final byte OPCODE_HEARTBEAT_OK = 29;
+	public static final byte OPCODE_HEARTBEAT_UNKNOWN = 30;
+	public static final byte OPCODE_LOCATE = 31;
+	public static final byte OPCODE_LOCATE_RESULTS = 32;
+	public static final byte OPCODE_STOP_SERVING = 33;
 
 	private static final Byte[] _valid_opcodes = { 
 			OPCODE_LOGIN, 
@@ -41,7 +57,23 @@ public class DirMessageOps {
 			OPCODE_GETFILES, 
 			OPCODE_FILELIST,
 			OPCODE_LOGOUT,
-			OPCODE_LOGOUT_OK };
+			OPCODE_LOGOUT_OK,
+			OPCODE_SEARCH,
+			OPCODE_SEARCH_RESULTS,
+			OPCODE_NOT_MODIFIED,
+			OPCODE_GETCHANGES,
+			OPCODE_CHANGES,
+			OPCODE_CHANGES_TRUNCATED,
+			OPCODE_GETCATALOG,
+			OPCODE_CATALOG,
+			OPCODE_SERVE_FILES_ADD,
+			OPCODE_SERVE_FILES_REMOVE,
+			OPCODE_HEARTBEAT,
+			OPCODE_HEARTBEAT_OK,
+			OPCODE_HEARTBEAT_UNKNOWN,
+			OPCODE_LOCATE,
+			OPCODE_LOCATE_RESULTS,
+			OPCODE_STOP_SERVING };
 	private static final String[] _valid_operations_str = { 
 			"SIGNIN", 
 			"SIGNIN_OK", 
@@ -59,7 +91,23 @@ public class DirMessageOps {
 			"GET_FILELIST", 
 			"FILELIST",
 			"LOGOUT",
-			"LOGOUT_OK" };
+			"LOGOUT_OK",
+			"SEARCH",
+			"SEARCH_RESULTS",
+			"NOT_MODIFIED",
+			"GET_CHANGES",
+			"CHANGES",
+			"CHANGES_TRUNCATED",
+			"GET_CATALOG",
+			"CATALOG",
+			"SERVE_FILES_ADD",
+			"SERVE_FILES_REMOVE",
+			"HEARTBEAT",
+			"HEARTBEAT_OK",
+			"HEARTBEAT_UNKNOWN",
+			"LOCATE",
+			"LOCATE_RESULTS",
+			"STOP_SERVING" };
 
 	private static Map<String, Byte> _operation_to_opcode;
 	private static Map<Byte, String> _opcode_to_operation;
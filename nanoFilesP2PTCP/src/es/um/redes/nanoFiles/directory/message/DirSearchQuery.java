@@ -0,0 +1,98 @@
+package es.um.redes.nanoFiles.directory.message;
+
+import java.util.Locale;
+
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Criterios de una búsqueda de ficheros en el directorio (SEARCH). Un fichero
+ * coincide si cumple todos los criterios indicados; los que no se indican
+ * (null o el valor por defecto) no se aplican.
+ */
+public class DirSearchQuery {
+
+	/**
+	 * Número máximo de resultados si no se indica otro
+	 */
+	public static final int DEFAULT_LIMIT = 100;
+
+	/**
+	 * Texto que debe aparecer en el nombre del fichero (sin distinguir
+	 * mayúsculas), o null
+	 */
+	public String name = null;
+	/**
+	 * Si el nombre debe empezar por el texto en lugar de contenerlo
+	 */
+	public boolean namePrefix = false;
+	/**
+	 * Si el nombre debe parecerse al texto (búsqueda aproximada, que tolera
+	 * erratas) en lugar de contenerlo
+	 */
+	public boolean nameFuzzy = false;
+	/**
+	 * Rango de tamaños en bytes, ambos extremos incluidos
+	 */
+	public long minSize = 0;
+	public long maxSize = Long.MAX_VALUE;
+	/**
+	 * Prefijo del hash del fichero (sin distinguir mayúsculas), o null
+	 */
+	public String hashPrefix = null;
+	/**
+	 * Número máximo de resultados a devolver
+	 */
+	public int limit = DEFAULT_LIMIT;
+
+	/**
+	 * @return El nombre a buscar en minúsculas, o null si no se busca por nombre
+	 */
+	public String getNormalizedName() {
+		return (name == null || name.isEmpty()) ? null : name.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return El prefijo del hash en minúsculas, o null si no se busca por hash
+	 */
+	public String getNormalizedHashPrefix() {
+		return (hashPrefix == null || hashPrefix.isEmpty()) ? null : hashPrefix.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Comprueba si un fichero cumple todos los criterios de la búsqueda
+	 */
+	public boolean matches(FileInfo file) {
+		if (file.fileSize < minSize || file.fileSize > maxSize) {
+			return false;
+		}
+		String hash = getNormalizedHashPrefix();
+		if (hash != null && !file.fileHash.toLowerCase(Locale.ROOT).startsWith(hash)) {
+			return false;
+		}
+		String needle = getNormalizedName();
+		// El parecido de una búsqueda aproximada lo decide el índice del directorio
+		if (needle != null && !nameFuzzy) {
+			String fileName = file.fileName.toLowerCase(Locale.ROOT);
+			if (namePrefix ? !fileName.startsWith(needle) : !fileName.contains(needle)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String toString() {
+		StringBuffer strBuf = new StringBuffer();
+		if (name != null) {
+			String match = nameFuzzy ? "resembles" : (namePrefix ? "starts with" : "contains");
+			strBuf.append("name " + match + " \"" + name + "\" ");
+		}
+		if (minSize > 0 || maxSize < Long.MAX_VALUE) {
+			strBuf.append("size in [" + minSize + ", " + (maxSize == Long.MAX_VALUE ? "-" : maxSize) + "] ");
+		}
+		if (hashPrefix != null) {
+			strBuf.append("hash starts with " + hashPrefix + " ");
+		}
+		strBuf.append("(limit " + limit + ")");
+		return strBuf.toString();
+	}
+}
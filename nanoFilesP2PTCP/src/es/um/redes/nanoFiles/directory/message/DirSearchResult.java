@@ -0,0 +1,20 @@
+package es.um.redes.nanoFiles.directory.message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Respuesta del directorio a una búsqueda (SEARCH_RESULTS): los ficheros que
+ * cumplen los criterios, hasta el límite pedido, y si había más.
+ */
+public class DirSearchResult {
+
+	public List<FileInfo> files = new ArrayList<FileInfo>();
+	/**
+	 * Verdadero si hay más ficheros que cumplen los criterios que no se han
+	 * incluido (por el límite de resultados o porque no cabían en el datagrama)
+	 */
+	public boolean truncated = false;
+}
@@ -0,0 +1,81 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import es.um.redes.nanoFiles.directory.message.DirChange;
+
+/**
+ * Registro de los últimos cambios del catálogo del directorio, para que los
+ * clientes que tienen una copia del catálogo puedan pedir sólo los cambios
+ * posteriores a la suya (GETCHANGES). Cada cambio recibe el número de
+ * secuencia siguiente al del anterior. Se conservan como mucho los últimos
+ * capacity cambios, en un array circular; a quien pida cambios más antiguos
+ * hay que enviarle el catálogo completo.
+ *
+ * No es seguro para varios hilos: el directorio lo usa siempre con su propio
+ * cerrojo tomado, el mismo con el que modifica el catálogo, para que la
+ * secuencia corresponda exactamente al estado del catálogo.
+ */
+public class ChangeLog {
+
+	private final DirChange[] ring;
+	/**
+	 * Secuencia del último cambio registrado
+	 */
+	private long sequence;
+	/**
+	 * Número de cambios conservados (los de secuencia sequence - size + 1 a
+	 * sequence)
+	 */
+	private int size = 0;
+
+	/**
+	 * @param capacity        Número máximo de cambios conservados
+	 * @param initialSequence Secuencia del catálogo vacío; el primer cambio será
+	 *                        el siguiente
+	 */
+	public ChangeLog(int capacity, long initialSequence) {
+		this.ring = new DirChange[capacity];
+		this.sequence = initialSequence;
+	}
+
+	/**
+	 * Registra un cambio, descartando el más antiguo si el registro está lleno
+	 *
+	 * @return La secuencia asignada al cambio
+	 */
+	public long append(DirChange change) {
+		sequence++;
+		ring[(int) (sequence % ring.length)] = change;
+		if (size < ring.length) {
+			size++;
+		}
+		return sequence;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Devuelve los cambios posteriores a una secuencia, en orden
+	 *
+	 * @param since      La secuencia del último cambio que tiene el cliente
+	 * @param maxChanges Número máximo de cambios a devolver
+	 * @return Los cambios, o null si el registro ya no los tiene todos (o la
+	 *         secuencia es posterior a la actual, de otra ejecución del
+	 *         directorio)
+	 */
+	public List<DirChange> since(long since, int maxChanges) {
+		if (since < sequence - size || since > sequence) {
+			return null;
+		}
+		int count = (int) Math.min(sequence - since, maxChanges);
+		List<DirChange> changes = new ArrayList<DirChange>(count);
+		for (long seq = since + 1; seq <= since + count; seq++) {
+			changes.add(ring[(int) (seq % ring.length)]);
+		}
+		return changes;
+	}
+}
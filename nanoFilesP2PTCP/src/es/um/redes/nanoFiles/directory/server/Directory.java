@@ -1,6 +1,6 @@
 package es.um.redes.nanoFiles.directory.server;
 
-import java.net.SocketException;
+import java.io.IOException;
 
 public class Directory {
 	public static final int DIRECTORY_PORT = 6868;
@@ -8,38 +8,53 @@ public class Directory {
 
 	public static void main(String[] args) {
 		double datagramCorruptionProbability = DEFAULT_CORRUPTION_PROBABILITY;
+		int numWorkers = DirectoryThread.DEFAULT_WORKERS;
 
 		/**
-		 * Command line argument to directory is optional, if not specified, default
-		 * value is used: -loss: probability of corruption of received datagrams
+		 * Command line arguments to directory are optional, if not specified, default
+		 * values are used: -loss: probability of corruption of received datagrams,
+		 * -workers: number of threads processing requests
 		 */
 		String arg;
 
-		// Analizamos si hay parámetro
-		if (args.length > 0 && args[0].startsWith("-")) {
-			arg = args[0];
-			// Examinamos si es un parámetro válido
-			if (arg.equals("-loss")) {
-				if (args.length == 2) {
-					try {
-						// El segundo argumento contiene la probabilidad de descarte
-						datagramCorruptionProbability = Double.parseDouble(args[1]);
-					} catch (NumberFormatException e) {
-						System.err.println("Wrong value passed to option " + arg);
-						return;
+		// Analizamos los parámetros
+		for (int i = 0; i < args.length; i++) {
+			arg = args[i];
+			if (!arg.startsWith("-")) {
+				System.err.println("Illegal argument " + arg);
+				return;
+			}
+			if (i + 1 == args.length) {
+				System.err.println("option " + arg + " requires a value");
+				return;
+			}
+			try {
+				// Examinamos si es un parámetro válido
+				if (arg.equals("-loss")) {
+					// El siguiente argumento contiene la probabilidad de descarte
+					datagramCorruptionProbability = Double.parseDouble(args[++i]);
+				} else if (arg.equals("-workers")) {
+					// El siguiente argumento contiene el número de hilos trabajadores
+					numWorkers = Integer.parseInt(args[++i]);
+					if (numWorkers < 1) {
+						throw new NumberFormatException();
 					}
-				} else
-					System.err.println("option " + arg + " requires a value");
-			} else {
-				System.err.println("Illegal option " + arg);
+				} else {
+					System.err.println("Illegal option " + arg);
+					return;
+				}
+			} catch (NumberFormatException e) {
+				System.err.println("Wrong value passed to option " + arg);
+				return;
 			}
 		}
 		System.out.println("Probability of corruption for received datagrams: " + datagramCorruptionProbability);
+		System.out.println("Worker threads: " + numWorkers);
 		DirectoryThread dt;
 		try {
-			dt = new DirectoryThread(DIRECTORY_PORT, datagramCorruptionProbability);
+			dt = new DirectoryThread(DIRECTORY_PORT, datagramCorruptionProbability, numWorkers);
 			dt.start();
-		} catch (SocketException e) {
+		} catch (IOException e) {
 			System.err.println("Directory cannot create UDP socket on port " + DIRECTORY_PORT);
 			System.err.println("Most likely a Directory process is already running and listening on that port...");
 			System.exit(-1);
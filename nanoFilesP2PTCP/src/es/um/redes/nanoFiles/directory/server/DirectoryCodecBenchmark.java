@@ -0,0 +1,154 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import es.um.redes.nanoFiles.directory.message.DirMessage;
+import es.um.redes.nanoFiles.directory.message.DirMessageOps;
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Mide la memoria que reserva el directorio al atender cada tipo de petición
+ * (procesar el datagrama recibido, construir la respuesta y enviarla), con los
+ * contadores de memoria reservada por hilo de la JVM. Como comparación, mide
+ * también lo que reserva el mismo intercambio con los métodos de DirMessage
+ * que trabajan con arrays (copiar el datagrama recibido, procesarlo y
+ * construir la respuesta en un array nuevo).
+ *
+ * Las respuestas se envían a un socket local que no las lee.
+ *
+ * Uso: java es.um.redes.nanoFiles.directory.server.DirectoryCodecBenchmark
+ * [iterations]
+ */
+public class DirectoryCodecBenchmark {
+
+	private static final int NUM_USERS = 1000;
+	private static final int NUM_SERVERS = 20;
+	private static final int FILES_PER_SERVER = 50;
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	public static void main(String[] args) throws IOException {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		DirectoryThread directory = new DirectoryThread(0, 0, 1);
+		DatagramChannel sink = DatagramChannel.open()
+				.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		InetSocketAddress client = (InetSocketAddress) sink.getLocalAddress();
+
+		ByteBuffer request = ByteBuffer.allocate(DirMessage.PACKET_MAX_SIZE);
+		for (int i = 0; i < NUM_USERS; i++) {
+			String nick = "user" + i;
+			handle(directory, request, out -> DirMessage.buildRegisterRequestMessage(out, nick), client);
+		}
+		for (int s = 0; s < NUM_SERVERS; s++) {
+			FileInfo[] files = new FileInfo[FILES_PER_SERVER];
+			for (int f = 0; f < files.length; f++) {
+				int n = s * FILES_PER_SERVER + f;
+				files[f] = new FileInfo(String.format("%040x", n * 2654435761L), "file-" + n + ".dat", n * 1000L, "");
+			}
+			String nick = "user" + s;
+			int port = 10000 + s;
+			handle(directory, request, out -> DirMessage.buildServeFilesRequestMessage(out, port, nick, files), client);
+		}
+
+		Map<String, Consumer<ByteBuffer>> requests = new LinkedHashMap<String, Consumer<ByteBuffer>>();
+		requests.put("LOGIN", out -> DirMessage.buildLoginRequestMessage(out));
+		requests.put("REGISTER (taken)", out -> DirMessage.buildRegisterRequestMessage(out, "user1"));
+		requests.put("LOOKUP", out -> DirMessage.buildUserLookupRequestMessage(out, "user1"));
+		requests.put("GETUSERS (500)", out -> DirMessage.buildUserListRequestMessage(out, 0, 500, 0));
+		requests.put("GETFILES (500)", out -> DirMessage.buildFileListRequestMessage(out, 0, 500, 0));
+
+		System.out.println(String.format("%-18s %16s %16s", "Request", "buffers B/req", "arrays B/req"));
+		long gcCountBefore = gcCount();
+		long gcMillisBefore = gcMillis();
+		for (Map.Entry<String, Consumer<ByteBuffer>> entry : requests.entrySet()) {
+			request.clear();
+			DirMessage.putRequestId(request, 1);
+			int bodyStart = request.position();
+			entry.getValue().accept(request);
+			request.flip();
+			// La variante con arrays sólo procesa el mensaje, sin la cabecera
+			byte[] datagram = new byte[request.limit() - bodyStart];
+			request.position(bodyStart);
+			request.get(datagram);
+
+			double pooled = 0, arrays = 0;
+			for (int round = 0; round < 2; round++) {
+				// La primera ronda sólo calienta la JVM
+				long start = THREADS.getCurrentThreadAllocatedBytes();
+				for (int i = 0; i < iterations; i++) {
+					request.rewind();
+					directory.processRequestFromClient(request, client);
+				}
+				long middle = THREADS.getCurrentThreadAllocatedBytes();
+				for (int i = 0; i < iterations; i++) {
+					respondWithArrays(directory, datagram);
+				}
+				long end = THREADS.getCurrentThreadAllocatedBytes();
+				pooled = (double) (middle - start) / iterations;
+				arrays = (double) (end - middle) / iterations;
+			}
+			System.out.println(String.format("%-18s %16.1f %16.1f", entry.getKey(), pooled, arrays));
+		}
+		System.out.println("Collections during the measurements: " + (gcCount() - gcCountBefore) + " ("
+				+ (gcMillis() - gcMillisBefore) + " ms)");
+		sink.close();
+		System.exit(0);
+	}
+
+	private static void handle(DirectoryThread directory, ByteBuffer request, Consumer<ByteBuffer> encoder,
+			InetSocketAddress client) throws IOException {
+		request.clear();
+		DirMessage.putRequestId(request, 0);
+		encoder.accept(request);
+		request.flip();
+		directory.processRequestFromClient(request, client);
+	}
+
+	/**
+	 * El mismo intercambio con arrays: copia del datagrama, mensaje procesado y
+	 * respuesta construida en un array nuevo (sin enviarla)
+	 */
+	private static byte[] respondWithArrays(DirectoryThread directory, byte[] datagram) {
+		DirMessage msg = DirMessage.buildMessageFromReceivedData(datagram.clone());
+		switch (msg.getOpcode()) {
+		case DirMessageOps.OPCODE_LOGIN:
+			return DirMessage.buildLoginOKResponseMessage(NUM_SERVERS);
+		case DirMessageOps.OPCODE_REGISTER_USERNAME:
+			return DirMessage.buildRegisterResponseMessage(false);
+		case DirMessageOps.OPCODE_LOOKUP_USERNAME:
+			return DirMessage.buildUserLookupResponseMessage(directory.getServerAddress(msg.getUserName()));
+		case DirMessageOps.OPCODE_GETUSERS:
+			return DirMessage.buildUserListResponseMessage(directory.getUserSnapshot(), 1, msg.getOffset(),
+					msg.getLimit());
+		default:
+			return DirMessage.buildFileListResponseMessage(directory.getFileSnapshot(), 1, msg.getOffset(),
+					msg.getLimit());
+		}
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += gc.getCollectionCount();
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += gc.getCollectionTime();
+		}
+		return millis;
+	}
+}
@@ -2,23 +2,80 @@ package es.um.redes.nanoFiles.directory.server;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import es.um.redes.nanoFiles.client.application.NanoFiles;
+import es.um.redes.nanoFiles.directory.message.DirChange;
+import es.um.redes.nanoFiles.directory.message.DirLocateResult;
 import es.um.redes.nanoFiles.directory.message.DirMessage;
 import es.um.redes.nanoFiles.directory.message.DirMessageOps;
+import es.um.redes.nanoFiles.directory.message.DirSearchQuery;
+import es.um.redes.nanoFiles.util.ByteBufferPool;
 import es.um.redes.nanoFiles.util.FileInfo;
 
 public class DirectoryThread extends Thread {
 
 	/**
-	 * Socket de comunicación UDP con el cliente UDP (DirectoryConnector)
+	 * Número de hilos trabajadores por defecto (uno por núcleo)
 	 */
-	protected DatagramSocket socket = null;
+	public static final int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Número máximo de resultados de una búsqueda, aunque el cliente pida más
+	 */
+	public static final int MAX_SEARCH_RESULTS = 1000;
+
+	/**
+	 * Número máximo de ficheros de una localización, aunque el cliente pida más
+	 */
+	public static final int MAX_LOCATE_RESULTS = 100;
+
+	/**
+	 * Número máximo de búferes libres que se guardan para reutilizar (de
+	 * PACKET_MAX_SIZE bytes cada uno)
+	 */
+	private static final int MAX_POOLED_BUFFERS = 64;
+
+	/**
+	 * Número de cambios del catálogo que se conservan para GETCHANGES, y número
+	 * máximo de cambios que se consultan para una respuesta (se envían los que
+	 * quepan en un datagrama)
+	 */
+	private static final int CHANGE_LOG_CAPACITY = 65536;
+	private static final int MAX_CHANGES_PER_RESPONSE = 4096;
+
+	/**
+	 * Duración del registro de un peer servidor, que caduca (con sus ficheros)
+	 * si el peer no lo renueva antes con HEARTBEAT o con otra publicación. Los
+	 * registros se revisan cada LEASE_TICK milisegundos, en una rueda de
+	 * LEASE_WHEEL_SLOTS casillas (una vuelta algo más larga que la duración).
+	 */
+	public static final long LEASE_DURATION = 30000;
+	private static final long LEASE_TICK = 100;
+	private static final int LEASE_WHEEL_SLOTS = 512;
+
+	/**
+	 * Canal de comunicación UDP con el cliente UDP (DirectoryConnector). Este
+	 * hilo recibe por él las solicitudes y los hilos trabajadores envían las
+	 * respuestas (un DatagramChannel admite uso concurrente desde varios hilos)
+	 */
+	protected DatagramChannel channel = null;
 
 	/**
 	 * Probabilidad de descartar un mensaje recibido en el directorio (para simular
@@ -26,50 +83,140 @@ public class DirectoryThread extends Thread {
 	 */
 	protected double messageDiscardProbability;
 
+	/**
+	 * Hilos trabajadores que procesan las solicitudes recibidas
+	 */
+	private ExecutorService workers;
+
+	/**
+	 * Hilo que hace caducar los registros de los peers servidores que no se han
+	 * renovado
+	 */
+	private final ScheduledExecutorService leaseTimer;
+
+	/**
+	 * Búferes de los datagramas recibidos y de las respuestas, que se reutilizan
+	 * de una petición a otra. Cada petición en proceso usa dos, así que se
+	 * guardan los necesarios para tener ocupados a todos los trabajadores y
+	 * algunas peticiones en cola.
+	 */
+	private final ByteBufferPool buffers;
+
 	/**
 	 * Estructura para guardar los nicks de usuarios registrados, y la fecha/hora de
 	 * registro
 	 * 
 	 */
-	private HashMap<String, LocalDateTime> nicks;
+	private ConcurrentHashMap<String, LocalDateTime> nicks;
 	/**
 	 * Estructura para guardar los usuarios servidores (nick, direcciones de socket
 	 * TCP)
 	 */
 	// TCP)
-	private HashMap<String, InetSocketAddress> servers;
+	private ConcurrentHashMap<String, InetSocketAddress> servers;
 	/**
 	 * Estructura para guardar la lista de ficheros publicados por todos los peers
 	 * servidores, cada fichero identificado por su hash
 	 */
-	private HashMap<String, FileInfo> files;
+	private ConcurrentHashMap<String, FileInfo> files;
+	/**
+	 * Hashes de los ficheros que publica cada peer servidor, y nicks de los
+	 * peers que publican cada fichero: un fichero sigue en el catálogo mientras
+	 * lo publique alguno. Los hashes de fileProviders están ordenados, para
+	 * localizar los ficheros por prefijo del hash (LOCATE). Se usan con el
+	 * cerrojo del registro de cambios.
+	 */
+	private final Map<String, Set<String>> serverFiles = new HashMap<String, Set<String>>();
+	private final TreeMap<String, Set<String>> fileProviders = new TreeMap<String, Set<String>>();
+	/**
+	 * Índices de los ficheros publicados, para responder a las búsquedas
+	 */
+	private FileIndex fileIndex = new FileIndex();
+
+	/**
+	 * Primera versión de las listas y secuencia inicial del catálogo: el
+	 * instante de arranque del directorio en milisegundos. Así, en las
+	 * peticiones 0 indica que el cliente no tiene ninguna copia, y tras
+	 * reiniciar el directorio las versiones y secuencias que tuvieran los
+	 * clientes de la ejecución anterior no coinciden con las nuevas.
+	 */
+	private final long initialVersion = System.currentTimeMillis();
+
+	/**
+	 * Versiones de la lista de usuarios y de la de ficheros, que se incrementan
+	 * con cada cambio, y las últimas copias ordenadas de ambas listas. Las
+	 * páginas de USERLIST y FILELIST se sirven de estas copias, que sólo se
+	 * reconstruyen cuando la lista ha cambiado, de modo que todas las páginas de
+	 * una misma versión usan el mismo orden.
+	 */
+	private final AtomicLong nicksVersion = new AtomicLong(initialVersion);
+	private final AtomicLong filesVersion = new AtomicLong(initialVersion);
+	private volatile ListSnapshot<String> nicksSnapshot = new ListSnapshot<String>(-1, Collections.emptyList());
+	private volatile ListSnapshot<FileInfo> filesSnapshot = new ListSnapshot<FileInfo>(-1, Collections.emptyList());
+
+	/**
+	 * Registro de los cambios del catálogo (ficheros y peers servidores). Su
+	 * cerrojo protege también las modificaciones del catálogo, de modo que cada
+	 * cambio se registra en el mismo orden en que se aplica, y la copia del
+	 * catálogo completo que se sirve en CATALOG (que usa la secuencia del
+	 * registro como versión).
+	 */
+	private final ChangeLog changes = new ChangeLog(CHANGE_LOG_CAPACITY, initialVersion);
+	/**
+	 * Plazos de los registros de los peers servidores, por nick. Se modifican
+	 * con el cerrojo del registro de cambios.
+	 */
+	private final LeaseWheel<String> leases = new LeaseWheel<String>(LEASE_WHEEL_SLOTS,
+			TimeUnit.MILLISECONDS.toNanos(LEASE_TICK), System.nanoTime());
+	private ListSnapshot<DirChange> catalogSnapshot = new ListSnapshot<DirChange>(-1, Collections.emptyList());
+
+	private static class ListSnapshot<T> {
+		final long version;
+		final List<T> entries;
+
+		ListSnapshot(long version, List<T> entries) {
+			this.version = version;
+			this.entries = entries;
+		}
+	}
 
-	public DirectoryThread(int directoryPort, double corruptionProbability) throws SocketException {
+	public DirectoryThread(int directoryPort, double corruptionProbability) throws IOException {
+		this(directoryPort, corruptionProbability, DEFAULT_WORKERS);
+	}
+
+	public DirectoryThread(int directoryPort, double corruptionProbability, int numWorkers) throws IOException {
 		// Crear dirección de socket con el puerto en el que escucha el directorio
 		InetSocketAddress addr = new InetSocketAddress(directoryPort);
-		// Crear el socket UDP asociado a la dirección de socket anterior
-		socket = new DatagramSocket(addr);
+		// Crear el canal UDP asociado a la dirección de socket anterior
+		channel = DatagramChannel.open();
+		channel.bind(addr);
 		messageDiscardProbability = corruptionProbability;
-		nicks = new HashMap<String, LocalDateTime>();
-		servers = new HashMap<String, InetSocketAddress>();
-		files = new HashMap<String, FileInfo>();
+		workers = Executors.newFixedThreadPool(numWorkers);
+		buffers = new ByteBufferPool(DirMessage.PACKET_MAX_SIZE, Math.min(MAX_POOLED_BUFFERS, 4 * numWorkers));
+		nicks = new ConcurrentHashMap<String, LocalDateTime>();
+		servers = new ConcurrentHashMap<String, InetSocketAddress>();
+		files = new ConcurrentHashMap<String, FileInfo>();
+		leaseTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "DirectoryLeases");
+			t.setDaemon(true);
+			return t;
+		});
 	}
 
 	public void run() {
-		byte[] receptionBuffer = new byte[DirMessage.PACKET_MAX_SIZE];
-		DatagramPacket requestPacket = new DatagramPacket(receptionBuffer, receptionBuffer.length);
+		ByteBuffer receptionBuffer = buffers.acquire();
 		InetSocketAddress clientId = null;
 
 		System.out.println("Directory starting...");
+		leaseTimer.scheduleAtFixedRate(this::expireLeases, LEASE_TICK, LEASE_TICK, TimeUnit.MILLISECONDS);
 
 		while (true) {
 			try {
 
-				// Recibimos a través del socket el datagrama con mensaje de solicitud
-				socket.receive(requestPacket);
-
+				// Recibimos a través del canal el datagrama con mensaje de solicitud
+				receptionBuffer.clear();
 				// Averiguamos quién es el cliente
-				clientId = (InetSocketAddress) requestPacket.getSocketAddress();
+				clientId = (InetSocketAddress) channel.receive(receptionBuffer);
 
 				// Vemos si el mensaje debe ser descartado por la probabilidad de descarte
 				double rand = Math.random();
@@ -78,10 +225,23 @@ public class DirectoryThread extends Thread {
 					continue;
 				}
 
-				// Analizamos la solicitud y la procesamos
+				// Analizamos la solicitud y la procesamos en un hilo trabajador
 
-				if (requestPacket.getData().length > 0) {
-					processRequestFromClient(requestPacket.getData(), clientId);
+				if (receptionBuffer.position() > 0) {
+					// El trabajador procesa el datagrama en el mismo búfer y lo devuelve al pool
+					ByteBuffer data = receptionBuffer;
+					data.flip();
+					receptionBuffer = buffers.acquire();
+					InetSocketAddress clientAddr = clientId;
+					workers.execute(() -> {
+						try {
+							processRequestFromClient(data, clientAddr);
+						} catch (IOException | RuntimeException e) {
+							System.err.println("Directory failed to process request from " + clientAddr + ": " + e);
+						} finally {
+							buffers.release(data);
+						}
+					});
 				} else {
 					System.err.println("Directory received EMPTY datagram from " + clientId);
 				}
@@ -91,118 +251,569 @@ public class DirectoryThread extends Thread {
 				break;
 			}
 		}
-		// Cerrar el socket
-		socket.close();
+		// Cerrar el canal y terminar los trabajadores
+		workers.shutdown();
+		leaseTimer.shutdownNow();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
-	// Método para procesar la solicitud enviada por clientAddr
-	public void processRequestFromClient(byte[] data, InetSocketAddress clientAddr) throws IOException {
+	// Método para procesar la solicitud enviada por clientAddr, que ocupa de la posición al límite de data
+	public void processRequestFromClient(ByteBuffer data, InetSocketAddress clientAddr) throws IOException {
 		// Construir un objeto mensaje (DirMessage) a partir de los datos recibidos
 		// PeerMessage.buildMessageFromReceivedData(data)
 		boolean status;
+		int requestId = DirMessage.getRequestId(data);
 		DirMessage msg = DirMessage.buildMessageFromReceivedData(data);
 		
 		// TODO: Actualizar estado del directorio y enviar una respuesta en función del
 		// tipo de mensaje recibido
 		switch(msg.getOpcode()) {
 			case DirMessageOps.OPCODE_LOGIN:
-				this.sendLoginOK(clientAddr);
+				this.sendLoginOK(requestId, clientAddr);
 			break;
 			case DirMessageOps.OPCODE_REGISTER_USERNAME:
 				status = register(msg.getUserName());
-				this.sendRegisterStatus(status, clientAddr);
+				this.sendRegisterStatus(status, requestId, clientAddr);
 			break;
 			case DirMessageOps.OPCODE_GETUSERS:
-				this.sendUserList(clientAddr);
+				this.sendUserList(msg.getOffset(), msg.getLimit(), msg.getKnownVersion(), requestId, clientAddr);
 			break;
 			case DirMessageOps.OPCODE_LOOKUP_USERNAME:
-				this.sendUserAddress(msg.getUserName(), clientAddr);
+				this.sendUserAddress(msg.getUserName(), requestId, clientAddr);
 			break;
 			case DirMessageOps.OPCODE_GETFILES:
-				this.sendFileList(clientAddr);
+				this.sendFileList(msg.getOffset(), msg.getLimit(), msg.getKnownVersion(), requestId, clientAddr);
 			break;
 			case DirMessageOps.OPCODE_SERVE_FILES:
 				status = serveFiles(msg.getUserName(), msg.getPort(), msg.getFiles(), clientAddr);
-				this.sendServingConfirmation(status, clientAddr);
+				this.sendServingConfirmation(status, requestId, clientAddr);
+			break;
+			case DirMessageOps.OPCODE_SERVE_FILES_ADD:
+				status = addServedFiles(msg.getUserName(), msg.getFiles(), clientAddr);
+				this.sendServingConfirmation(status, requestId, clientAddr);
+			break;
+			case DirMessageOps.OPCODE_SERVE_FILES_REMOVE:
+				status = removeServedFiles(msg.getUserName(), msg.getFileHashes(), clientAddr);
+				this.sendServingConfirmation(status, requestId, clientAddr);
+			break;
+			case DirMessageOps.OPCODE_HEARTBEAT:
+				status = heartbeat(msg.getUserName(), clientAddr);
+				this.sendHeartbeatResponse(status, requestId, clientAddr);
+			break;
+			case DirMessageOps.OPCODE_STOP_SERVING:
+				status = unregisterServer(msg.getUserName(), clientAddr);
+				this.sendServingConfirmation(status, requestId, clientAddr);
+			break;
+			case DirMessageOps.OPCODE_SEARCH:
+				this.sendSearchResults(msg.getSearchQuery(), requestId, clientAddr);
+			break;
+			case DirMessageOps.OPCODE_LOCATE:
+				this.sendLocateResults(msg.getSearchQuery(), requestId, clientAddr);
+			break;
+			case DirMessageOps.OPCODE_GETCHANGES:
+				this.sendChanges(msg.getSequence(), requestId, clientAddr);
+			break;
+			case DirMessageOps.OPCODE_GETCATALOG:
+				this.sendCatalog(msg.getOffset(), msg.getLimit(), msg.getKnownVersion(), requestId, clientAddr);
 			break;
 			case DirMessageOps.OPCODE_LOGOUT:
-				nicks.remove(msg.getUserName());
-				this.sendLogoutOK(clientAddr);
+				if(nicks.remove(msg.getUserName()) != null) {
+					nicksVersion.incrementAndGet();
+				}
+				unregisterServer(msg.getUserName(), clientAddr);
+				this.sendLogoutOK(requestId, clientAddr);
 			break;
 		}
 	}
 
 
 
+	// Método para obtener un búfer para la respuesta a la petición requestId, con la cabecera ya escrita
+	private ByteBuffer newResponse(int requestId) {
+		ByteBuffer response = buffers.acquire();
+		DirMessage.putRequestId(response, requestId);
+		return response;
+	}
+
+	// Método para enviar un datagrama de respuesta al cliente y devolver su búfer al pool
+	private void sendResponse(ByteBuffer response, InetSocketAddress clientAddr) throws IOException {
+		response.flip();
+		try {
+			channel.send(response, clientAddr);
+		} finally {
+			buffers.release(response);
+		}
+	}
+
 	// Método para enviar la confirmación del registro
-	private void sendLoginOK(InetSocketAddress clientAddr) throws IOException {
+	private void sendLoginOK(int requestId, InetSocketAddress clientAddr) throws IOException {
 		// Construir el datagrama con la respuesta y enviarlo por el socket al cliente
-		byte[] responseData = DirMessage.buildLoginOKResponseMessage(servers.size());
-		DatagramPacket packet = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(packet);
+		ByteBuffer response = newResponse(requestId);
+		DirMessage.buildLoginOKResponseMessage(response, servers.size());
+		sendResponse(response, clientAddr);
 	}
 	
-	private void sendLogoutOK(InetSocketAddress clientAddr) throws IOException {
+	private void sendLogoutOK(int requestId, InetSocketAddress clientAddr) throws IOException {
 		// Construir el datagrama con la respuesta y enviarlo por el socket al cliente
-		byte[] responseData = DirMessage.buildLogoutResponseMessage();
-		DatagramPacket packet = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(packet);
+		ByteBuffer response = newResponse(requestId);
+		DirMessage.buildLogoutResponseMessage(response);
+		sendResponse(response, clientAddr);
 	}
 	
-	private void sendRegisterStatus(boolean status, InetSocketAddress clientAddr) throws IOException {
-		byte[] responseData = DirMessage.buildRegisterResponseMessage(status);
-		DatagramPacket packet = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(packet);
+	private void sendRegisterStatus(boolean status, int requestId, InetSocketAddress clientAddr) throws IOException {
+		ByteBuffer response = newResponse(requestId);
+		DirMessage.buildRegisterResponseMessage(response, status);
+		sendResponse(response, clientAddr);
 	}
 	
-	private void sendUserList(InetSocketAddress clientAddr) throws IOException {
-		byte[] responseData = DirMessage.buildUserListResponseMessage(nicks.keySet());
-		DatagramPacket packet = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(packet);
+	// Método para enviar una página de la lista de usuarios, o NOT_MODIFIED si el cliente ya tiene su versión actual
+	private void sendUserList(int offset, int limit, long knownVersion, int requestId, InetSocketAddress clientAddr)
+			throws IOException {
+		ListSnapshot<String> snapshot = userSnapshot();
+		ByteBuffer response = newResponse(requestId);
+		if(snapshot.version == knownVersion) {
+			DirMessage.buildNotModifiedResponseMessage(response);
+		} else {
+			DirMessage.buildUserListResponseMessage(response, snapshot.entries, snapshot.version, offset, limit);
+		}
+		sendResponse(response, clientAddr);
 	}
 	
-	private void sendUserAddress(String nick, InetSocketAddress clientAddr) throws IOException {
-		byte[] responseData = DirMessage.buildUserLookupResponseMessage(servers.get(nick));
-		DatagramPacket packet = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(packet);
+	private void sendUserAddress(String nick, int requestId, InetSocketAddress clientAddr) throws IOException {
+		ByteBuffer response = newResponse(requestId);
+		DirMessage.buildUserLookupResponseMessage(response, getServerAddress(nick));
+		sendResponse(response, clientAddr);
 	}
 	
-	private void sendFileList(InetSocketAddress clientAddr) throws IOException {
-		Set<FileInfo> fi = new HashSet<FileInfo>(files.values());
-		Set<String> fset = new HashSet<String>();
-		fi.stream().forEach(f -> {
-			fset.add(f.fileName + ";" + f.fileSize + ";" + f.fileHash);
-		});
-		byte[] responseData = DirMessage.buildFileListResponseMessage(fset);
-		DatagramPacket packet = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(packet);
+	private void sendFileList(int offset, int limit, long knownVersion, int requestId, InetSocketAddress clientAddr)
+			throws IOException {
+		ListSnapshot<FileInfo> snapshot = fileSnapshot();
+		ByteBuffer response = newResponse(requestId);
+		if(snapshot.version == knownVersion) {
+			DirMessage.buildNotModifiedResponseMessage(response);
+		} else {
+			DirMessage.buildFileListResponseMessage(response, snapshot.entries, snapshot.version, offset, limit);
+		}
+		sendResponse(response, clientAddr);
+	}
+
+	// Método para enviar los cambios del catálogo posteriores a since, o CHANGES_TRUNCATED si ya no se conservan
+	private void sendChanges(long since, int requestId, InetSocketAddress clientAddr) throws IOException {
+		List<DirChange> newer;
+		long sequence;
+		synchronized(changes) {
+			newer = changes.since(since, MAX_CHANGES_PER_RESPONSE);
+			sequence = changes.getSequence();
+		}
+		ByteBuffer response = newResponse(requestId);
+		if(newer == null) {
+			DirMessage.buildChangesTruncatedResponseMessage(response);
+		} else {
+			DirMessage.buildChangesResponseMessage(response, newer, sequence);
+		}
+		sendResponse(response, clientAddr);
+	}
+
+	private void sendCatalog(int offset, int limit, long knownVersion, int requestId, InetSocketAddress clientAddr)
+			throws IOException {
+		ListSnapshot<DirChange> snapshot = catalogSnapshot();
+		ByteBuffer response = newResponse(requestId);
+		if(snapshot.version == knownVersion) {
+			DirMessage.buildNotModifiedResponseMessage(response);
+		} else {
+			DirMessage.buildCatalogResponseMessage(response, snapshot.entries, snapshot.version, offset, limit);
+		}
+		sendResponse(response, clientAddr);
+	}
+
+	/**
+	 * Devuelve el catálogo completo como los cambios que lo crean (los peers
+	 * servidores por nick y después los ficheros), con la secuencia del registro
+	 * de cambios como versión. Sólo se reconstruye si ha habido cambios.
+	 */
+	private ListSnapshot<DirChange> catalogSnapshot() {
+		synchronized(changes) {
+			if(catalogSnapshot.version != changes.getSequence()) {
+				List<DirChange> entries = new ArrayList<DirChange>(servers.size() + files.size());
+				List<String> nicks = new ArrayList<String>(servers.keySet());
+				Collections.sort(nicks);
+				for(String nick : nicks) {
+					entries.add(DirChange.serverAdded(nick, servers.get(nick)));
+				}
+				for(FileInfo file : files.values()) {
+					entries.add(DirChange.fileAdded(file));
+				}
+				catalogSnapshot = new ListSnapshot<DirChange>(changes.getSequence(), entries);
+			}
+			return catalogSnapshot;
+		}
+	}
+
+	/**
+	 * @return La dirección en la que sirve ficheros el usuario, o null si no es
+	 *         un peer servidor
+	 */
+	InetSocketAddress getServerAddress(String nick) {
+		return servers.get(nick);
+	}
+
+	/**
+	 * @return La copia ordenada de la lista de usuarios que se sirve en USERLIST
+	 */
+	List<String> getUserSnapshot() {
+		return userSnapshot().entries;
+	}
+
+	/**
+	 * @return La copia ordenada de la lista de ficheros que se sirve en FILELIST
+	 */
+	List<FileInfo> getFileSnapshot() {
+		return fileSnapshot().entries;
+	}
+
+	/**
+	 * Devuelve la lista ordenada de usuarios, reconstruyéndola sólo si ha
+	 * cambiado desde la última vez. La versión se lee antes de copiar, de modo
+	 * que un cambio concurrente con la copia provoca otra reconstrucción.
+	 */
+	private ListSnapshot<String> userSnapshot() {
+		ListSnapshot<String> snapshot = nicksSnapshot;
+		long version = nicksVersion.get();
+		if(snapshot.version != version) {
+			List<String> entries = new ArrayList<String>(nicks.keySet());
+			Collections.sort(entries);
+			snapshot = new ListSnapshot<String>(version, entries);
+			nicksSnapshot = snapshot;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Devuelve la lista de ficheros ordenada por nombre (y por hash, para que el
+	 * orden sea total), reconstruyéndola sólo si ha cambiado
+	 */
+	private ListSnapshot<FileInfo> fileSnapshot() {
+		ListSnapshot<FileInfo> snapshot = filesSnapshot;
+		long version = filesVersion.get();
+		if(snapshot.version != version) {
+			List<FileInfo> entries = new ArrayList<FileInfo>(files.values());
+			entries.sort(Comparator.comparing((FileInfo f) -> f.fileName).thenComparing(f -> f.fileHash));
+			snapshot = new ListSnapshot<FileInfo>(version, entries);
+			filesSnapshot = snapshot;
+		}
+		return snapshot;
 	}
 	
-	private void sendServingConfirmation(boolean status, InetSocketAddress clientAddr) throws IOException {
-		byte[] responseData = DirMessage.buildServeFilesResponseMessage(status);
-		DatagramPacket packet = new DatagramPacket(responseData, responseData.length, clientAddr);
-		socket.send(packet);
+	/**
+	 * Responde a una búsqueda con los ficheros que cumplen los criterios. Se
+	 * busca un resultado más del límite para saber si la respuesta está truncada.
+	 */
+	private void sendSearchResults(DirSearchQuery query, int requestId, InetSocketAddress clientAddr) throws IOException {
+		int limit = Math.max(0, Math.min(query.limit, MAX_SEARCH_RESULTS));
+		List<FileInfo> results = fileIndex.search(query, limit + 1);
+		boolean truncated = results.size() > limit;
+		if(truncated) {
+			results = results.subList(0, limit);
+		}
+		ByteBuffer response = newResponse(requestId);
+		DirMessage.buildSearchResponseMessage(response, results, truncated);
+		sendResponse(response, clientAddr);
+	}
+	
+	/**
+	 * Responde a una localización con los ficheros cuyo hash empieza por el
+	 * prefijo y los peers que sirven cada uno
+	 */
+	private void sendLocateResults(DirSearchQuery query, int requestId, InetSocketAddress clientAddr)
+			throws IOException {
+		int limit = Math.max(0, Math.min(query.limit, MAX_LOCATE_RESULTS));
+		List<DirLocateResult.Location> results = locate(query.getNormalizedHashPrefix(), limit + 1);
+		boolean truncated = results.size() > limit;
+		if(truncated) {
+			results = results.subList(0, limit);
+		}
+		ByteBuffer response = newResponse(requestId);
+		DirMessage.buildLocateResponseMessage(response, results, truncated);
+		sendResponse(response, clientAddr);
+	}
+
+	/**
+	 * Busca los ficheros cuyo hash empieza por un prefijo, en orden de hash, con
+	 * la dirección de todos los peers servidores que los publican. Como los
+	 * registros caducados se eliminan con sus ficheros, todos los peers
+	 * devueltos siguen registrados.
+	 * 
+	 * @param hashPrefix El prefijo en minúsculas (null o vacío para todos)
+	 * @param limit      Número máximo de ficheros
+	 */
+	List<DirLocateResult.Location> locate(String hashPrefix, int limit) {
+		String prefix = (hashPrefix == null) ? "" : hashPrefix;
+		List<DirLocateResult.Location> results = new ArrayList<DirLocateResult.Location>();
+		synchronized(changes) {
+			for(Map.Entry<String, Set<String>> entry : fileProviders.tailMap(prefix).entrySet()) {
+				if(results.size() >= limit || !entry.getKey().startsWith(prefix)) {
+					break;
+				}
+				DirLocateResult.Location location = new DirLocateResult.Location(files.get(entry.getKey()));
+				List<String> providers = new ArrayList<String>(entry.getValue());
+				Collections.sort(providers);
+				for(String nick : providers) {
+					location.providers.put(nick, servers.get(nick));
+				}
+				results.add(location);
+			}
+		}
+		return results;
+	}
+
+	private void sendServingConfirmation(boolean status, int requestId, InetSocketAddress clientAddr) throws IOException {
+		ByteBuffer response = newResponse(requestId);
+		DirMessage.buildServeFilesResponseMessage(response, status);
+		sendResponse(response, clientAddr);
+	}
+
+	private void sendHeartbeatResponse(boolean status, int requestId, InetSocketAddress clientAddr) throws IOException {
+		ByteBuffer response = newResponse(requestId);
+		DirMessage.buildHeartbeatResponseMessage(response, status ? LEASE_DURATION : 0);
+		sendResponse(response, clientAddr);
 	}
 
 	private boolean register(String nick) {
-		if(nicks.containsKey(nick)) {
+		LocalDateTime now = LocalDateTime.now();
+		if(nicks.putIfAbsent(nick, now) != null) {
 			return false;
 		}
 		else {
-			nicks.put(nick, LocalDateTime.now());
-			System.out.println("Registered[" + nick + ", " + nicks.get(nick) + "] Tam: " + nick.length());
+			nicksVersion.incrementAndGet();
+			System.out.println("Registered[" + nick + ", " + now + "] Tam: " + nick.length());
 			return true;
 		}
 	}
 	
+	/**
+	 * Registra al peer como servidor en la dirección indicada y publica sus
+	 * ficheros. Si ya estaba registrado en la misma dirección (una
+	 * retransmisión, o un peer que vuelve a publicar), sólo se añaden los
+	 * ficheros que falten.
+	 * 
+	 * @return Falso si el nick ya está registrado como servidor en otra
+	 *         dirección
+	 */
 	private boolean serveFiles(String userName, int port, FileInfo[] fileset, InetSocketAddress clientAddr) {
-		if(servers.containsKey(userName)) return false;
-		InetSocketAddress addr = new InetSocketAddress(clientAddr.getHostName(), port);
-		servers.put(userName, addr);
-		for(FileInfo fi : fileset) {
-			files.putIfAbsent(fi.fileHash, fi);
+		InetSocketAddress addr = new InetSocketAddress(clientAddr.getAddress(), port);
+		int added;
+		synchronized(changes) {
+			InetSocketAddress current = servers.putIfAbsent(userName, addr);
+			if(current == null) {
+				changes.append(DirChange.serverAdded(userName, addr));
+			} else if(!current.equals(addr)) {
+				return false;
+			}
+			renewLease(userName);
+			added = addFiles(userName, fileset);
+		}
+		if(added > 0) {
+			filesVersion.incrementAndGet();
+		}
+		System.out.println("Serving[" + userName + ", " + fileset.length + " files]");
+		return true;
+	}
+
+	/**
+	 * Añade ficheros a los que publica un peer servidor (SERVE_FILES_ADD)
+	 * 
+	 * @return Falso si el nick no está registrado como servidor desde la IP de
+	 *         la petición
+	 */
+	private boolean addServedFiles(String userName, FileInfo[] fileset, InetSocketAddress clientAddr) {
+		int added;
+		synchronized(changes) {
+			if(!isServerAt(userName, clientAddr)) {
+				return false;
+			}
+			renewLease(userName);
+			added = addFiles(userName, fileset);
+		}
+		if(added > 0) {
+			filesVersion.incrementAndGet();
+		}
+		System.out.println("Added[" + userName + ", " + fileset.length + " files, " + added + " new]");
+		return true;
+	}
+
+	/**
+	 * Quita ficheros de los que publica un peer servidor (SERVE_FILES_REMOVE).
+	 * Los que no publique ningún otro peer salen del catálogo.
+	 * 
+	 * @return Falso si el nick no está registrado como servidor desde la IP de
+	 *         la petición
+	 */
+	private boolean removeServedFiles(String userName, String[] hashes, InetSocketAddress clientAddr) {
+		int removed;
+		synchronized(changes) {
+			if(!isServerAt(userName, clientAddr)) {
+				return false;
+			}
+			renewLease(userName);
+			removed = removeFiles(userName, hashes);
+		}
+		if(removed > 0) {
+			filesVersion.incrementAndGet();
 		}
+		System.out.println("Removed[" + userName + ", " + hashes.length + " files, " + removed + " gone]");
 		return true;
 	}
+
+	/**
+	 * Renueva el registro de un peer servidor (HEARTBEAT)
+	 * 
+	 * @return Falso si el nick no está registrado como servidor desde la IP de
+	 *         la petición, por ejemplo porque su registro ya ha caducado
+	 */
+	private boolean heartbeat(String userName, InetSocketAddress clientAddr) {
+		synchronized(changes) {
+			if(!isServerAt(userName, clientAddr)) {
+				return false;
+			}
+			renewLease(userName);
+		}
+		return true;
+	}
+
+	/**
+	 * Da de baja al peer como servidor cuando deja de servir ficheros
+	 * (STOP_SERVING) o sale del directorio (LOGOUT), si la petición viene de su
+	 * IP
+	 * 
+	 * @return Falso si el nick está registrado como servidor desde otra IP. Si
+	 *         no está registrado es verdadero, para que reenviar la baja no
+	 *         tenga efecto.
+	 */
+	private boolean unregisterServer(String userName, InetSocketAddress clientAddr) {
+		int removed;
+		synchronized(changes) {
+			if(!isServerAt(userName, clientAddr)) {
+				return !servers.containsKey(userName);
+			}
+			removed = removeServer(userName);
+		}
+		if(removed > 0) {
+			filesVersion.incrementAndGet();
+		}
+		System.out.println("Unregistered[" + userName + ", " + removed + " files gone]");
+		return true;
+	}
+
+	/**
+	 * Da de baja a los peers servidores cuyos registros han caducado, con los
+	 * ficheros que sólo publicaban ellos. Lo ejecuta periódicamente leaseTimer.
+	 */
+	private void expireLeases() {
+		List<String> expired;
+		int removed = 0;
+		synchronized(changes) {
+			expired = leases.expire(System.nanoTime());
+			for(String nick : expired) {
+				removed += removeServer(nick);
+			}
+		}
+		if(removed > 0) {
+			filesVersion.incrementAndGet();
+		}
+		for(String nick : expired) {
+			System.out.println("Expired[" + nick + "] Index: " + fileIndex);
+		}
+	}
+
+	/**
+	 * Prolonga el registro del peer servidor LEASE_DURATION milisegundos desde
+	 * ahora. Debe llamarse con el cerrojo del registro de cambios.
+	 */
+	private void renewLease(String userName) {
+		leases.renew(userName, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LEASE_DURATION));
+	}
+
+	/**
+	 * Elimina el registro de un peer servidor y sus ficheros. Debe llamarse con
+	 * el cerrojo del registro de cambios.
+	 * 
+	 * @return El número de ficheros que han salido del catálogo
+	 */
+	private int removeServer(String userName) {
+		leases.cancel(userName);
+		if(servers.remove(userName) == null) {
+			return 0;
+		}
+		changes.append(DirChange.serverRemoved(userName));
+		Set<String> own = serverFiles.get(userName);
+		int removed = (own == null) ? 0 : removeFiles(userName, own.toArray(new String[own.size()]));
+		serverFiles.remove(userName);
+		return removed;
+	}
+
+	/**
+	 * @return Verdadero si el nick está registrado como servidor en la IP de
+	 *         clientAddr, de modo que sólo el propio peer cambie sus ficheros
+	 */
+	private boolean isServerAt(String userName, InetSocketAddress clientAddr) {
+		InetSocketAddress addr = servers.get(userName);
+		return addr != null && addr.getAddress().equals(clientAddr.getAddress());
+	}
+
+	/**
+	 * Añade ficheros a los del peer. Los ficheros que el peer ya publicaba no
+	 * cambian nada, así que repetir un alta no tiene efecto. Debe llamarse con el
+	 * cerrojo del registro de cambios.
+	 * 
+	 * @return El número de ficheros que no estaban en el catálogo
+	 */
+	private int addFiles(String userName, FileInfo[] fileset) {
+		Set<String> own = serverFiles.computeIfAbsent(userName, nick -> new HashSet<String>());
+		int added = 0;
+		for(FileInfo fi : fileset) {
+			if(!own.add(fi.fileHash)) {
+				continue;
+			}
+			fileProviders.computeIfAbsent(fi.fileHash, hash -> new HashSet<String>()).add(userName);
+			if(files.putIfAbsent(fi.fileHash, fi) == null) {
+				fileIndex.add(fi);
+				changes.append(DirChange.fileAdded(fi));
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Quita ficheros de los del peer, ignorando los que no publica. Debe
+	 * llamarse con el cerrojo del registro de cambios.
+	 * 
+	 * @return El número de ficheros que han salido del catálogo
+	 */
+	private int removeFiles(String userName, String[] hashes) {
+		Set<String> own = serverFiles.get(userName);
+		if(own == null) {
+			return 0;
+		}
+		int removed = 0;
+		for(String hash : hashes) {
+			if(!own.remove(hash)) {
+				continue;
+			}
+			Set<String> providers = fileProviders.get(hash);
+			providers.remove(userName);
+			if(providers.isEmpty()) {
+				fileProviders.remove(hash);
+				fileIndex.remove(files.remove(hash));
+				changes.append(DirChange.fileRemoved(hash));
+				removed++;
+			}
+		}
+		return removed;
+	}
 	
 }
@@ -0,0 +1,221 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+import es.um.redes.nanoFiles.directory.message.DirSearchQuery;
+import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.HashPrefixIndex;
+
+/**
+ * Índices de los ficheros publicados en el directorio, para responder a las
+ * búsquedas (SEARCH) sin recorrer el catálogo completo. Cada fichero está
+ * indexado por su hash, por su nombre en minúsculas y por su tamaño, en mapas
+ * ordenados, de modo que las búsquedas por prefijo de nombre o rango de
+ * tamaños recorren sólo el tramo del mapa que coincide. Los prefijos de hash se
+ * resuelven con búsqueda binaria en un HashPrefixIndex. Los nombres
+ * distintos están además en un índice de trigramas (TrigramIndex) para las
+ * búsquedas de texto dentro del nombre y las aproximadas.
+ *
+ * Los mapas admiten acceso concurrente: los hilos trabajadores del directorio
+ * pueden buscar mientras otro añade o elimina ficheros. Las modificaciones se
+ * serializan entre sí para mantener los índices coherentes.
+ */
+public class FileIndex {
+
+	/**
+	 * Carácter mayor que cualquier otro, para delimitar el final de un rango de
+	 * claves que empiezan por un prefijo
+	 */
+	private static final char PREFIX_END = Character.MAX_VALUE;
+
+	private final ConcurrentSkipListMap<String, FileInfo> byHash = new ConcurrentSkipListMap<String, FileInfo>();
+	private final ConcurrentSkipListMap<String, Set<FileInfo>> byName = new ConcurrentSkipListMap<String, Set<FileInfo>>();
+	private final ConcurrentSkipListMap<Long, Set<FileInfo>> bySize = new ConcurrentSkipListMap<Long, Set<FileInfo>>();
+	private final TrigramIndex nameTrigrams = new TrigramIndex();
+	/**
+	 * Índice compacto de los hashes para resolver prefijos de hash. Es
+	 * inmutable, así que se reconstruye (en orden, a partir de byHash) en la
+	 * primera búsqueda por hash tras un cambio.
+	 */
+	private volatile HashPrefixIndex hashIndex = new HashPrefixIndex(new FileInfo[0]);
+	private volatile boolean hashIndexDirty = false;
+
+	/**
+	 * Añade un fichero a los índices. Si ya había un fichero con el mismo hash,
+	 * no se modifica nada.
+	 *
+	 * @return Verdadero si el fichero se ha añadido
+	 */
+	public synchronized boolean add(FileInfo file) {
+		if (byHash.putIfAbsent(file.fileHash.toLowerCase(Locale.ROOT), file) != null) {
+			return false;
+		}
+		String name = file.fileName.toLowerCase(Locale.ROOT);
+		Set<FileInfo> group = byName.get(name);
+		if (group == null) {
+			group = ConcurrentHashMap.newKeySet();
+			byName.put(name, group);
+			nameTrigrams.add(name);
+		}
+		group.add(file);
+		bySize.computeIfAbsent(file.fileSize, k -> ConcurrentHashMap.newKeySet()).add(file);
+		hashIndexDirty = true;
+		return true;
+	}
+
+	/**
+	 * Elimina un fichero de los índices
+	 *
+	 * @return Verdadero si el fichero estaba en los índices
+	 */
+	public synchronized boolean remove(FileInfo file) {
+		if (!byHash.remove(file.fileHash.toLowerCase(Locale.ROOT), file)) {
+			return false;
+		}
+		String name = file.fileName.toLowerCase(Locale.ROOT);
+		Set<FileInfo> group = byName.get(name);
+		group.remove(file);
+		if (group.isEmpty()) {
+			byName.remove(name);
+			nameTrigrams.remove(name);
+		}
+		Set<FileInfo> sameSize = bySize.get(file.fileSize);
+		sameSize.remove(file);
+		if (sameSize.isEmpty()) {
+			bySize.remove(file.fileSize);
+		}
+		hashIndexDirty = true;
+		return true;
+	}
+
+	public int size() {
+		return byHash.size();
+	}
+
+	/**
+	 * @return Estimación de la memoria ocupada por el índice de trigramas en
+	 *         bytes
+	 */
+	public long getTrigramIndexMemory() {
+		return nameTrigrams.estimateMemoryBytes();
+	}
+
+	public String toString() {
+		return size() + " files, " + nameTrigrams.size() + " distinct names, " + nameTrigrams.trigramCount()
+				+ " trigrams, trigram index ~" + (getTrigramIndexMemory() / 1024) + " KB";
+	}
+
+	/**
+	 * Busca los ficheros que cumplen todos los criterios de la consulta. Se
+	 * recorre el índice del criterio más selectivo (nombre aproximado, prefijo
+	 * de hash, prefijo de nombre, texto del nombre o rango de tamaños, por este
+	 * orden) y cada candidato se comprueba contra el resto de criterios.
+	 * Los resultados de una búsqueda aproximada se devuelven de más a menos
+	 * parecidos.
+	 *
+	 * @param query      Los criterios de búsqueda
+	 * @param maxResults El número máximo de resultados a devolver
+	 * @return Los ficheros encontrados, como mucho maxResults
+	 */
+	public List<FileInfo> search(DirSearchQuery query, int maxResults) {
+		List<FileInfo> results = new ArrayList<FileInfo>();
+		Iterator<FileInfo> candidates = candidates(query);
+		while (results.size() < maxResults && candidates.hasNext()) {
+			FileInfo file = candidates.next();
+			if (query.matches(file)) {
+				results.add(file);
+			}
+		}
+		return results;
+	}
+
+	private Iterator<FileInfo> candidates(DirSearchQuery query) {
+		String name = query.getNormalizedName();
+		if (name != null && query.nameFuzzy) {
+			// El parecido del nombre sólo se comprueba aquí, no en query.matches
+			if (name.length() < TrigramIndex.MIN_QUERY_LENGTH) {
+				return namesContaining(name);
+			}
+			return groupsOf(nameTrigrams.similar(name, TrigramIndex.DEFAULT_MIN_SIMILARITY).iterator());
+		}
+		String hash = query.getNormalizedHashPrefix();
+		if (hash != null) {
+			HashPrefixIndex index = getHashIndex();
+			int first = index.firstMatch(hash);
+			if (first < 0) {
+				return Collections.emptyIterator();
+			}
+			return IntStream.range(first, first + index.countMatches(hash)).mapToObj(index::get).iterator();
+		}
+		if (name != null && query.namePrefix) {
+			return flatten(byName.subMap(name, name + PREFIX_END).values());
+		}
+		if (name != null && name.length() >= TrigramIndex.MIN_QUERY_LENGTH) {
+			return groupsOf(nameTrigrams.containing(name));
+		}
+		if (name != null) {
+			return namesContaining(name);
+		}
+		if (query.minSize > 0 || query.maxSize < Long.MAX_VALUE) {
+			if (query.minSize > query.maxSize) {
+				return Collections.emptyIterator();
+			}
+			return flatten(bySize.subMap(query.minSize, true, query.maxSize, true).values());
+		}
+		return byHash.values().iterator();
+	}
+
+	/**
+	 * Devuelve el índice de hashes, reconstruyéndolo si ha habido cambios desde
+	 * la última búsqueda por hash
+	 */
+	private HashPrefixIndex getHashIndex() {
+		if (hashIndexDirty) {
+			synchronized (this) {
+				if (hashIndexDirty) {
+					hashIndex = new HashPrefixIndex(byHash.values().toArray(new FileInfo[0]));
+					hashIndexDirty = false;
+				}
+			}
+		}
+		return hashIndex;
+	}
+
+	/**
+	 * Recorre los nombres distintos del índice (no cada fichero), según se van
+	 * pidiendo candidatos, y devuelve los ficheros cuyo nombre contiene el texto
+	 * buscado. Sólo se usa para textos demasiado cortos para el índice de
+	 * trigramas (también en las búsquedas aproximadas).
+	 */
+	private Iterator<FileInfo> namesContaining(String needle) {
+		return byName.entrySet().stream().filter(e -> e.getKey().contains(needle))
+				.flatMap(e -> e.getValue().stream()).iterator();
+	}
+
+	/**
+	 * Iterador perezoso sobre los ficheros con los nombres indicados, en el orden
+	 * de los nombres
+	 */
+	private Iterator<FileInfo> groupsOf(Iterator<String> names) {
+		Iterable<String> iterable = () -> names;
+		return StreamSupport.stream(iterable.spliterator(), false).map(byName::get).filter(g -> g != null)
+				.flatMap(Set::stream).iterator();
+	}
+
+	/**
+	 * Iterador perezoso sobre los ficheros de varios grupos
+	 */
+	private static Iterator<FileInfo> flatten(Collection<Set<FileInfo>> groups) {
+		return groups.stream().flatMap(Set::stream).iterator();
+	}
+}
@@ -0,0 +1,130 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.util.Locale;
+import java.util.Random;
+
+import es.um.redes.nanoFiles.directory.message.DirSearchQuery;
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Mide el índice de ficheros del directorio con un catálogo sintético: tiempo
+ * de construcción, memoria del índice de trigramas (estimada y medida) y
+ * latencia de las búsquedas de texto en el nombre con el índice frente a
+ * recorrer todos los nombres.
+ *
+ * Uso: java es.um.redes.nanoFiles.directory.server.FileIndexBenchmark
+ * [numFiles] [numQueries]
+ */
+public class FileIndexBenchmark {
+
+	private static final String[] EXTENSIONS = { "mp3", "flac", "mkv", "mp4", "pdf", "epub", "txt", "zip", "iso",
+			"jpg" };
+	private static final String SYLLABLES = "ba be bi bo bu ca ce ci co cu da de di do du fa fe fi fo fu "
+			+ "ga ge go gu la le li lo lu ma me mi mo mu na ne ni no nu pa pe pi po pu ra re ri ro ru "
+			+ "sa se si so su ta te ti to tu va ve vi vo za ze zi zo zu tra tre pro pre con des";
+
+	public static void main(String[] args) {
+		int numFiles = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		int numQueries = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+		Random random = new Random(42);
+		String[] words = buildVocabulary(random, 5000);
+
+		FileInfo[] files = new FileInfo[numFiles];
+		for (int i = 0; i < numFiles; i++) {
+			String name = words[random.nextInt(words.length)] + "-" + words[random.nextInt(words.length)] + "_"
+					+ i % 10000 + "." + EXTENSIONS[random.nextInt(EXTENSIONS.length)];
+			files[i] = new FileInfo(String.format("%040x", random.nextLong() & Long.MAX_VALUE), name,
+					random.nextInt(1 << 30), "");
+		}
+
+		long heapBefore = usedHeap();
+		long start = System.nanoTime();
+		FileIndex index = new FileIndex();
+		for (FileInfo file : files) {
+			index.add(file);
+		}
+		long buildMillis = (System.nanoTime() - start) / 1000000;
+		long heapAfter = usedHeap();
+		System.out.println("Indexed " + index + " in " + buildMillis + " ms");
+		System.out.println("Trigram index estimate: " + index.getTrigramIndexMemory() / (1024 * 1024)
+				+ " MB, heap growth of the whole index: " + (heapAfter - heapBefore) / (1024 * 1024) + " MB");
+
+		// Textos de búsqueda: fragmentos de nombres existentes, y los mismos con una errata
+		String[] needles = new String[numQueries];
+		String[] typos = new String[numQueries];
+		for (int q = 0; q < numQueries; q++) {
+			String name = files[random.nextInt(numFiles)].fileName.toLowerCase(Locale.ROOT);
+			int length = 5 + random.nextInt(4);
+			int from = random.nextInt(Math.max(1, name.length() - length));
+			needles[q] = name.substring(from, Math.min(name.length(), from + length));
+			char[] typo = needles[q].toCharArray();
+			int swap = random.nextInt(typo.length - 1);
+			char c = typo[swap];
+			typo[swap] = typo[swap + 1];
+			typo[swap + 1] = c;
+			typos[q] = new String(typo);
+		}
+
+		long scanNanos = 0, indexNanos = 0, fuzzyNanos = 0;
+		long scanMatches = 0, indexMatches = 0, fuzzyMatches = 0;
+		for (int round = 0; round < 2; round++) {
+			// La primera ronda sólo calienta la JVM
+			scanNanos = indexNanos = fuzzyNanos = 0;
+			scanMatches = indexMatches = fuzzyMatches = 0;
+			for (int q = 0; q < numQueries; q++) {
+				long t0 = System.nanoTime();
+				for (FileInfo file : files) {
+					if (file.fileName.toLowerCase(Locale.ROOT).contains(needles[q])) {
+						scanMatches++;
+					}
+				}
+				long t1 = System.nanoTime();
+				indexMatches += index.search(query(needles[q], false), Integer.MAX_VALUE).size();
+				long t2 = System.nanoTime();
+				fuzzyMatches += index.search(query(typos[q], true), DirectoryThread.MAX_SEARCH_RESULTS).size();
+				long t3 = System.nanoTime();
+				scanNanos += t1 - t0;
+				indexNanos += t2 - t1;
+				fuzzyNanos += t3 - t2;
+			}
+		}
+		System.out.println("Substring search, linear scan:  " + scanNanos / numQueries / 1000 + " us/query, "
+				+ scanMatches / numQueries + " matches/query");
+		System.out.println("Substring search, trigram index: " + indexNanos / numQueries / 1000 + " us/query, "
+				+ indexMatches / numQueries + " matches/query");
+		System.out.println("Approximate search (one typo):  " + fuzzyNanos / numQueries / 1000 + " us/query, "
+				+ fuzzyMatches / numQueries + " matches/query (limit " + DirectoryThread.MAX_SEARCH_RESULTS + ")");
+		if (scanMatches != indexMatches) {
+			System.out.println("ERROR: the index returned " + indexMatches + " matches, the scan " + scanMatches);
+		}
+	}
+
+	private static DirSearchQuery query(String name, boolean fuzzy) {
+		DirSearchQuery query = new DirSearchQuery();
+		query.name = name;
+		query.nameFuzzy = fuzzy;
+		return query;
+	}
+
+	private static String[] buildVocabulary(Random random, int size) {
+		String[] syllables = SYLLABLES.split(" ");
+		String[] words = new String[size];
+		for (int i = 0; i < size; i++) {
+			StringBuffer word = new StringBuffer();
+			int n = 2 + random.nextInt(3);
+			for (int j = 0; j < n; j++) {
+				word.append(syllables[random.nextInt(syllables.length)]);
+			}
+			words[i] = word.toString();
+		}
+		return words;
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
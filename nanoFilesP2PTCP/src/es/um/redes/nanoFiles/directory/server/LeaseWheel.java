@@ -0,0 +1,148 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plazos de vida (leases) de los registros del directorio, en una rueda de
+ * temporización (hashed timing wheel): el tiempo se divide en ticks y cada
+ * lease se guarda en la casilla del tick en que vence, módulo el número de
+ * casillas. En cada tick sólo se recorre la casilla de ese tick, de modo que
+ * el coste no depende del número total de leases.
+ *
+ * Renovar un lease sólo cambia su vencimiento: no se mueve de casilla hasta
+ * que se recorre la casilla en la que está, y entonces, si aún no ha vencido,
+ * se pasa a la de su nuevo vencimiento. Así, un lease que se renueva con
+ * frecuencia se recorre como mucho una vez por plazo, y renovarlo cuesta
+ * O(1). Los leases cancelados se descartan también al recorrer su casilla.
+ *
+ * No es seguro para varios hilos: el directorio lo usa siempre con el mismo
+ * cerrojo con el que modifica los registros, para que un lease no venza
+ * mientras se renueva.
+ *
+ * @param <K> Tipo de la clave de cada lease (el nick de un peer servidor)
+ */
+public class LeaseWheel<K> {
+
+	private static class Lease<K> {
+		final K key;
+		/**
+		 * Tick a partir del cual el lease ha vencido
+		 */
+		long deadline;
+
+		Lease(K key, long deadline) {
+			this.key = key;
+			this.deadline = deadline;
+		}
+	}
+
+	private final List<List<Lease<K>>> wheel;
+	private final Map<K, Lease<K>> leases = new HashMap<K, Lease<K>>();
+	private final long tickNanos;
+	/**
+	 * Instante (System.nanoTime) del tick 0
+	 */
+	private final long origin;
+	/**
+	 * Siguiente tick cuya casilla hay que recorrer
+	 */
+	private long currentTick = 0;
+
+	/**
+	 * @param slots     Número de casillas de la rueda. Con una vuelta más larga
+	 *                  que el plazo de los leases, cada lease se recorre una vez
+	 *                  por plazo.
+	 * @param tickNanos Duración de un tick: los leases vencen con como mucho
+	 *                  este retraso
+	 * @param now       El instante actual (System.nanoTime)
+	 */
+	public LeaseWheel(int slots, long tickNanos, long now) {
+		this.wheel = new ArrayList<List<Lease<K>>>(slots);
+		for (int i = 0; i < slots; i++) {
+			wheel.add(new ArrayList<Lease<K>>());
+		}
+		this.tickNanos = tickNanos;
+		this.origin = now;
+	}
+
+	/**
+	 * Crea o renueva el lease de una clave. Una renovación nunca adelanta el
+	 * vencimiento.
+	 *
+	 * @param expiresAt El instante (System.nanoTime) en que vence
+	 */
+	public void renew(K key, long expiresAt) {
+		long deadline = Math.max(0, (expiresAt - origin + tickNanos - 1) / tickNanos);
+		Lease<K> lease = leases.get(key);
+		if (lease == null) {
+			lease = new Lease<K>(key, deadline);
+			leases.put(key, lease);
+			schedule(lease);
+		} else {
+			lease.deadline = Math.max(lease.deadline, deadline);
+		}
+	}
+
+	/**
+	 * Elimina el lease de una clave, si lo tiene
+	 */
+	public void cancel(K key) {
+		leases.remove(key);
+	}
+
+	/**
+	 * @return Verdadero si la clave tiene un lease que aún no ha vencido
+	 */
+	public boolean contains(K key) {
+		return leases.containsKey(key);
+	}
+
+	public int size() {
+		return leases.size();
+	}
+
+	/**
+	 * Avanza la rueda hasta el instante indicado, recorriendo las casillas de
+	 * los ticks transcurridos desde la llamada anterior
+	 *
+	 * @param now El instante actual (System.nanoTime)
+	 * @return Las claves cuyos leases han vencido, que se eliminan
+	 */
+	public List<K> expire(long now) {
+		List<K> expired = new ArrayList<K>();
+		long lastTick = (now - origin) / tickNanos;
+		for (; currentTick <= lastTick; currentTick++) {
+			int slot = (int) (currentTick % wheel.size());
+			List<Lease<K>> due = wheel.get(slot);
+			if (due.isEmpty()) {
+				continue;
+			}
+			wheel.set(slot, new ArrayList<Lease<K>>());
+			for (Lease<K> lease : due) {
+				if (leases.get(lease.key) != lease) {
+					// Cancelado (o sustituido por un lease posterior)
+					continue;
+				}
+				if (lease.deadline <= currentTick) {
+					leases.remove(lease.key);
+					expired.add(lease.key);
+				} else {
+					schedule(lease);
+				}
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Guarda el lease en la casilla de su vencimiento, o en la del siguiente
+	 * tick a recorrer si ya ha vencido
+	 */
+	private void schedule(Lease<K> lease) {
+		long tick = Math.max(lease.deadline, currentTick);
+		wheel.get((int) (tick % wheel.size())).add(lease);
+	}
+}
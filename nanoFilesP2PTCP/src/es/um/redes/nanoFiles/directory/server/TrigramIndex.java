@@ -0,0 +1,397 @@
+package es.um.redes.nanoFiles.directory.server;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Índice invertido de trigramas sobre un conjunto de nombres. Cada nombre
+ * recibe un identificador entero, y para cada trigrama (tres caracteres
+ * consecutivos) se guarda la lista ordenada de identificadores de los nombres
+ * que lo contienen. Así, los nombres que contienen un texto de tres o más
+ * caracteres son los de la intersección de las listas de sus trigramas (que
+ * luego se comprueban, porque tener los trigramas no garantiza que aparezcan
+ * seguidos), y el coste de una búsqueda depende del tamaño de esas listas y no
+ * del número total de nombres.
+ *
+ * Las modificaciones y el cálculo de candidatos se hacen con un cerrojo de
+ * lectura/escritura, de modo que varias búsquedas pueden ejecutarse a la vez.
+ */
+public class TrigramIndex {
+
+	/**
+	 * Longitud mínima del texto buscado para poder usar el índice
+	 */
+	public static final int MIN_QUERY_LENGTH = 3;
+
+	/**
+	 * Fracción mínima de los trigramas del texto buscado que debe contener un
+	 * nombre para considerarse parecido en una búsqueda aproximada
+	 */
+	public static final double DEFAULT_MIN_SIMILARITY = 0.5;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	/**
+	 * Listas de identificadores de nombre por trigrama (tres caracteres
+	 * empaquetados en un long)
+	 */
+	private final Map<Long, IntList> postings = new HashMap<Long, IntList>();
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+	/**
+	 * Nombre correspondiente a cada identificador (null si se ha eliminado). Los
+	 * identificadores se asignan en orden creciente, de modo que las listas
+	 * siguen ordenadas al añadir siempre al final. Al eliminar un nombre, su
+	 * identificador no se quita de las listas en el momento (en las de trigramas
+	 * frecuentes costaría recorrer la lista entera por cada nombre): cada lista
+	 * cuenta sus identificadores eliminados y se compacta cuando son la mitad.
+	 * Cuando los identificadores eliminados son más de la mitad de los
+	 * asignados, se renumeran todos (ver renumber), para que ni este array ni
+	 * los identificadores crezcan sin límite al añadir y quitar nombres.
+	 */
+	private volatile String[] names = new String[INITIAL_CAPACITY];
+	private int nextId = 0;
+
+	/**
+	 * Añade un nombre al índice, si no estaba ya
+	 */
+	public void add(String name) {
+		lock.writeLock().lock();
+		try {
+			if (ids.containsKey(name)) {
+				return;
+			}
+			int id = nextId++;
+			if (id == names.length) {
+				names = Arrays.copyOf(names, names.length * 2);
+			}
+			names[id] = name;
+			ids.put(name, id);
+			for (long trigram : trigrams(name)) {
+				postings.computeIfAbsent(trigram, k -> new IntList()).add(id);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Elimina un nombre del índice, si estaba
+	 */
+	public void remove(String name) {
+		lock.writeLock().lock();
+		try {
+			Integer id = ids.remove(name);
+			if (id == null) {
+				return;
+			}
+			names[id] = null;
+			for (long trigram : trigrams(name)) {
+				IntList list = postings.get(trigram);
+				list.removed++;
+				if (list.removed == list.size) {
+					postings.remove(trigram);
+				} else if (2 * list.removed > list.size) {
+					list.compact(names);
+				}
+			}
+			if (nextId > INITIAL_CAPACITY && 2 * ids.size() < nextId) {
+				renumber();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Asigna identificadores consecutivos a los nombres que quedan, en el mismo
+	 * orden que tenían, de modo que las listas siguen ordenadas sin tener que
+	 * reordenarlas. El coste es proporcional al tamaño del índice, pero sólo se
+	 * hace tras eliminar tantos nombres como quedan. Las búsquedas en curso
+	 * siguen usando el array de nombres anterior, que no se modifica. Debe
+	 * llamarse con el cerrojo de escritura.
+	 */
+	private void renumber() {
+		String[] old = names;
+		int[] newIds = new int[nextId];
+		String[] renumbered = new String[Math.max(INITIAL_CAPACITY, Integer.highestOneBit(Math.max(1, ids.size())) * 2)];
+		int count = 0;
+		for (int id = 0; id < nextId; id++) {
+			if (old[id] != null) {
+				newIds[id] = count;
+				renumbered[count++] = old[id];
+			} else {
+				newIds[id] = -1;
+			}
+		}
+		for (IntList list : postings.values()) {
+			list.renumber(newIds);
+		}
+		for (int id = 0; id < count; id++) {
+			ids.put(renumbered[id], id);
+		}
+		names = renumbered;
+		nextId = count;
+	}
+
+	/**
+	 * Devuelve, según se van pidiendo, los nombres que contienen el texto
+	 * indicado. Los candidatos se calculan intersectando las listas de los
+	 * trigramas del texto, empezando por la más corta, y cada candidato se
+	 * comprueba al recorrerlo.
+	 *
+	 * @param needle El texto a buscar, de al menos MIN_QUERY_LENGTH caracteres
+	 */
+	public Iterator<String> containing(String needle) {
+		if (needle.length() < MIN_QUERY_LENGTH) {
+			throw new IllegalArgumentException("Query shorter than " + MIN_QUERY_LENGTH + " characters");
+		}
+		int[] candidates;
+		String[] snapshot;
+		lock.readLock().lock();
+		try {
+			candidates = intersect(trigrams(needle));
+			snapshot = names;
+		} finally {
+			lock.readLock().unlock();
+		}
+		return new Iterator<String>() {
+			private int next = 0;
+			private String current = advance();
+
+			private String advance() {
+				while (next < candidates.length) {
+					String name = snapshot[candidates[next++]];
+					if (name != null && name.contains(needle)) {
+						return name;
+					}
+				}
+				return null;
+			}
+
+			public boolean hasNext() {
+				return current != null;
+			}
+
+			public String next() {
+				if (current == null) {
+					throw new NoSuchElementException();
+				}
+				String result = current;
+				current = advance();
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * Búsqueda aproximada: devuelve los nombres que contienen al menos la
+	 * fracción minSimilarity de los trigramas del texto buscado, ordenados de
+	 * más a menos parecidos (y, a igualdad, de más corto a más largo). Tolera
+	 * erratas como letras cambiadas u omitidas.
+	 *
+	 * @param needle El texto a buscar, de al menos MIN_QUERY_LENGTH caracteres
+	 */
+	public List<String> similar(String needle, double minSimilarity) {
+		if (needle.length() < MIN_QUERY_LENGTH) {
+			throw new IllegalArgumentException("Query shorter than " + MIN_QUERY_LENGTH + " characters");
+		}
+		long[] queryTrigrams = trigrams(needle);
+		int minCommon = Math.max(1, (int) Math.ceil(minSimilarity * queryTrigrams.length));
+		List<Map.Entry<String, Integer>> matches = new ArrayList<Map.Entry<String, Integer>>();
+		lock.readLock().lock();
+		try {
+			// Número de trigramas del texto que contiene cada nombre
+			Map<Integer, int[]> common = new HashMap<Integer, int[]>();
+			for (long trigram : queryTrigrams) {
+				IntList list = postings.get(trigram);
+				if (list == null) {
+					continue;
+				}
+				for (int i = 0; i < list.size; i++) {
+					common.computeIfAbsent(list.data[i], k -> new int[1])[0]++;
+				}
+			}
+			for (Map.Entry<Integer, int[]> entry : common.entrySet()) {
+				if (entry.getValue()[0] >= minCommon && names[entry.getKey()] != null) {
+					matches.add(new AbstractMap.SimpleEntry<String, Integer>(names[entry.getKey()], entry.getValue()[0]));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		Collections.sort(matches, Comparator.<Map.Entry<String, Integer>>comparingInt(m -> -m.getValue())
+				.thenComparingInt(m -> m.getKey().length()));
+		List<String> result = new ArrayList<String>(matches.size());
+		for (Map.Entry<String, Integer> match : matches) {
+			result.add(match.getKey());
+		}
+		return result;
+	}
+
+	/**
+	 * Intersección de las listas de los trigramas indicados. Se parte de la
+	 * lista más corta y se busca cada uno de sus elementos en las demás por
+	 * búsqueda binaria, con coste proporcional a la lista más corta.
+	 */
+	private int[] intersect(long[] trigrams) {
+		IntList[] lists = new IntList[trigrams.length];
+		for (int i = 0; i < trigrams.length; i++) {
+			lists[i] = postings.get(trigrams[i]);
+			if (lists[i] == null) {
+				return new int[0];
+			}
+		}
+		Arrays.sort(lists, Comparator.comparingInt(l -> l.size));
+		int[] result = Arrays.copyOf(lists[0].data, lists[0].size);
+		int count = result.length;
+		for (int l = 1; l < lists.length && count > 0; l++) {
+			int kept = 0;
+			for (int i = 0; i < count; i++) {
+				if (Arrays.binarySearch(lists[l].data, 0, lists[l].size, result[i]) >= 0) {
+					result[kept++] = result[i];
+				}
+			}
+			count = kept;
+		}
+		return Arrays.copyOf(result, count);
+	}
+
+	/**
+	 * Trigramas distintos de una cadena, cada uno empaquetado en un long (16 bits
+	 * por carácter), ordenados
+	 */
+	static long[] trigrams(String s) {
+		int n = Math.max(0, s.length() - 2);
+		long[] result = new long[n];
+		for (int i = 0; i < n; i++) {
+			result[i] = ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+		}
+		Arrays.sort(result);
+		int distinct = 0;
+		for (int i = 0; i < n; i++) {
+			if (distinct == 0 || result[distinct - 1] != result[i]) {
+				result[distinct++] = result[i];
+			}
+		}
+		return Arrays.copyOf(result, distinct);
+	}
+
+	/**
+	 * @return El número de nombres en el índice
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return ids.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return El número de trigramas distintos en el índice
+	 */
+	public int trigramCount() {
+		lock.readLock().lock();
+		try {
+			return postings.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Estimación de la memoria ocupada por el índice en bytes (sin contar las
+	 * propias cadenas de los nombres, que se comparten con el resto del
+	 * directorio), suponiendo referencias comprimidas de 4 bytes y cabeceras de
+	 * objeto de 12 bytes (16 en los arrays).
+	 */
+	public long estimateMemoryBytes() {
+		lock.readLock().lock();
+		try {
+			// Entrada de HashMap (32) + Long (16) + IntList (16) + cabecera del array (16)
+			long bytes = postings.size() * (32L + 16 + 16 + 16);
+			for (IntList list : postings.values()) {
+				bytes += (long) list.data.length * Integer.BYTES;
+			}
+			// Entrada de HashMap (32) + Integer (16) por nombre
+			bytes += ids.size() * (32L + 16);
+			// Tablas de los dos HashMap y array de nombres
+			bytes += 4L * (tableSize(postings.size()) + tableSize(ids.size())) + 16 + 4L * names.length;
+			return bytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private static long tableSize(int entries) {
+		return Long.highestOneBit(Math.max(1, (long) (entries / 0.75f)) * 2 - 1);
+	}
+
+	/**
+	 * Lista creciente de enteros ordenados, sin objetos por elemento, con el
+	 * número de ellos que corresponden a nombres eliminados
+	 */
+	private static class IntList {
+		int[] data = new int[4];
+		int size = 0;
+		int removed = 0;
+
+		void add(int value) {
+			if (size == data.length) {
+				data = Arrays.copyOf(data, size * 2);
+			}
+			data[size++] = value;
+		}
+
+		/**
+		 * Quita los identificadores de los nombres eliminados, conservando el
+		 * orden
+		 */
+		void compact(String[] names) {
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				if (names[data[i]] != null) {
+					data[kept++] = data[i];
+				}
+			}
+			size = kept;
+			removed = 0;
+			shrink();
+		}
+
+		/**
+		 * Cambia cada identificador por el que le corresponde en newIds, quitando
+		 * los de los nombres eliminados (-1). Como la numeración conserva el
+		 * orden, la lista sigue ordenada.
+		 */
+		void renumber(int[] newIds) {
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				int id = newIds[data[i]];
+				if (id >= 0) {
+					data[kept++] = id;
+				}
+			}
+			size = kept;
+			removed = 0;
+			shrink();
+		}
+
+		private void shrink() {
+			if (size < data.length / 4) {
+				data = Arrays.copyOf(data, Math.max(4, size * 2));
+			}
+		}
+	}
+}
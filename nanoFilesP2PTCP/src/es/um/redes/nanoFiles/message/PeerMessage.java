@@ -1,14 +1,17 @@
 package es.um.redes.nanoFiles.message;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Scanner;
 
 import es.um.redes.nanoFiles.client.application.NanoFiles;
 import es.um.redes.nanoFiles.util.FileDatabase;
@@ -17,7 +20,8 @@ import es.um.redes.nanoFiles.util.FileDatabase;
  * Clase que modela los mensajes del protocolo de comunicación entre pares para
  * implementar el explorador de ficheros remoto (servidor de ficheros). Estos
  * mensajes son intercambiados entre las clases NFServerComm y NFConnector, y se
- * codifican como texto en formato "campo:valor".
+ * codifican como texto en formato "campo:valor" o, si ambos extremos lo
+ * negocian al conectar (mensaje OP_CODEC), en formato binario.
  * 
  * @author rtitos
  *
@@ -33,7 +37,55 @@ public class PeerMessage {
 	
 	private static final String FIELDNAME_FILE = "file";
 	private static final String FIELDNAME_FILEHASH = "filehash";
-	private static final String FIELDNAME_DATA = "data";
+	private static final String FIELDNAME_SIZE = "size";
+	private static final String FIELDNAME_OFFSET = "offset";
+	private static final String FIELDNAME_CODEC = "codec";
+	private static final String FIELDNAME_PIECEHASH = "piecehash";
+	
+	/**
+	 * Nombres de las codificaciones que se pueden negociar mediante OP_CODEC
+	 */
+	public static final String CODEC_TEXT = "text";
+	public static final String CODEC_BINARY = "binary";
+	
+	/**
+	 * Tamaño máximo (en bytes) de cada uno de los fragmentos en los que se envía
+	 * el contenido de un fichero tras un mensaje OP_UPLOAD. Cada fragmento se
+	 * transmite como un entero con su longitud seguido de los datos en crudo. Si
+	 * OP_UPLOAD responde a una petición de un rango (OP_DOWNLOAD_RANGE), su
+	 * tamaño es el del rango y sólo se envían los bytes del rango.
+	 */
+	public static final int CHUNK_SIZE = 64 * 1024;
+	
+	/**
+	 * Tamaño de un OP_DOWNLOAD_RANGE que pide todos los bytes desde el
+	 * desplazamiento hasta el final del fichero (para reanudar una descarga)
+	 */
+	public static final long RANGE_TO_END = -1;
+	
+	/**
+	 * Número máximo de hashes de pieza (ver MerkleTree) que se envían en un
+	 * mensaje OP_PIECE_HASHES, para que quepa en un mensaje en texto. Un
+	 * OP_GET_PIECE_HASHES pide los hashes de size piezas a partir de la pieza
+	 * offset, y la respuesta incluye como mucho este número: para obtener todos
+	 * los hashes de un fichero grande hay que pedirlos en varias peticiones.
+	 */
+	public static final int MAX_PIECE_HASHES = 512;
+	
+	/**
+	 * Longitud mínima (en caracteres hexadecimales) del prefijo del hash con el
+	 * que se pide un fichero. El servidor responde OP_FILE_NOT_FOUND a los
+	 * prefijos más cortos, que en una carpeta grande coincidirían con muchos
+	 * ficheros.
+	 */
+	public static final int MIN_HASH_PREFIX = 4;
+	
+	/**
+	 * Número máximo de hashes candidatos que se envían en un mensaje
+	 * OP_AMBIGUOUS_HASH, para que quepa en un mensaje en texto. El campo size
+	 * lleva el número total de ficheros que empiezan por el prefijo.
+	 */
+	public static final int MAX_AMBIGUOUS_HASHES = 32;
 	
 	/**
 	 * Tipo del mensaje, de entre los tipos definidos en PeerMessageOps.
@@ -45,6 +97,8 @@ public class PeerMessage {
 	 */
 	private String name;
 	private List<String> namelist;
+	private long size;
+	private long offset;
 	
 	/*
 	 * Crear diferentes constructores adecuados para construir mensajes de
@@ -59,11 +113,38 @@ public class PeerMessage {
 		this.operation = operation;
 		this.name = name;
 	}
+	// Mensajes con nombre y tamaño (cabecera de una transferencia)
+	public PeerMessage(String operation, String name, long size) {
+		this.operation = operation;
+		this.name = name;
+		this.size = size;
+	}
+	// Mensajes con nombre, posición y tamaño (petición de un rango de un fichero)
+	public PeerMessage(String operation, String name, long offset, long size) {
+		this.operation = operation;
+		this.name = name;
+		this.offset = offset;
+		this.size = size;
+	}
 	// Mensajes de varios valores
 	public PeerMessage(String operation, List<String> namelist) {
 		this.operation = operation;
 		this.namelist = namelist;
 	}
+	// Mensajes con un número y varios valores (hashes candidatos de un prefijo)
+	public PeerMessage(String operation, long size, List<String> namelist) {
+		this.operation = operation;
+		this.size = size;
+		this.namelist = namelist;
+	}
+	// Mensajes con nombre, posición, tamaño y varios valores (hashes de piezas)
+	public PeerMessage(String operation, String name, long offset, long size, List<String> namelist) {
+		this.operation = operation;
+		this.name = name;
+		this.offset = offset;
+		this.size = size;
+		this.namelist = namelist;
+	}
 	
 	/* 
 	 * GETTERS
@@ -80,6 +161,14 @@ public class PeerMessage {
 	public List<String> getNameList() {
 		return namelist;
 	}
+	
+	public long getSize() {
+		return size;
+	}
+	
+	public long getOffset() {
+		return offset;
+	}
 
 	/**
 	 * Método que convierte un mensaje codificado como una cadena de caracteres, a
@@ -97,54 +186,76 @@ public class PeerMessage {
 		 * guardarlo en variables locales.
 		 */
 		String decodedmsg = new String(java.util.Base64.getDecoder().decode(message));
-		Scanner sc = new Scanner(new StringReader(decodedmsg));
-		int index;
-		char[] buf = new char[4096];
+		BufferedReader reader = new BufferedReader(new StringReader(decodedmsg));
 		String line, op, value;
-		String res = new String();
 		List<String> list;
 		PeerMessage msg = null;
 		try {
 			// Campo Operacion
-			line = sc.next();
-			index = line.indexOf(DELIMITER);
-			op = line.substring(index + 1).trim();
+			op = fieldValue(reader.readLine());
 			
 			switch(op) {
 				case PeerMessageOps.OP_CLOSE:
+				case PeerMessageOps.OP_FILE_NOT_FOUND:
+				case PeerMessageOps.OP_INVALID_RANGE:
 					msg = new PeerMessage(op);
 				break;
 					
 				case PeerMessageOps.OP_DOWNLOAD:
-					line = sc.next();
-					index = line.indexOf(DELIMITER);
-					value = line.substring(index + 1).trim();
+				case PeerMessageOps.OP_CODEC:
+				case PeerMessageOps.OP_CODEC_OK:
+					value = fieldValue(reader.readLine());
 					msg = new PeerMessage(op, value);
 				break;
 				
 				case PeerMessageOps.OP_UPLOAD:
-					line = sc.next();
-					index = line.indexOf(DELIMITER);
-					value = line.substring(index + 1).trim();
-					res = new String(value);
-					while(sc.hasNext()) {
-						
+					value = fieldValue(reader.readLine());
+					long size = Long.parseLong(fieldValue(reader.readLine()));
+					msg = new PeerMessage(op, value, size);
+				break;
+				
+				case PeerMessageOps.OP_DOWNLOAD_RANGE:
+				case PeerMessageOps.OP_GET_PIECE_HASHES:
+					value = fieldValue(reader.readLine());
+					long offset = Long.parseLong(fieldValue(reader.readLine()));
+					long length = Long.parseLong(fieldValue(reader.readLine()));
+					msg = new PeerMessage(op, value, offset, length);
+				break;
+				
+				case PeerMessageOps.OP_PIECE_HASHES:
+					value = fieldValue(reader.readLine());
+					long first = Long.parseLong(fieldValue(reader.readLine()));
+					long fileSize = Long.parseLong(fieldValue(reader.readLine()));
+					line = reader.readLine();
+					list = new LinkedList<String>();
+					while(line != null && !line.equals("")) {
+						list.add(fieldValue(line));
+						line = reader.readLine();
 					}
-					msg = new PeerMessage(op, res);
+					msg = new PeerMessage(op, value, first, fileSize, list);
 				break;
 					
 				case PeerMessageOps.OP_SERVEDFILES:
 					line = reader.readLine();
 					list = new LinkedList<String>();
-					while(!line.equals("")) {
-						index = line.indexOf(DELIMITER);
-						value = line.substring(index + 1).trim();
-						list.add(value);
+					while(line != null && !line.equals("")) {
+						list.add(fieldValue(line));
 						line = reader.readLine();
 					}
 					msg = new PeerMessage(op, list);
 				break;
 				
+				case PeerMessageOps.OP_AMBIGUOUS_HASH:
+					long matches = Long.parseLong(fieldValue(reader.readLine()));
+					line = reader.readLine();
+					list = new LinkedList<String>();
+					while(line != null && !line.equals("")) {
+						list.add(fieldValue(line));
+						line = reader.readLine();
+					}
+					msg = new PeerMessage(op, matches, list);
+				break;
+				
 				default:
 					System.err.println("Undefined operation.");
 			}
@@ -163,6 +274,14 @@ public class PeerMessage {
 		return msg;
 	}
 
+	/**
+	 * Extrae el valor de una línea con formato "campo:valor"
+	 */
+	private static String fieldValue(String line) {
+		int index = line.indexOf(DELIMITER);
+		return line.substring(index + 1).trim();
+	}
+
 	/**
 	 * Método que devuelve una cadena de caracteres con la codificación del mensaje
 	 * según el formato campo:valor, a partir del tipo y los valores almacenados en
@@ -189,13 +308,276 @@ public class PeerMessage {
 				});
 			break;
 			
+			case PeerMessageOps.OP_AMBIGUOUS_HASH:
+				sb.append(FIELDNAME_SIZE + DELIMITER + " " + size + END_LINE);
+				namelist.stream().forEach(hash -> {
+					sb.append(FIELDNAME_FILEHASH + DELIMITER + " " + hash + END_LINE);
+				});
+			break;
+			
 			case PeerMessageOps.OP_UPLOAD:
-				sb.append(FIELDNAME_DATA + DELIMITER + " " + name + END_LINE);
+				sb.append(FIELDNAME_FILEHASH + DELIMITER + " " + name + END_LINE);
+				sb.append(FIELDNAME_SIZE + DELIMITER + " " + size + END_LINE);
+			break;
+			
+			case PeerMessageOps.OP_DOWNLOAD_RANGE:
+			case PeerMessageOps.OP_GET_PIECE_HASHES:
+				sb.append(FIELDNAME_FILEHASH + DELIMITER + " " + name + END_LINE);
+				sb.append(FIELDNAME_OFFSET + DELIMITER + " " + offset + END_LINE);
+				sb.append(FIELDNAME_SIZE + DELIMITER + " " + size + END_LINE);
+			break;
+			
+			case PeerMessageOps.OP_PIECE_HASHES:
+				sb.append(FIELDNAME_FILEHASH + DELIMITER + " " + name + END_LINE);
+				sb.append(FIELDNAME_OFFSET + DELIMITER + " " + offset + END_LINE);
+				sb.append(FIELDNAME_SIZE + DELIMITER + " " + size + END_LINE);
+				namelist.stream().forEach(hash -> {
+					sb.append(FIELDNAME_PIECEHASH + DELIMITER + " " + hash + END_LINE);
+				});
+			break;
+			
+			case PeerMessageOps.OP_CODEC:
+			case PeerMessageOps.OP_CODEC_OK:
+				sb.append(FIELDNAME_CODEC + DELIMITER + " " + name + END_LINE);
 			break;
 		}
 		sb.append(END_LINE);
 		return java.util.Base64.getEncoder().encodeToString(sb.toString().getBytes());
 	}
+
+	/**
+	 * Método que lee del flujo un mensaje codificado en formato binario. Cada
+	 * trama comienza por su longitud (int, sin contarse a sí misma) y el opcode
+	 * (byte), seguidos de los campos del mensaje: las cadenas se codifican como
+	 * su longitud en bytes (short sin signo) y sus bytes en UTF-8, y los tamaños
+	 * y posiciones como long. Los campos se leen directamente del socket, sin pasar por
+	 * cadenas intermedias.
+	 * 
+	 * @param dis El flujo de entrada del socket
+	 * @return El mensaje leído, o null si el opcode es desconocido (en cuyo caso
+	 *         se descarta el resto de la trama)
+	 * @throws IOException Si se produce un error al leer del socket
+	 */
+	public static PeerMessage fromBinary(DataInputStream dis) throws IOException {
+		int length = dis.readInt();
+		byte opcode = dis.readByte();
+		String op = PeerMessageOps.opcodeToOperation(opcode);
+		PeerMessage msg = null;
+		if(op == null) {
+			System.err.println("Undefined opcode " + opcode + ".");
+			dis.skipNBytes(length - Byte.BYTES);
+			return null;
+		}
+		switch(opcode) {
+			case PeerMessageOps.OPCODE_CLOSE:
+			case PeerMessageOps.OPCODE_FILE_NOT_FOUND:
+			case PeerMessageOps.OPCODE_INVALID_RANGE:
+				msg = new PeerMessage(op);
+			break;
+			
+			case PeerMessageOps.OPCODE_DOWNLOAD:
+			case PeerMessageOps.OPCODE_CODEC:
+			case PeerMessageOps.OPCODE_CODEC_OK:
+				msg = new PeerMessage(op, readBinaryString(dis));
+			break;
+			
+			case PeerMessageOps.OPCODE_UPLOAD:
+				String hash = readBinaryString(dis);
+				msg = new PeerMessage(op, hash, dis.readLong());
+			break;
+			
+			case PeerMessageOps.OPCODE_DOWNLOAD_RANGE:
+			case PeerMessageOps.OPCODE_GET_PIECE_HASHES:
+				String rangeHash = readBinaryString(dis);
+				long offset = dis.readLong();
+				msg = new PeerMessage(op, rangeHash, offset, dis.readLong());
+			break;
+			
+			case PeerMessageOps.OPCODE_PIECE_HASHES:
+				String fileHash = readBinaryString(dis);
+				long first = dis.readLong();
+				long fileSize = dis.readLong();
+				msg = new PeerMessage(op, fileHash, first, fileSize, readBinaryList(dis));
+			break;
+			
+			case PeerMessageOps.OPCODE_SERVEDFILES:
+				msg = new PeerMessage(op, readBinaryList(dis));
+			break;
+			
+			case PeerMessageOps.OPCODE_AMBIGUOUS_HASH:
+				long matches = dis.readLong();
+				msg = new PeerMessage(op, matches, readBinaryList(dis));
+			break;
+		}
+		return msg;
+	}
+
+	private static List<String> readBinaryList(DataInputStream dis) throws IOException {
+		int count = dis.readInt();
+		List<String> list = new LinkedList<String>();
+		for(int i = 0; i < count; i++) {
+			list.add(readBinaryString(dis));
+		}
+		return list;
+	}
+
+	/**
+	 * Método que escribe en el flujo el mensaje codificado en formato binario
+	 * (ver fromBinary). No vacía el flujo, para que la respuesta y los datos que
+	 * la sigan puedan enviarse juntos.
+	 * 
+	 * @param dos El flujo de salida del socket
+	 * @throws IOException Si se produce un error al escribir en el socket
+	 */
+	public void toBinary(DataOutputStream dos) throws IOException {
+		byte opcode = PeerMessageOps.operationToOpcode(operation);
+		byte[] nameBytes = null;
+		List<byte[]> listBytes = null;
+		int length = Byte.BYTES;
+		switch(opcode) {
+			case PeerMessageOps.OPCODE_DOWNLOAD:
+			case PeerMessageOps.OPCODE_CODEC:
+			case PeerMessageOps.OPCODE_CODEC_OK:
+				nameBytes = name.getBytes(StandardCharsets.UTF_8);
+				length += Short.BYTES + nameBytes.length;
+			break;
+			
+			case PeerMessageOps.OPCODE_UPLOAD:
+				nameBytes = name.getBytes(StandardCharsets.UTF_8);
+				length += Short.BYTES + nameBytes.length + Long.BYTES;
+			break;
+			
+			case PeerMessageOps.OPCODE_DOWNLOAD_RANGE:
+			case PeerMessageOps.OPCODE_GET_PIECE_HASHES:
+				nameBytes = name.getBytes(StandardCharsets.UTF_8);
+				length += Short.BYTES + nameBytes.length + 2 * Long.BYTES;
+			break;
+			
+			case PeerMessageOps.OPCODE_PIECE_HASHES:
+				nameBytes = name.getBytes(StandardCharsets.UTF_8);
+				listBytes = encodeBinaryList(namelist);
+				length += Short.BYTES + nameBytes.length + 2 * Long.BYTES + binaryListLength(listBytes);
+			break;
+			
+			case PeerMessageOps.OPCODE_SERVEDFILES:
+				listBytes = encodeBinaryList(namelist);
+				length += binaryListLength(listBytes);
+			break;
+			
+			case PeerMessageOps.OPCODE_AMBIGUOUS_HASH:
+				listBytes = encodeBinaryList(namelist);
+				length += Long.BYTES + binaryListLength(listBytes);
+			break;
+		}
+		dos.writeInt(length);
+		dos.writeByte(opcode);
+		if(nameBytes != null) {
+			writeBinaryString(dos, nameBytes);
+		}
+		if(opcode == PeerMessageOps.OPCODE_DOWNLOAD_RANGE || opcode == PeerMessageOps.OPCODE_GET_PIECE_HASHES
+				|| opcode == PeerMessageOps.OPCODE_PIECE_HASHES) {
+			dos.writeLong(offset);
+		}
+		if(opcode == PeerMessageOps.OPCODE_UPLOAD || opcode == PeerMessageOps.OPCODE_DOWNLOAD_RANGE
+				|| opcode == PeerMessageOps.OPCODE_GET_PIECE_HASHES || opcode == PeerMessageOps.OPCODE_PIECE_HASHES
+				|| opcode == PeerMessageOps.OPCODE_AMBIGUOUS_HASH) {
+			dos.writeLong(size);
+		}
+		if(listBytes != null) {
+			writeBinaryList(dos, listBytes);
+		}
+	}
+
+	/**
+	 * Codifica en UTF-8 los elementos de una lista, para calcular su longitud
+	 * antes de escribirla (writeBinaryList)
+	 */
+	private static List<byte[]> encodeBinaryList(List<String> list) {
+		List<byte[]> listBytes = new LinkedList<byte[]>();
+		for(String s : list) {
+			listBytes.add(s.getBytes(StandardCharsets.UTF_8));
+		}
+		return listBytes;
+	}
+
+	private static int binaryListLength(List<byte[]> listBytes) {
+		int length = Integer.BYTES;
+		for(byte[] b : listBytes) {
+			length += Short.BYTES + b.length;
+		}
+		return length;
+	}
+
+	private static void writeBinaryList(DataOutputStream dos, List<byte[]> listBytes) throws IOException {
+		dos.writeInt(listBytes.size());
+		for(byte[] b : listBytes) {
+			writeBinaryString(dos, b);
+		}
+	}
+
+	private static String readBinaryString(DataInputStream dis) throws IOException {
+		byte[] b = new byte[dis.readUnsignedShort()];
+		dis.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static void writeBinaryString(DataOutputStream dos, byte[] b) throws IOException {
+		dos.writeShort(b.length);
+		dos.write(b);
+	}
+
+	/**
+	 * Calcula la longitud total de la trama que comienza en la posición actual del
+	 * buffer (incluido su prefijo de longitud: el short de writeUTF en la
+	 * codificación en texto, o el int de la codificación binaria), sin consumir
+	 * datos del buffer. Permite saber si ya se ha recibido un mensaje completo
+	 * cuando se lee del socket en modo no bloqueante.
+	 * 
+	 * @param buf    El buffer con los datos recibidos (en modo lectura)
+	 * @param binary Si la conexión usa la codificación binaria
+	 * @return La longitud de la trama, -1 si aún no se ha recibido el prefijo, o
+	 *         0 si el prefijo no es válido
+	 */
+	public static int frameLength(ByteBuffer buf, boolean binary) {
+		if(binary) {
+			if(buf.remaining() < Integer.BYTES) return -1;
+			int length = buf.getInt(buf.position());
+			return (length < Byte.BYTES) ? 0 : Integer.BYTES + length;
+		}
+		if(buf.remaining() < Short.BYTES) return -1;
+		return Short.BYTES + Short.toUnsignedInt(buf.getShort(buf.position()));
+	}
+
+	/**
+	 * Lee un mensaje del socket con la codificación negociada para la conexión
+	 * 
+	 * @param dis    El flujo de entrada del socket
+	 * @param binary Si la conexión usa la codificación binaria
+	 * @return El mensaje leído
+	 * @throws IOException Si se produce un error al leer del socket
+	 */
+	public static PeerMessage readMessage(DataInputStream dis, boolean binary) throws IOException {
+		if(binary) {
+			return fromBinary(dis);
+		}
+		return fromString(dis.readUTF());
+	}
+
+	/**
+	 * Escribe el mensaje en el socket con la codificación negociada para la
+	 * conexión. El llamante es responsable de vaciar el flujo.
+	 * 
+	 * @param dos    El flujo de salida del socket
+	 * @param binary Si la conexión usa la codificación binaria
+	 * @throws IOException Si se produce un error al escribir en el socket
+	 */
+	public void writeMessage(DataOutputStream dos, boolean binary) throws IOException {
+		if(binary) {
+			toBinary(dos);
+		} else {
+			dos.writeUTF(toEncodedString());
+		}
+	}
 	
 	public static void main(String[] args) {
 		PeerMessage msg1 = new PeerMessage(PeerMessageOps.OP_DOWNLOAD, "1234");
@@ -1,5 +1,8 @@
 package es.um.redes.nanoFiles.message;
 
+import java.util.Map;
+import java.util.TreeMap;
+
 public class PeerMessageOps {
 
 	/*
@@ -10,5 +13,83 @@ public class PeerMessageOps {
 	public static final String OP_SERVEDFILES = "servedFiles";
 	public static final String OP_CLOSE = "close";
 	public static final String OP_UPLOAD = "upload";
+	public static final String OP_FILE_NOT_FOUND = "fileNotFound";
+	public static final String OP_CODEC = "codec";
+	public static final String OP_CODEC_OK = "codecOk";
+	public static final String OP_AMBIGUOUS_HASH = "ambiguousHash";
+	public static final String OP_DOWNLOAD_RANGE = "downloadRange";
+	public static final String OP_INVALID_RANGE = "invalidRange";
+	public static final String OP_GET_PIECE_HASHES = "getPieceHashes";
+	public static final String OP_PIECE_HASHES = "pieceHashes";
+
+	/*
+	 * Códigos de operación usados por la codificación binaria de los mensajes
+	 * (primer byte tras la longitud de la trama)
+	 */
+	public static final byte OPCODE_INVALID = -1;
+	public static final byte OPCODE_DOWNLOAD = 1;
+	public static final byte OPCODE_SERVEDFILES = 2;
+	public static final byte OPCODE_CLOSE = 3;
+	public static final byte OPCODE_UPLOAD = 4;
+	public static final byte OPCODE_FILE_NOT_FOUND = 5;
+	public static final byte OPCODE_CODEC = 6;
+	public static final byte OPCODE_CODEC_OK = 7;
+	public static final byte OPCODE_AMBIGUOUS_HASH = 8;
+	public static final byte OPCODE_DOWNLOAD_RANGE = 9;
+	public static final byte OPCODE_INVALID_RANGE = 10;
+	public static final byte OPCODE_GET_PIECE_HASHES = 11;
+	public static final byte OPCODE_PIECE_HASHES = 12;
+
+	private static final Byte[] _valid_opcodes = {
+			OPCODE_DOWNLOAD,
+			OPCODE_SERVEDFILES,
+			OPCODE_CLOSE,
+			OPCODE_UPLOAD,
+			OPCODE_FILE_NOT_FOUND,
+			OPCODE_CODEC,
+			OPCODE_CODEC_OK,
+			OPCODE_AMBIGUOUS_HASH,
+			OPCODE_DOWNLOAD_RANGE,
+			OPCODE_INVALID_RANGE,
+			OPCODE_GET_PIECE_HASHES,
+			OPCODE_PIECE_HASHES };
+	private static final String[] _valid_operations_str = {
+			OP_DOWNLOAD,
+			OP_SERVEDFILES,
+			OP_CLOSE,
+			OP_UPLOAD,
+			OP_FILE_NOT_FOUND,
+			OP_CODEC,
+			OP_CODEC_OK,
+			OP_AMBIGUOUS_HASH,
+			OP_DOWNLOAD_RANGE,
+			OP_INVALID_RANGE,
+			OP_GET_PIECE_HASHES,
+			OP_PIECE_HASHES };
 
+	private static Map<String, Byte> _operation_to_opcode;
+	private static Map<Byte, String> _opcode_to_operation;
+
+	static {
+		_operation_to_opcode = new TreeMap<>();
+		_opcode_to_operation = new TreeMap<>();
+		for (int i = 0; i < _valid_operations_str.length; ++i) {
+			_operation_to_opcode.put(_valid_operations_str[i], _valid_opcodes[i]);
+			_opcode_to_operation.put(_valid_opcodes[i], _valid_operations_str[i]);
+		}
+	}
+
+	/**
+	 * Transforma una operación en el opcode correspondiente
+	 */
+	public static byte operationToOpcode(String operation) {
+		return _operation_to_opcode.getOrDefault(operation, OPCODE_INVALID);
+	}
+
+	/**
+	 * Transforma un opcode en la operación correspondiente
+	 */
+	public static String opcodeToOperation(byte opcode) {
+		return _opcode_to_operation.getOrDefault(opcode, null);
+	}
 }
@@ -1,61 +1,207 @@
 package es.um.redes.nanoFiles.server;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import com.sun.management.UnixOperatingSystemMXBean;
 
 /**
- * Servidor que se ejecuta en un hilo propio. Creará objetos
- * {@link NFServerThread} cada vez que se conecte un cliente.
+ * Servidor que se ejecuta en un hilo propio. Creará una tarea
+ * {@link NFServerThread} cada vez que se conecte un cliente, y las ejecutará
+ * en un ejecutor acotado: un pool de hilos de plataforma (modo "pool") o un
+ * hilo virtual por conexión (modo "virtual"). En el modo "nio" delega en
+ * {@link NFServerNio}, que atiende todas las conexiones con unos pocos hilos
+ * con selector.
  */
 public class NFServer implements Runnable {
 
+	/**
+	 * Modos de servicio que se pueden seleccionar al crear el servidor
+	 */
+	public static final String MODE_POOL = "pool";
+	public static final String MODE_VIRTUAL = "virtual";
+	public static final String MODE_NIO = "nio";
+	public static final String DEFAULT_MODE = MODE_POOL;
+	/**
+	 * Número de hilos del pool en el modo MODE_POOL
+	 */
+	public static final int DEFAULT_POOL_SIZE = 64;
+	/**
+	 * Número máximo de conexiones atendidas o en cola a la vez. En el modo
+	 * MODE_POOL, las conexiones que no tienen hilo libre esperan en la cola del
+	 * pool; una vez alcanzado este límite, las nuevas conexiones se rechazan
+	 * (se cierran nada más aceptarlas).
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 512;
+	/**
+	 * Número máximo de conexiones en el modo MODE_NIO, en el que las conexiones
+	 * inactivas apenas consumen recursos: NIO_MAX_CONNECTIONS, o menos si el
+	 * límite de descriptores de fichero del proceso no da para tantas. Cada
+	 * conexión usa un descriptor, y otro mientras envía un fichero, y se
+	 * reservan FD_RESERVE para el resto del programa. Así se rechazan las
+	 * conexiones antes de que accept falle por falta de descriptores.
+	 */
+	public static final int NIO_MAX_CONNECTIONS = 65536;
+	private static final int FD_RESERVE = 64;
+	public static final int DEFAULT_NIO_MAX_CONNECTIONS = nioMaxConnections();
+	/**
+	 * Longitud de la cola de conexiones pendientes de aceptar. Con la cola por
+	 * defecto (50), una ráfaga de conexiones la llena y el sistema descarta los
+	 * SYN, lo que retrasa cada conexión descartada un segundo o más.
+	 */
+	public static final int ACCEPT_BACKLOG = 1024;
+
 	private ServerSocket serverSocket = null;
+	private ExecutorService executor;
+	private Semaphore connectionPermits;
+	/**
+	 * Sockets de las conexiones en curso, para cerrarlos al detener el servidor
+	 * (interrumpir los hilos no desbloquea la E/S de los sockets)
+	 */
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	private NFServerNio nioServer = null;
 
 	public NFServer(int port) throws IOException {
+		this(port, DEFAULT_MODE);
+	}
+
+	public NFServer(int port, String mode) throws IOException {
+		this(port, mode, mode.equals(MODE_NIO) ? DEFAULT_NIO_MAX_CONNECTIONS : DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * @param port           El puerto en el que escuchar
+	 * @param mode           El modo de servicio (MODE_POOL, MODE_VIRTUAL o
+	 *                       MODE_NIO)
+	 * @param maxConnections El número máximo de conexiones simultáneas
+	 */
+	public NFServer(int port, String mode, int maxConnections) throws IOException {
 		/*
 		 * Crear una direción de socket a partir del puerto especificado
 		 */
 		InetSocketAddress addr = new InetSocketAddress(port);
-		
+
 		/*
-		 * Crear un socket servidor y ligarlo a la dirección de socket anterior
+		 * Crear un socket servidor y ligarlo a la dirección de socket anterior. Se
+		 * obtiene de un ServerSocketChannel para que los sockets aceptados tengan
+		 * un canal asociado y NFServerComm pueda enviar ficheros sin copia
 		 */
-		serverSocket = new ServerSocket();
-		serverSocket.bind(addr);
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverSocket = serverChannel.socket();
+		serverSocket.bind(addr, ACCEPT_BACKLOG);
+
+		if(mode.equals(MODE_NIO)) {
+			nioServer = new NFServerNio(serverChannel, Runtime.getRuntime().availableProcessors(), maxConnections);
+			return;
+		}
+		connectionPermits = new Semaphore(maxConnections);
+		executor = createExecutor(mode, maxConnections);
+	}
+
+	public static boolean isValidMode(String mode) {
+		return mode.equals(MODE_POOL) || mode.equals(MODE_VIRTUAL) || mode.equals(MODE_NIO);
+	}
+
+	/**
+	 * Crea el ejecutor para el modo indicado. Los hilos virtuales requieren Java
+	 * 21; con versiones anteriores se usa el pool de hilos de plataforma.
+	 */
+	private static int nioMaxConnections() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(!(os instanceof UnixOperatingSystemMXBean)) {
+			return NIO_MAX_CONNECTIONS;
+		}
+		long fdLimit = ((UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+		if(fdLimit <= 0) {
+			return NIO_MAX_CONNECTIONS;
+		}
+		return (int) Math.max(1, Math.min(NIO_MAX_CONNECTIONS, (fdLimit - FD_RESERVE) / 2));
+	}
+
+	private static ExecutorService createExecutor(String mode, int maxConnections) {
+		if(mode.equals(MODE_VIRTUAL)) {
+			try {
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				System.err.println("Virtual threads are not available in this JVM, using a thread pool instead.");
+			}
+		}
+		return Executors.newFixedThreadPool(Math.min(DEFAULT_POOL_SIZE, maxConnections));
 	}
 
 	/**
 	 * Método que ejecuta el hilo principal del servidor (creado por startServer).
-	 * 
+	 *
 	 * @see java.lang.Runnable#run()
 	 */
 	public void run() {
-		while (true) {
+		if(nioServer != null) {
+			nioServer.run();
+			return;
+		}
+		while (!serverSocket.isClosed()) {
 			try {
 			/*
 			 * Usar el socket servidor para esperar conexiones de otros peers que
 			 * soliciten descargar ficheros
 			 */
 				Socket socket = serverSocket.accept();
+
+			/*
+			 * Si se ha alcanzado el máximo de conexiones, se rechaza la nueva
+			 * conexión cerrando el socket
+			 */
+				if(!connectionPermits.tryAcquire()) {
+					System.err.println("\nRejected client " + socket.getInetAddress().toString() + ":"
+							+ socket.getPort() + " (too many connections)");
+					socket.close();
+					continue;
+				}
 				System.out.println("\nNew client connected: " +
 						socket.getInetAddress().toString() + ":" + socket.getPort());
-			
+
 			/*
 			 * Al establecerse la conexión con un peer, la comunicación con dicho
-			 * cliente se hace en el método NFServerComm.serveFilesToClient(socket), al cual
-			 * hay que pasarle el objeto Socket devuelto por accept (retorna un nuevo socket
-			 * para hablar directamente con el nuevo cliente conectado)
+			 * cliente se hace en una tarea NFServerThread (que llama a
+			 * NFServerComm.serveFilesToClient) ejecutada por el ejecutor, de modo que
+			 * el hilo servidor puede volver a aceptar conexiones inmediatamente
 			 */
-				NFServerComm.serveFilesToClient(socket);
+				connections.add(socket);
+				try {
+					executor.execute(new NFServerThread(socket, this));
+				} catch (RejectedExecutionException e) {
+					socket.close();
+					connectionClosed(socket);
+				}
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				if(!serverSocket.isClosed()) {
+					e.printStackTrace();
+				}
 			}
 		}
 	}
 
+	/**
+	 * Anota que ha terminado una conexión, liberando su permiso. Lo llama la
+	 * tarea que la atendía tras cerrar el socket.
+	 */
+	void connectionClosed(Socket socket) {
+		if(connections.remove(socket)) {
+			connectionPermits.release();
+		}
+	}
+
 	/**
 	 * Método que crea un hilo de esta clase y lo ejecuta en segundo plano,
 	 * empezando por el método "run".
@@ -66,15 +212,26 @@ public class NFServer implements Runnable {
 
 	/**
 	 * Método que detiene el servidor, cierra el socket servidor y termina los hilos
-	 * que haya ejecutándose
+	 * que haya ejecutándose, cerrando los sockets de sus conexiones para que las
+	 * transferencias en curso terminen
 	 */
 	public void stopServer() {
+		if(nioServer != null) {
+			nioServer.stop();
+			return;
+		}
 		try {
 			serverSocket.close();
-			Thread.currentThread().interrupt();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		executor.shutdownNow();
+		for(Socket socket : connections) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 }
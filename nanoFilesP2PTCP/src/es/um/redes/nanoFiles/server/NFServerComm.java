@@ -1,25 +1,43 @@
 package es.um.redes.nanoFiles.server;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
 
-import es.um.redes.nanoFiles.client.application.NanoFiles;
 import es.um.redes.nanoFiles.message.*;
-import es.um.redes.nanoFiles.util.*;
 
 public class NFServerComm {
 
+	/**
+	 * Contadores de transferencias servidas por cada una de las dos vías: sin
+	 * copia (FileChannel.transferTo directamente al canal del socket) o copiando
+	 * los datos a través de un buffer en memoria. Se consultan con el comando
+	 * myfiles.
+	 */
+	private static final AtomicLong zeroCopyTransfers = new AtomicLong();
+	private static final AtomicLong bufferedTransfers = new AtomicLong();
+
+	public static long getZeroCopyTransfers() {
+		return zeroCopyTransfers.get();
+	}
+
+	public static long getBufferedTransfers() {
+		return bufferedTransfers.get();
+	}
+
 	public static void serveFilesToClient(Socket socket) {
-		boolean clientConnected = true;
-		String readmsg, response;
-		PeerMessage peermsg, peerresponse;
+		NFServerSession session = new NFServerSession();
+		PeerMessage peermsg, reply;
 		
 		// Bucle para atender mensajes del cliente
 		try {
@@ -27,54 +45,149 @@ public class NFServerComm {
 			 * Crear dis/dos a partir del socket
 			 */
 			DataInputStream dis = new DataInputStream(socket.getInputStream());
-			DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 
-			while (clientConnected) { // Bucle principal del servidor
+			while (session.isConnected()) { // Bucle principal del servidor
 				// Leer un mensaje de socket y convertirlo a un objeto PeerMessage
-				readmsg = dis.readUTF();
-				peermsg = PeerMessage.fromString(readmsg);
+				peermsg = PeerMessage.readMessage(dis, session.isBinary());
+				if(peermsg == null) continue;
 				
 				/*
-				 * TODO: Actuar en función del tipo de mensaje recibido. Se pueden crear
-				 * métodos en esta clase, cada uno encargado de procesar/responder un tipo de petición.
+				 * Actuar en función del tipo de mensaje recibido. La sesión decide la
+				 * respuesta y, en el caso de una descarga, el fichero a enviar tras ella.
 				 */
-				switch(peermsg.getOperation()) {
-					case PeerMessageOps.OP_DOWNLOAD:
-						String content = download(peermsg.getName());
-						peerresponse = new PeerMessage(PeerMessageOps.OP_UPLOAD, content);
-						response = peerresponse.toEncodedString();
-						dos.writeUTF(response);
-					break;
-					
-					case PeerMessageOps.OP_SERVEDFILES:
-						
-					break;
-					
-					case PeerMessageOps.OP_CLOSE:
-						clientConnected = false;
-					break;
+				reply = session.process(peermsg);
+				if(reply != null) {
+					reply.writeMessage(dos, session.isReplyBinary());
 				}
+				if(session.hasPendingFile()) {
+					sendFile(session.getPendingFile(), session.getPendingOffset(), session.getPendingSize(), dos,
+							socket.getChannel());
+					session.clearPendingFile();
+				}
+				dos.flush();
 			}
 			socket.close();
+		} catch (EOFException e) {
+			// El cliente ha cerrado la conexión sin enviar un mensaje de cierre
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			/*
+			 * Un error en una conexión sólo termina esa conexión; el socket lo cierra
+			 * NFServerThread. Si ya está cerrado es que el servidor se ha detenido.
+			 */
+			if(!socket.isClosed()) {
+				System.err.println("Connection with client " + socket.getRemoteSocketAddress() + " closed: " + e);
+			}
 		}
 	}
 
-	private static String download(String hash) {
-		String path = NanoFiles.db.lookupFilePath(hash);
-		String content = null;
-		File f = new File(path);
-		try {
-			FileInputStream fis = new FileInputStream(f);
-			content = new String(fis.readAllBytes());
-			fis.close();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	/**
+	 * Envía al cliente el contenido de un fichero, o los size bytes a partir de
+	 * offset, tras la cabecera OP_UPLOAD con su hash y tamaño. El contenido se trocea en fragmentos de como mucho
+	 * PeerMessage.CHUNK_SIZE bytes, cada uno precedido de su longitud. Así la
+	 * memoria usada por transferencia está acotada por el tamaño del fragmento,
+	 * sea cual sea el tamaño del fichero. Si el fichero se acorta mientras se
+	 * envía, se manda una longitud -1 para que el cliente aborte la descarga.
+	 * 
+	 * Si el socket tiene un canal asociado (fue aceptado por un
+	 * ServerSocketChannel), los datos se envían con FileChannel.transferTo, de
+	 * modo que el sistema operativo los copia del fichero al socket sin pasar por
+	 * el heap. En otro caso se copian a través de un buffer.
+	 */
+	private static void sendFile(File f, long offset, long size, DataOutputStream dos, SocketChannel channel)
+			throws IOException {
+		boolean zeroCopy = false;
+		if(channel != null) {
+			zeroCopy = sendFileZeroCopy(f, offset, size, dos, channel);
+		} else {
+			sendFileBuffered(f, offset, size, dos);
 		}
-		
-		return content;
+		transferCompleted(zeroCopy);
+	}
+
+	/**
+	 * Anota una transferencia terminada en los contadores
+	 * 
+	 * @param zeroCopy Si se envió todo el fichero sin copia
+	 */
+	static void transferCompleted(boolean zeroCopy) {
+		if(zeroCopy) {
+			zeroCopyTransfers.incrementAndGet();
+		} else {
+			bufferedTransfers.incrementAndGet();
+		}
+	}
+
+	private static void sendFileBuffered(File f, long offset, long size, DataOutputStream dos) throws IOException {
+		long remaining = size;
+		byte[] chunk = new byte[PeerMessage.CHUNK_SIZE];
+		try (FileInputStream fis = new FileInputStream(f)) {
+			fis.getChannel().position(offset);
+			while(remaining > 0) {
+				int read = fis.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+				if(read == -1) {
+					dos.writeInt(-1);
+					break;
+				}
+				dos.writeInt(read);
+				dos.write(chunk, 0, read);
+				remaining -= read;
+			}
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Envía el fichero por el canal con FileChannel.transferTo. Si transferTo no
+	 * avanza (por ejemplo, cuando el canal está en modo no bloqueante por debajo,
+	 * como ocurre con los hilos virtuales), el resto del fragmento se copia a
+	 * través de un buffer.
+	 * 
+	 * @return true si todo el fichero se envió sin copia
+	 */
+	private static boolean sendFileZeroCopy(File f, long offset, long size, DataOutputStream dos, SocketChannel channel)
+			throws IOException {
+		boolean zeroCopy = true;
+		long position = offset;
+		long end = offset + size;
+		ByteBuffer buffer = null;
+		try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			while(position < end) {
+				int length = (int) Math.min(PeerMessage.CHUNK_SIZE, end - position);
+				if(fc.size() < position + length) {
+					dos.writeInt(-1);
+					break;
+				}
+				// La longitud del fragmento se vacía antes de escribir en el canal
+				dos.writeInt(length);
+				dos.flush();
+				long sent = 0;
+				while(sent < length) {
+					long n = fc.transferTo(position + sent, length - sent, channel);
+					if(n > 0) {
+						sent += n;
+						continue;
+					}
+					zeroCopy = false;
+					if(buffer == null) {
+						buffer = ByteBuffer.allocate(PeerMessage.CHUNK_SIZE);
+					}
+					buffer.clear().limit((int) (length - sent));
+					while(buffer.hasRemaining()) {
+						if(fc.read(buffer, position + sent + buffer.position()) < 0) {
+							throw new IOException("File " + f.getName() + " shrank while being served");
+						}
+					}
+					buffer.flip();
+					while(buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+					sent = length;
+				}
+				position += length;
+			}
+		}
+		dos.flush();
+		return zeroCopy;
 	}
 }
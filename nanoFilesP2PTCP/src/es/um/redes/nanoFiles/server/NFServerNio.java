@@ -0,0 +1,377 @@
+package es.um.redes.nanoFiles.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import es.um.redes.nanoFiles.message.PeerMessage;
+
+/**
+ * Servidor de ficheros basado en selectores. En lugar de un hilo por conexión,
+ * un hilo acepta conexiones y las reparte entre unos pocos hilos (uno por
+ * núcleo), cada uno con su propio Selector, que atienden todas sus conexiones
+ * con lecturas y escrituras no bloqueantes. Cada conexión tiene sus propios
+ * buffers y un NFServerSession con el estado de la conversación, de modo que
+ * se pueden mantener decenas de miles de sesiones inactivas sin un hilo por
+ * cada una.
+ *
+ * El contenido de los ficheros se envía con FileChannel.transferTo, en los
+ * mismos fragmentos con prefijo de longitud que usa NFServerComm.
+ */
+public class NFServerNio implements Runnable {
+
+	/**
+	 * Tamaño inicial del buffer de entrada de cada conexión. Las peticiones son
+	 * pequeñas; si llega una trama mayor, el buffer crece hasta MAX_FRAME_SIZE.
+	 */
+	private static final int INITIAL_INPUT_BUFFER_SIZE = 1024;
+	private static final int MAX_FRAME_SIZE = 1024 * 1024;
+	/**
+	 * Pausa en milisegundos tras un fallo de accept que no se debe al cierre del
+	 * servidor (por ejemplo, por haberse agotado los descriptores de fichero),
+	 * para no reintentarlo sin parar mientras dure el problema
+	 */
+	private static final int ACCEPT_ERROR_BACKOFF = 100;
+
+	private ServerSocketChannel serverChannel;
+	private SelectorLoop[] loops;
+	private int maxConnections;
+	private AtomicInteger activeConnections = new AtomicInteger();
+	private volatile boolean running = true;
+
+	/**
+	 * @param serverChannel   El canal servidor ya ligado al puerto
+	 * @param selectorThreads El número de hilos con selector
+	 * @param maxConnections  El número máximo de conexiones simultáneas
+	 */
+	public NFServerNio(ServerSocketChannel serverChannel, int selectorThreads, int maxConnections) throws IOException {
+		this.serverChannel = serverChannel;
+		this.maxConnections = maxConnections;
+		loops = new SelectorLoop[selectorThreads];
+		for(int i = 0; i < selectorThreads; i++) {
+			loops[i] = new SelectorLoop(Selector.open());
+		}
+	}
+
+	/**
+	 * Acepta conexiones (de forma bloqueante) y las reparte por turnos entre los
+	 * hilos con selector. Si accept falla, se informa sólo del primer error
+	 * hasta que vuelve a aceptar una conexión, y se espera ACCEPT_ERROR_BACKOFF
+	 * antes de reintentarlo.
+	 */
+	public void run() {
+		for(int i = 0; i < loops.length; i++) {
+			new Thread(loops[i], "NFServerNio-" + i).start();
+		}
+		int next = 0;
+		boolean failing = false;
+		while(running) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				if(failing) {
+					System.err.println("\nAccepting connections again");
+					failing = false;
+				}
+				if(activeConnections.incrementAndGet() > maxConnections) {
+					activeConnections.decrementAndGet();
+					System.err.println("\nRejected client " + channel.getRemoteAddress() + " (too many connections)");
+					channel.close();
+					continue;
+				}
+				loops[next].add(channel);
+				next = (next + 1) % loops.length;
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				if(!failing) {
+					System.err.println("\nError accepting connections, retrying: " + e);
+					failing = true;
+				}
+				try {
+					Thread.sleep(ACCEPT_ERROR_BACKOFF);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+	}
+
+	public void stop() {
+		running = false;
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		for(SelectorLoop loop : loops) {
+			loop.selector.wakeup();
+		}
+	}
+
+	public int getActiveConnections() {
+		return activeConnections.get();
+	}
+
+	/**
+	 * Estado de una conexión: su sesión, el buffer de entrada y lo pendiente de
+	 * enviar (una respuesta y, tras ella, el contenido de un fichero)
+	 */
+	private static class Connection {
+		SocketChannel channel;
+		NFServerSession session = new NFServerSession();
+		ByteBuffer in = ByteBuffer.allocate(INITIAL_INPUT_BUFFER_SIZE);
+		ByteBuffer out = null;
+		ByteBuffer chunkHeader = ByteBuffer.allocate(Integer.BYTES);
+		FileChannel file = null;
+		File fileInfo = null;
+		long fileSize;
+		long filePosition;
+		long fileEnd;
+		int chunkRemaining;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		boolean isWriting() {
+			return (out != null && out.hasRemaining()) || file != null;
+		}
+	}
+
+	/**
+	 * Hilo con un selector que atiende un subconjunto de las conexiones
+	 */
+	private class SelectorLoop implements Runnable {
+		private Selector selector;
+		private Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+
+		SelectorLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		void add(SocketChannel channel) {
+			pending.add(channel);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while(running) {
+				try {
+					selector.select();
+					registerPending();
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Connection conn = (Connection) key.attachment();
+						try {
+							if(key.isReadable() && !read(key, conn)) {
+								continue;
+							}
+							service(key, conn);
+						} catch (IOException | RuntimeException e) {
+							// Un error en una conexión sólo cierra esa conexión
+							close(key, conn);
+						}
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			for(SelectionKey key : selector.keys()) {
+				close(key, (Connection) key.attachment());
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void registerPending() {
+			SocketChannel channel;
+			while((channel = pending.poll()) != null) {
+				try {
+					channel.configureBlocking(false);
+					channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+				} catch (IOException e) {
+					activeConnections.decrementAndGet();
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lee lo disponible en el socket al buffer de entrada
+	 *
+	 * @return falso si el cliente ha cerrado la conexión
+	 */
+	private boolean read(SelectionKey key, Connection conn) throws IOException {
+		if(conn.channel.read(conn.in) == -1) {
+			close(key, conn);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Avanza la máquina de estados de la conexión tanto como sea posible sin
+	 * bloquearse: envía lo pendiente y, cuando no queda nada por enviar, procesa
+	 * la siguiente petición completa del buffer de entrada. Mientras se envía
+	 * una respuesta no se leen más peticiones, de modo que un cliente no puede
+	 * acumular trabajo en el servidor.
+	 */
+	private void service(SelectionKey key, Connection conn) throws IOException {
+		while(true) {
+			if(conn.isWriting() && !write(conn)) {
+				key.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			if(!conn.session.isConnected()) {
+				close(key, conn);
+				return;
+			}
+			if(!processNextRequest(conn)) {
+				key.interestOps(SelectionKey.OP_READ);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Procesa la siguiente petición si ya se ha recibido completa
+	 *
+	 * @return falso si no hay ninguna petición completa en el buffer
+	 */
+	private boolean processNextRequest(Connection conn) throws IOException {
+		ByteBuffer in = conn.in;
+		in.flip();
+		int frame = PeerMessage.frameLength(in, conn.session.isBinary());
+		if(frame == 0) {
+			throw new IOException("Malformed frame");
+		}
+		if(frame < 0 || in.remaining() < frame) {
+			if(frame > in.capacity()) {
+				if(frame > MAX_FRAME_SIZE) {
+					throw new IOException("Frame too large: " + frame + " bytes");
+				}
+				conn.in = ByteBuffer.allocate(frame).put(in);
+			} else {
+				in.compact();
+			}
+			return false;
+		}
+		DataInputStream dis = new DataInputStream(
+				new ByteArrayInputStream(in.array(), in.arrayOffset() + in.position(), frame));
+		in.position(in.position() + frame);
+		in.compact();
+
+		PeerMessage request = PeerMessage.readMessage(dis, conn.session.isBinary());
+		if(request == null) {
+			return true;
+		}
+		PeerMessage reply = conn.session.process(request);
+		if(reply != null) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			reply.writeMessage(new DataOutputStream(baos), conn.session.isReplyBinary());
+			conn.out = ByteBuffer.wrap(baos.toByteArray());
+		}
+		if(conn.session.hasPendingFile()) {
+			conn.fileInfo = conn.session.getPendingFile();
+			conn.fileSize = conn.session.getPendingSize();
+			conn.file = FileChannel.open(conn.fileInfo.toPath(), StandardOpenOption.READ);
+			conn.filePosition = conn.session.getPendingOffset();
+			conn.fileEnd = conn.filePosition + conn.fileSize;
+			conn.chunkRemaining = 0;
+			conn.session.clearPendingFile();
+		}
+		return true;
+	}
+
+	/**
+	 * Envía lo pendiente: la respuesta y, tras ella, los fragmentos del fichero,
+	 * cada uno con su cabecera de longitud seguida de los datos enviados con
+	 * transferTo
+	 *
+	 * @return verdadero si se ha enviado todo, falso si el socket no admite más
+	 *         datos por ahora
+	 */
+	private boolean write(Connection conn) throws IOException {
+		while(true) {
+			if(conn.out != null && conn.out.hasRemaining()) {
+				conn.channel.write(conn.out);
+				if(conn.out.hasRemaining()) {
+					return false;
+				}
+			}
+			if(conn.file == null) {
+				return true;
+			}
+			if(conn.chunkRemaining == 0) {
+				long remaining = conn.fileEnd - conn.filePosition;
+				if(remaining == 0) {
+					conn.file.close();
+					conn.file = null;
+					NFServerComm.transferCompleted(true);
+					continue;
+				}
+				int length = (int) Math.min(PeerMessage.CHUNK_SIZE, remaining);
+				conn.chunkHeader.clear();
+				if(conn.file.size() < conn.filePosition + length) {
+					// El fichero se ha acortado: se indica al cliente que aborte
+					conn.chunkHeader.putInt(-1).flip();
+					conn.out = conn.chunkHeader;
+					conn.file.close();
+					conn.file = null;
+					continue;
+				}
+				conn.chunkHeader.putInt(length).flip();
+				conn.out = conn.chunkHeader;
+				conn.chunkRemaining = length;
+				continue;
+			}
+			long n = conn.file.transferTo(conn.filePosition, conn.chunkRemaining, conn.channel);
+			if(n == 0) {
+				if(conn.file.size() < conn.filePosition + conn.chunkRemaining) {
+					throw new IOException("File " + conn.fileInfo.getName() + " shrank while being served");
+				}
+				return false;
+			}
+			conn.filePosition += n;
+			conn.chunkRemaining -= n;
+		}
+	}
+
+	private void close(SelectionKey key, Connection conn) {
+		if(!conn.channel.isOpen()) {
+			return;
+		}
+		key.cancel();
+		try {
+			conn.channel.close();
+			if(conn.file != null) {
+				conn.file.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		activeConnections.decrementAndGet();
+	}
+}
@@ -0,0 +1,225 @@
+package es.um.redes.nanoFiles.server;
+
+import java.io.File;
+import java.util.LinkedList;
+import java.util.List;
+
+import es.um.redes.nanoFiles.client.application.NanoFiles;
+import es.um.redes.nanoFiles.message.PeerMessage;
+import es.um.redes.nanoFiles.message.PeerMessageOps;
+import es.um.redes.nanoFiles.util.FileInfo;
+
+/**
+ * Estado de la conversación del servidor de ficheros con un cliente. Procesa
+ * cada petición recibida y decide la respuesta, sin realizar ninguna operación
+ * de entrada/salida, de modo que puede usarse tanto desde el servidor con
+ * sockets bloqueantes (NFServerComm) como desde el servidor basado en
+ * selectores (NFServerNio).
+ *
+ * Tras llamar a process, el llamante debe enviar la respuesta devuelta con la
+ * codificación indicada por isReplyBinary y, si hasPendingFile es cierto, el
+ * contenido del fichero pendiente en fragmentos (ver NFServerComm). Las
+ * siguientes peticiones se leen con la codificación indicada por isBinary.
+ */
+public class NFServerSession {
+
+	/**
+	 * Si la conexión sigue abierta (no se ha recibido OP_CLOSE)
+	 */
+	private boolean connected = true;
+	/**
+	 * Codificación negociada para leer las siguientes peticiones
+	 */
+	private boolean binary = false;
+	/**
+	 * Codificación con la que se debe enviar la última respuesta
+	 */
+	private boolean replyBinary = false;
+	/**
+	 * Fichero cuyo contenido hay que enviar tras la última respuesta, la
+	 * posición desde la que se envía y el tamaño anunciado en la cabecera
+	 * OP_UPLOAD (todo el fichero, o el rango pedido)
+	 */
+	private File pendingFile = null;
+	private long pendingOffset = 0;
+	private long pendingSize = 0;
+
+	/**
+	 * Procesa una petición del cliente y actualiza el estado de la sesión.
+	 *
+	 * @param request La petición recibida
+	 * @return La respuesta a enviar al cliente, o null si no hay que responder
+	 */
+	public PeerMessage process(PeerMessage request) {
+		PeerMessage reply = null;
+		replyBinary = binary;
+		pendingFile = null;
+		switch(request.getOperation()) {
+			case PeerMessageOps.OP_CODEC:
+				/*
+				 * La respuesta se envía aún con la codificación actual, y a partir de ella
+				 * ambos extremos usan la codificación aceptada (la binaria si el cliente
+				 * la propone, texto en otro caso)
+				 */
+				binary = request.getName().equals(PeerMessage.CODEC_BINARY);
+				String codec = binary ? PeerMessage.CODEC_BINARY : PeerMessage.CODEC_TEXT;
+				reply = new PeerMessage(PeerMessageOps.OP_CODEC_OK, codec);
+			break;
+
+			case PeerMessageOps.OP_DOWNLOAD:
+				reply = download(request.getName());
+			break;
+
+			case PeerMessageOps.OP_DOWNLOAD_RANGE:
+				reply = downloadRange(request.getName(), request.getOffset(), request.getSize());
+			break;
+
+			case PeerMessageOps.OP_GET_PIECE_HASHES:
+				reply = pieceHashes(request.getName(), request.getOffset(), request.getSize());
+			break;
+
+			case PeerMessageOps.OP_SERVEDFILES:
+
+			break;
+
+			case PeerMessageOps.OP_CLOSE:
+				connected = false;
+			break;
+		}
+		return reply;
+	}
+
+	/**
+	 * Busca el fichero solicitado, identificado por su hash o por un prefijo de
+	 * él, y prepara la cabecera OP_UPLOAD con su hash completo y tamaño, dejando
+	 * el fichero pendiente de envío. Si el prefijo corresponde a varios ficheros,
+	 * responde con OP_AMBIGUOUS_HASH y los hashes de algunos de ellos.
+	 */
+	private PeerMessage download(String hash) {
+		FileInfo file = lookup(hash);
+		if(file == null) {
+			return notFound(hash);
+		}
+		pendingFile = new File(file.filePath);
+		pendingOffset = 0;
+		pendingSize = pendingFile.length();
+		return new PeerMessage(PeerMessageOps.OP_UPLOAD, file.fileHash, pendingSize);
+	}
+
+	/**
+	 * Como download, pero sólo deja pendientes de envío los length bytes a partir
+	 * de offset, y la cabecera OP_UPLOAD anuncia el tamaño del rango. Si el rango
+	 * no está dentro del fichero, responde con OP_INVALID_RANGE. Un tamaño
+	 * PeerMessage.RANGE_TO_END pide hasta el final del fichero.
+	 */
+	private PeerMessage downloadRange(String hash, long offset, long length) {
+		FileInfo file = lookup(hash);
+		if(file == null) {
+			return notFound(hash);
+		}
+		File f = new File(file.filePath);
+		if(length == PeerMessage.RANGE_TO_END && offset >= 0) {
+			length = Math.max(0, f.length() - offset);
+		}
+		if(offset < 0 || length < 0 || offset > f.length() - length) {
+			return new PeerMessage(PeerMessageOps.OP_INVALID_RANGE);
+		}
+		pendingFile = f;
+		pendingOffset = offset;
+		pendingSize = length;
+		return new PeerMessage(PeerMessageOps.OP_UPLOAD, file.fileHash, length);
+	}
+
+	/**
+	 * Responde con los hashes de hasta count piezas del fichero a partir de la
+	 * pieza first (como mucho PeerMessage.MAX_PIECE_HASHES), calculados al
+	 * escanear la carpeta compartida. La respuesta incluye el hash completo y el
+	 * tamaño del fichero, con los que el cliente sabe cuántas piezas tiene.
+	 */
+	private PeerMessage pieceHashes(String hash, long first, long count) {
+		FileInfo file = lookup(hash);
+		if(file == null) {
+			return notFound(hash);
+		}
+		if(file.merkleTree == null) {
+			return new PeerMessage(PeerMessageOps.OP_FILE_NOT_FOUND);
+		}
+		int pieces = file.merkleTree.getPieceCount();
+		if(first < 0 || count < 0 || first > pieces) {
+			return new PeerMessage(PeerMessageOps.OP_INVALID_RANGE);
+		}
+		int n = (int) Math.min(Math.min(count, pieces - first), PeerMessage.MAX_PIECE_HASHES);
+		return new PeerMessage(PeerMessageOps.OP_PIECE_HASHES, file.fileHash, first, file.fileSize,
+				file.merkleTree.getPieceHashesHex((int) first, n));
+	}
+
+	/**
+	 * Busca el único fichero compartido cuyo hash empieza por el prefijo, que
+	 * debe tener al menos PeerMessage.MIN_HASH_PREFIX caracteres
+	 *
+	 * @return El fichero, o null si no hay ninguno, hay varios o el prefijo es
+	 *         demasiado corto
+	 */
+	private FileInfo lookup(String hash) {
+		if(hash == null || hash.length() < PeerMessage.MIN_HASH_PREFIX) {
+			return null;
+		}
+		return NanoFiles.db.lookupUniqueHashPrefix(hash);
+	}
+
+	/**
+	 * Respuesta a una descarga cuyo hash no corresponde a un único fichero:
+	 * OP_FILE_NOT_FOUND (también si el prefijo es demasiado corto), u
+	 * OP_AMBIGUOUS_HASH con el número de ficheros que empiezan por él y los
+	 * hashes de los primeros PeerMessage.MAX_AMBIGUOUS_HASHES
+	 */
+	private PeerMessage notFound(String hash) {
+		if(hash == null || hash.length() < PeerMessage.MIN_HASH_PREFIX) {
+			return new PeerMessage(PeerMessageOps.OP_FILE_NOT_FOUND);
+		}
+		FileInfo[] candidates = NanoFiles.db.lookupHashPrefix(hash);
+		if(candidates.length == 0) {
+			return new PeerMessage(PeerMessageOps.OP_FILE_NOT_FOUND);
+		}
+		List<String> hashes = new LinkedList<String>();
+		for(int i = 0; i < Math.min(candidates.length, PeerMessage.MAX_AMBIGUOUS_HASHES); i++) {
+			hashes.add(candidates[i].fileHash);
+		}
+		return new PeerMessage(PeerMessageOps.OP_AMBIGUOUS_HASH, candidates.length, hashes);
+	}
+
+	public boolean isConnected() {
+		return connected;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public boolean isReplyBinary() {
+		return replyBinary;
+	}
+
+	public boolean hasPendingFile() {
+		return pendingFile != null;
+	}
+
+	public File getPendingFile() {
+		return pendingFile;
+	}
+
+	public long getPendingOffset() {
+		return pendingOffset;
+	}
+
+	public long getPendingSize() {
+		return pendingSize;
+	}
+
+	/**
+	 * Indica que el fichero pendiente ya se ha enviado
+	 */
+	public void clearPendingFile() {
+		pendingFile = null;
+	}
+}
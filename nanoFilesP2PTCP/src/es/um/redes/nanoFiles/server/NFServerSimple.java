@@ -5,6 +5,7 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 
 public class NFServerSimple {
 
@@ -19,9 +20,11 @@ public class NFServerSimple {
 		 */
 		InetSocketAddress FileServerSocketAddress = new InetSocketAddress(port);
 		/*
-		 * Crear un socket servidor y ligarlo a la dirección de socket anterior
+		 * Crear un socket servidor y ligarlo a la dirección de socket anterior. Se
+		 * obtiene de un ServerSocketChannel para que los sockets aceptados tengan
+		 * un canal asociado y NFServerComm pueda enviar ficheros sin copia
 		 */
-		serverSocket = new ServerSocket();
+		serverSocket = ServerSocketChannel.open().socket();
 		
 		serverSocket.bind(FileServerSocketAddress);
 		System.out.println("\nServer is listening on port " + port);
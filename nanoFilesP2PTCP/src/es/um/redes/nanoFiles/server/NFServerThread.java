@@ -3,23 +3,45 @@ package es.um.redes.nanoFiles.server;
 import java.io.IOException;
 import java.net.Socket;
 
-public class NFServerThread extends Thread {
+public class NFServerThread implements Runnable {
 	/*
-	 * TODO: Esta clase modela los hilos que son creados desde NFServer y cada uno
-	 * de los cuales simplemente se encarga de invocar a
+	 * Esta clase modela las tareas que son creadas desde NFServer, cada una de
+	 * las cuales simplemente se encarga de invocar a
 	 * NFServerComm.serveFilesToClient con el socket retornado por el método accept
-	 * (un socket distinto para "conversar" con un cliente)
+	 * (un socket distinto para "conversar" con un cliente). NFServer las ejecuta
+	 * en su ejecutor.
 	 */
-	
+
 	private Socket socket = null;
-	
+	/**
+	 * Servidor al que se avisa cuando termina la conexión, para que libere su
+	 * permiso de conexión
+	 */
+	private NFServer server = null;
+
 	public NFServerThread(Socket socket) throws IOException {
 		this.socket = socket;
 	}
-	
-	
+
+	public NFServerThread(Socket socket, NFServer server) throws IOException {
+		this.socket = socket;
+		this.server = server;
+	}
+
+
 	public void run() {
-		NFServerComm.serveFilesToClient(socket);
+		try {
+			NFServerComm.serveFilesToClient(socket);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if(server != null) {
+				server.connectionClosed(socket);
+			}
+		}
 	}
-	
+
 }
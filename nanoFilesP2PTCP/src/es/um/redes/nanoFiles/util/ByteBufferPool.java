@@ -0,0 +1,63 @@
+package es.um.redes.nanoFiles.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of equally sized heap ByteBuffers, so that code handling one
+ * datagram after another can reuse its buffers instead of allocating new ones.
+ * When the pool is empty a new buffer is allocated, and buffers released while
+ * the pool is full are simply dropped, so the pool never blocks and never
+ * holds more than its capacity.
+ *
+ * Safe for use by several threads. Acquiring and releasing do not allocate.
+ */
+public class ByteBufferPool {
+
+	private final int bufferSize;
+	private final ArrayBlockingQueue<ByteBuffer> free;
+
+	/**
+	 * @param bufferSize Capacity in bytes of each buffer
+	 * @param maxPooled  Maximum number of idle buffers kept in the pool
+	 */
+	public ByteBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.free = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, maxPooled));
+	}
+
+	/**
+	 * Takes a buffer from the pool, or allocates one if the pool is empty
+	 *
+	 * @return A cleared buffer of bufferSize bytes
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = free.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocate(bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not use it afterwards.
+	 * Buffers of a different size are ignored.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer != null && buffer.capacity() == bufferSize) {
+			free.offer(buffer);
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return The number of idle buffers currently in the pool
+	 */
+	public int available() {
+		return free.size();
+	}
+}
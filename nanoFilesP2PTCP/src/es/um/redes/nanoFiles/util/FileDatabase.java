@@ -5,9 +5,17 @@ import java.util.Map;
 
 public class FileDatabase {
 
-	private Map<String, FileInfo> files;
+	private final String sharedFolder;
+	/**
+	 * The shared files by hash and their index by hash, to resolve hash
+	 * prefixes. Both are replaced (never modified) when the folder is rescanned,
+	 * so they can be read by the server threads without locking.
+	 */
+	private volatile Map<String, FileInfo> files;
+	private volatile HashPrefixIndex hashIndex;
 
 	public FileDatabase(String sharedFolder) {
+		this.sharedFolder = sharedFolder;
 		File theDir = new File(sharedFolder);
 		if (!theDir.exists()){
 		    theDir.mkdirs();
@@ -16,9 +24,22 @@ public class FileDatabase {
 		if (files.size() == 0) {
 			System.err.println("*WARNING: No files found in folder "+sharedFolder);
 		}
+		this.hashIndex = new HashPrefixIndex(getFiles());
+	}
+
+	/**
+	 * Scans the shared folder again, so that files added to or removed from it
+	 * since the last scan are (or stop being) served
+	 */
+	public synchronized void rescan() {
+		Map<String, FileInfo> rescanned = FileInfo.loadFileMapFromFolder(new File(sharedFolder));
+		HashPrefixIndex index = new HashPrefixIndex(rescanned.values().toArray(new FileInfo[rescanned.size()]));
+		files = rescanned;
+		hashIndex = index;
 	}
 
 	public FileInfo[] getFiles() {
+		Map<String, FileInfo> files = this.files;
 		FileInfo[] fileinfoarray = new FileInfo[files.size()];
 		int numFiles = 0;
 		for(FileInfo f : files.values()) {
@@ -34,4 +55,26 @@ public class FileDatabase {
 		}
 		return null;
 	}
+
+	/**
+	 * Looks up the shared files whose hash starts with the given prefix
+	 * 
+	 * @param hashPrefix A hexadecimal prefix of the hash (a full hash is also a
+	 *                   prefix)
+	 * @return The matching files: none, one, or several if the prefix is
+	 *         ambiguous
+	 */
+	public FileInfo[] lookupHashPrefix(String hashPrefix) {
+		return hashIndex.lookup(hashPrefix);
+	}
+
+	/**
+	 * Looks up the shared file whose hash starts with the given prefix, without
+	 * allocating
+	 * 
+	 * @return The file, or null if none or several files match
+	 */
+	public FileInfo lookupUniqueHashPrefix(String hashPrefix) {
+		return hashIndex.lookupUnique(hashPrefix);
+	}
 }
@@ -4,6 +4,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -19,6 +20,13 @@ public class FileDigest {
 	 */
 	public static final String algorithm = "SHA-1";
 
+	/**
+	 * Size of the blocks in which files are read to compute their digests
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
 	/**
 	 * Get size of digests generated by this class
 	 * 
@@ -54,6 +62,18 @@ public class FileDigest {
 	 * @return Byte array with resulting file digest.
 	 */
 	public static byte[] computeFileChecksum(String filename) {
+		return computeFileChecksum(filename, null);
+	}
+
+	/**
+	 * Computes file digest for a given file, and its piece hashes in the same
+	 * pass over the file.
+	 * 
+	 * @param filename - the system-dependent file name.
+	 * @param pieces   - builder fed with the contents of the file, or null.
+	 * @return Byte array with resulting file digest.
+	 */
+	public static byte[] computeFileChecksum(String filename, MerkleTree.Builder pieces) {
 		MessageDigest md;
 		try {
 			md = MessageDigest.getInstance(algorithm);
@@ -65,11 +85,14 @@ public class FileDigest {
 		try {
 			fis = new FileInputStream(filename);
 			int numRead;
-			byte[] buffer = new byte[4096];
+			byte[] buffer = new byte[BUFFER_SIZE];
 			do {
 				numRead = fis.read(buffer);
 				if (numRead > 0) {
 					md.update(buffer, 0, numRead);
+					if (pieces != null) {
+						pieces.update(buffer, 0, numRead);
+					}
 				}
 			} while (numRead != -1);
 			fis.close();
@@ -96,4 +119,59 @@ public class FileDigest {
 		// return complete hash
 		return sb.toString();
 	}
+
+	/**
+	 * Writes the bytes of a hexadecimal digest string (either case) into a
+	 * buffer, without intermediate arrays.
+	 *
+	 * @param hex The digest as returned by getChecksumHexString
+	 * @param out The buffer to write hex.length() / 2 bytes to
+	 * @return false, without writing anything, if the string is not a valid
+	 *         hexadecimal string of even length
+	 */
+	public static boolean putChecksumFromHexString(String hex, ByteBuffer out) {
+		if (hex == null || hex.length() % 2 != 0) {
+			return false;
+		}
+		for (int i = 0; i < hex.length(); i++) {
+			if (hexValue(hex.charAt(i)) < 0) {
+				return false;
+			}
+		}
+		for (int i = 0; i < hex.length(); i += 2) {
+			out.put((byte) ((hexValue(hex.charAt(i)) << 4) | hexValue(hex.charAt(i + 1))));
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a digest of the given size from a buffer and returns it in
+	 * hexadecimal, like getChecksumHexString, without copying it to an array
+	 * first.
+	 */
+	public static String getChecksumHexString(ByteBuffer in, int size) {
+		char[] hex = new char[2 * size];
+		for (int i = 0; i < size; i++) {
+			int b = in.get() & 0xff;
+			hex[2 * i] = HEX_DIGITS[b >>> 4];
+			hex[2 * i + 1] = HEX_DIGITS[b & 0xf];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Value of an ASCII hexadecimal digit (either case), or -1
+	 */
+	private static int hexValue(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
 }
\ No newline at end of file
@@ -1,7 +1,6 @@
 package es.um.redes.nanoFiles.util;
 
 import java.io.File;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Vector;
@@ -13,6 +12,17 @@ public class FileInfo {
 	public String fileName;
 	public String filePath;
 	public long fileSize;
+	/**
+	 * Root (in hexadecimal) of the Merkle tree over the pieces of the file, or
+	 * null if unknown. Published to the directory along with the file, so that
+	 * piece hashes obtained from any peer can be checked against it.
+	 */
+	public String merkleRoot;
+	/**
+	 * Piece hashes of a local shared file, computed when the folder is scanned
+	 * and served to peers on request. Null for remote files.
+	 */
+	public MerkleTree merkleTree;
 
 	public FileInfo() {
 	}
@@ -67,42 +77,14 @@ public class FileInfo {
 
 	/**
 	 * Scans the given directory and returns a map of <filehash,FileInfo> pairs.
+	 * The files are hashed concurrently (see FolderScanner).
 	 * 
 	 * @param folder The folder to be scanned
 	 * @return A map of the metadata (FileInfo) of all the files recursively found
 	 *         in the given folder and its subdirectories.
 	 */
 	public static Map<String, FileInfo> loadFileMapFromFolder(final File folder) {
-		Map<String, FileInfo> files = new HashMap<String, FileInfo>();
-		scanFolderRecursive(folder, files);
-		return files;
-	}
-
-	private static void scanFolderRecursive(final File folder, Map<String, FileInfo> files) {
-		if (folder.exists() == false) {
-			System.err.println("scanFolder cannot find folder " + folder.getPath());
-			return;
-		}
-		if (folder.canRead() == false) {
-			System.err.println("scanFolder cannot access folder " + folder.getPath());
-			return;
-		}
-
-		for (final File fileEntry : folder.listFiles()) {
-			if (fileEntry.isDirectory()) {
-				scanFolderRecursive(fileEntry, files);
-			} else {
-				String fileName = fileEntry.getName();
-				String filePath = fileEntry.getPath();
-				String fileHash = FileDigest.getChecksumHexString(FileDigest.computeFileChecksum(filePath));
-				long fileSize = fileEntry.length();
-				if (fileSize > 0) {
-					files.put(fileHash, new FileInfo(fileHash, fileName, fileSize, filePath));
-				} else {
-					System.out.println("Ignoring empty file found in shared folder: " + filePath);
-				}
-			}
-		}
+		return FolderScanner.scan(folder, true);
 	}
 
 	public static FileInfo[] lookupHashSubstring(FileInfo[] files, String hashSubstr) {
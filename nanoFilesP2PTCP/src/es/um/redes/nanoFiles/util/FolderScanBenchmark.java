@@ -0,0 +1,95 @@
+package es.um.redes.nanoFiles.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures the startup scan of the shared folder: hashing every file one after
+ * the other versus concurrently (FolderScanner), on a given folder or on a
+ * synthetic one with numFiles random files of fileSizeKB each, created in a
+ * temporary folder and deleted at the end.
+ *
+ * The first round only warms up the JVM and brings the files into the page
+ * cache, so the times reported are those of a folder already cached (hashing
+ * bound). With a cold cache the times also depend on the disk.
+ *
+ * Usage: java es.um.redes.nanoFiles.util.FolderScanBenchmark [folder |
+ * numFiles [fileSizeKB]]
+ */
+public class FolderScanBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		File folder;
+		boolean synthetic = args.length == 0 || !new File(args[0]).isDirectory();
+		if (synthetic) {
+			int numFiles = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+			int fileSizeKB = (args.length > 1) ? Integer.parseInt(args[1]) : 8192;
+			folder = createFolder(numFiles, fileSizeKB);
+		} else {
+			folder = new File(args[0]);
+		}
+		try {
+			long sequentialMillis = 0, parallelMillis = 0;
+			Map<String, FileInfo> sequential = null, parallel = null;
+			for (int round = 0; round < 2; round++) {
+				long t0 = System.nanoTime();
+				sequential = FolderScanner.scan(folder, false);
+				long t1 = System.nanoTime();
+				parallel = FolderScanner.scan(folder, true);
+				long t2 = System.nanoTime();
+				sequentialMillis = (t1 - t0) / 1000000;
+				parallelMillis = (t2 - t1) / 1000000;
+			}
+			long bytes = 0;
+			for (FileInfo file : sequential.values()) {
+				bytes += file.fileSize;
+			}
+			System.out.println("Scanned " + sequential.size() + " files, " + bytes / (1024 * 1024) + " MB, with "
+					+ Runtime.getRuntime().availableProcessors() + " cores");
+			System.out.println("Sequential scan: " + sequentialMillis + " ms (" + throughput(bytes, sequentialMillis)
+					+ " MB/s)");
+			System.out.println("Parallel scan:   " + parallelMillis + " ms (" + throughput(bytes, parallelMillis)
+					+ " MB/s), speedup " + String.format("%.2f", (double) sequentialMillis / Math.max(1, parallelMillis)));
+			for (FileInfo file : sequential.values()) {
+				FileInfo other = parallel.get(file.fileHash);
+				if (other == null || !other.merkleRoot.equals(file.merkleRoot)) {
+					System.out.println("ERROR: the scans differ for " + file.filePath);
+				}
+			}
+			if (sequential.size() != parallel.size()) {
+				System.out.println("ERROR: the sequential scan found " + sequential.size() + " files, the parallel one "
+						+ parallel.size());
+			}
+		} finally {
+			if (synthetic) {
+				for (File file : folder.listFiles()) {
+					file.delete();
+				}
+				folder.delete();
+			}
+		}
+	}
+
+	private static File createFolder(int numFiles, int fileSizeKB) throws IOException {
+		File folder = Files.createTempDirectory("nf-scan").toFile();
+		Random random = new Random(42);
+		byte[] block = new byte[1024];
+		for (int i = 0; i < numFiles; i++) {
+			try (FileOutputStream fos = new FileOutputStream(new File(folder, "file" + i + ".bin"))) {
+				for (int kb = 0; kb < fileSizeKB; kb++) {
+					random.nextBytes(block);
+					fos.write(block);
+				}
+			}
+		}
+		return folder;
+	}
+
+	private static long throughput(long bytes, long millis) {
+		return bytes / (1024 * 1024) * 1000 / Math.max(1, millis);
+	}
+}
@@ -0,0 +1,145 @@
+package es.um.redes.nanoFiles.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scans a shared folder, computing the hash and the Merkle tree of every file
+ * found in it and its subdirectories. The directories are walked first, which
+ * only lists them, and then the files are hashed concurrently in a
+ * ForkJoinPool with one thread per core, each file in a single pass over its
+ * contents. A file is hashed by a single thread, so a folder holding one huge
+ * file still takes as long as hashing that file; the gain comes from folders
+ * with many files.
+ *
+ * When the folder holds at least PROGRESS_MIN_BYTES, the progress is reported
+ * every 1 / PROGRESS_STEPS of the bytes.
+ */
+class FolderScanner {
+
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+	private static final long PROGRESS_MIN_BYTES = 256L * 1024 * 1024;
+	private static final int PROGRESS_STEPS = 10;
+
+	private final List<File> entries = new ArrayList<File>();
+	private long totalBytes = 0;
+	private final Map<String, FileInfo> files = new ConcurrentHashMap<String, FileInfo>();
+	private final AtomicLong hashedBytes = new AtomicLong();
+	private final AtomicInteger hashedFiles = new AtomicInteger();
+	private final AtomicInteger reportedSteps = new AtomicInteger();
+
+	private FolderScanner() {
+	}
+
+	/**
+	 * Scans the given folder
+	 *
+	 * @param folder   The folder to be scanned
+	 * @param parallel Whether to hash the files concurrently, or one after the
+	 *                 other in the calling thread
+	 * @return A map of the metadata (FileInfo) of all the non-empty files found,
+	 *         by hash
+	 */
+	static Map<String, FileInfo> scan(File folder, boolean parallel) {
+		FolderScanner scanner = new FolderScanner();
+		scanner.walk(folder);
+		int count = scanner.entries.size();
+		if (parallel && count > 1) {
+			ForkJoinPool pool = new ForkJoinPool(THREADS);
+			try {
+				pool.invoke(scanner.new HashTask(0, count));
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			for (File entry : scanner.entries) {
+				scanner.hash(entry);
+			}
+		}
+		return scanner.files;
+	}
+
+	private void walk(File folder) {
+		if (folder.exists() == false) {
+			System.err.println("scanFolder cannot find folder " + folder.getPath());
+			return;
+		}
+		File[] listing = folder.listFiles();
+		if (folder.canRead() == false || listing == null) {
+			System.err.println("scanFolder cannot access folder " + folder.getPath());
+			return;
+		}
+		for (final File fileEntry : listing) {
+			if (fileEntry.isDirectory()) {
+				walk(fileEntry);
+			} else if (fileEntry.length() > 0) {
+				entries.add(fileEntry);
+				totalBytes += fileEntry.length();
+			} else {
+				System.out.println("Ignoring empty file found in shared folder: " + fileEntry.getPath());
+			}
+		}
+	}
+
+	private void hash(File fileEntry) {
+		String filePath = fileEntry.getPath();
+		long fileSize = fileEntry.length();
+		MerkleTree.Builder pieces = new MerkleTree.Builder();
+		byte[] digest = FileDigest.computeFileChecksum(filePath, pieces);
+		if (digest != null) {
+			String fileHash = FileDigest.getChecksumHexString(digest);
+			FileInfo file = new FileInfo(fileHash, fileEntry.getName(), fileSize, filePath);
+			file.merkleTree = pieces.build();
+			file.merkleRoot = file.merkleTree.getRootHex();
+			files.put(fileHash, file);
+		}
+		reportProgress(fileSize);
+	}
+
+	private void reportProgress(long fileSize) {
+		long bytes = hashedBytes.addAndGet(fileSize);
+		int filesDone = hashedFiles.incrementAndGet();
+		if (totalBytes < PROGRESS_MIN_BYTES) {
+			return;
+		}
+		int steps = (int) (bytes * PROGRESS_STEPS / totalBytes);
+		int reported = reportedSteps.get();
+		if (steps > reported && reportedSteps.compareAndSet(reported, steps)) {
+			System.out.println("Hashing shared folder: " + steps * 100 / PROGRESS_STEPS + "% (" + bytes / (1024 * 1024)
+					+ " of " + totalBytes / (1024 * 1024) + " MB, " + filesDone + " of " + entries.size() + " files)");
+		}
+	}
+
+	/**
+	 * Hashes the files from index from (included) to index to (excluded),
+	 * splitting the range in halves down to single files, so that idle threads
+	 * steal the pending halves and large and small files even out
+	 */
+	private class HashTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+
+		HashTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				hash(entries.get(from));
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new HashTask(from, middle), new HashTask(middle, to));
+		}
+	}
+}
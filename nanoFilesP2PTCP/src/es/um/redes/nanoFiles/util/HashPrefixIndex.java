@@ -0,0 +1,185 @@
+package es.um.redes.nanoFiles.util;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Immutable index of files by content hash, for resolving hexadecimal hash
+ * prefixes. The raw digests are stored back to back in a single sorted byte
+ * array, so a prefix is resolved with two binary searches that compare the
+ * digests nibble by nibble against the prefix characters: O(log n), without
+ * allocating or converting any hash to a string.
+ *
+ * Only well-formed hashes (hexadecimal strings of exactly twice the digest
+ * size) are indexed.
+ */
+public class HashPrefixIndex {
+
+	private final int digestSize;
+	/**
+	 * Digests of all indexed files, digestSize bytes each, in ascending order
+	 * (as unsigned bytes)
+	 */
+	private final byte[] digests;
+	private final FileInfo[] files;
+
+	/**
+	 * Builds an index with the SHA-1 digests used by nanoFiles
+	 *
+	 * @param files The files to index, in any order
+	 */
+	public HashPrefixIndex(FileInfo[] files) {
+		this(files, FileDigest.getFileDigestSize());
+	}
+
+	public HashPrefixIndex(FileInfo[] files, int digestSize) {
+		this.digestSize = digestSize;
+		FileInfo[] valid = Arrays.stream(files).filter(f -> isHex(f.fileHash, digestSize * 2, true))
+				.toArray(FileInfo[]::new);
+		/*
+		 * Lowercase hex strings sort in the same order as the unsigned bytes they
+		 * encode
+		 */
+		Arrays.sort(valid, Comparator.comparing(f -> f.fileHash.toLowerCase(Locale.ROOT)));
+		this.files = valid;
+		this.digests = new byte[valid.length * digestSize];
+		for (int i = 0; i < valid.length; i++) {
+			String hash = valid[i].fileHash;
+			for (int j = 0; j < digestSize; j++) {
+				digests[i * digestSize + j] = (byte) ((hexValue(hash.charAt(2 * j)) << 4)
+						| hexValue(hash.charAt(2 * j + 1)));
+			}
+		}
+	}
+
+	public int size() {
+		return files.length;
+	}
+
+	/**
+	 * Returns the file at the given position of the index (in hash order)
+	 */
+	public FileInfo get(int index) {
+		return files[index];
+	}
+
+	/**
+	 * Position of the first file whose hash starts with the given prefix. The
+	 * matching files are those at positions [firstMatch, firstMatch +
+	 * countMatches).
+	 *
+	 * @return The position, or -1 if no file matches
+	 */
+	public int firstMatch(CharSequence hexPrefix) {
+		if (!isHex(hexPrefix, digestSize * 2, false)) {
+			return -1;
+		}
+		int first = lowerBound(hexPrefix, false);
+		return (first < files.length && compare(first, hexPrefix) == 0) ? first : -1;
+	}
+
+	/**
+	 * Number of files whose hash starts with the given prefix
+	 */
+	public int countMatches(CharSequence hexPrefix) {
+		if (!isHex(hexPrefix, digestSize * 2, false)) {
+			return 0;
+		}
+		return lowerBound(hexPrefix, true) - lowerBound(hexPrefix, false);
+	}
+
+	/**
+	 * Returns all files whose hash starts with the given prefix (more than one
+	 * if the prefix is ambiguous)
+	 */
+	public FileInfo[] lookup(CharSequence hexPrefix) {
+		int first = firstMatch(hexPrefix);
+		if (first < 0) {
+			return new FileInfo[0];
+		}
+		return Arrays.copyOfRange(files, first, first + countMatches(hexPrefix));
+	}
+
+	/**
+	 * Returns the only file whose hash starts with the given prefix
+	 *
+	 * @return The file, or null if no file or more than one file matches
+	 */
+	public FileInfo lookupUnique(CharSequence hexPrefix) {
+		int first = firstMatch(hexPrefix);
+		if (first < 0 || (first + 1 < files.length && compare(first + 1, hexPrefix) == 0)) {
+			return null;
+		}
+		return files[first];
+	}
+
+	/**
+	 * Binary search for the first position whose digest is not smaller than the
+	 * prefix (or, if strict, not smaller or equal), comparing only the nibbles
+	 * covered by the prefix
+	 */
+	private int lowerBound(CharSequence hexPrefix, boolean strict) {
+		int low = 0;
+		int high = files.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(mid, hexPrefix);
+			if (cmp < 0 || (strict && cmp == 0)) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Compares the first nibbles of a digest with the nibbles of the prefix
+	 */
+	private int compare(int index, CharSequence hexPrefix) {
+		int base = index * digestSize;
+		for (int i = 0; i < hexPrefix.length(); i++) {
+			int b = digests[base + (i >> 1)] & 0xff;
+			int nibble = ((i & 1) == 0) ? b >>> 4 : b & 0xf;
+			int wanted = hexValue(hexPrefix.charAt(i));
+			if (nibble != wanted) {
+				return nibble - wanted;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Whether s is a hexadecimal string of exactly maxLength characters or, if
+	 * not exact, of 1 to maxLength characters (an empty prefix would match every
+	 * file)
+	 */
+	private static boolean isHex(CharSequence s, int maxLength, boolean exact) {
+		if (s == null || s.length() == 0 || s.length() > maxLength || (exact && s.length() != maxLength)) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (hexValue(s.charAt(i)) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Value of an ASCII hexadecimal digit (either case), or -1
+	 */
+	private static int hexValue(char c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,180 @@
+package es.um.redes.nanoFiles.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merkle tree over the fixed-size pieces of a file. The leaves are the digests
+ * (FileDigest.algorithm) of the pieces, PIECE_SIZE bytes each except the last
+ * one, and every inner node is the digest of its two children concatenated; a
+ * node without a sibling is promoted unchanged to the next level. The root
+ * thus identifies the whole list of piece hashes: a receiver that knows the
+ * root can check the piece hashes sent by any peer, and then check each piece
+ * on its own as soon as it arrives, instead of rehashing the whole file at the
+ * end.
+ *
+ * A file with a single piece has the file hash as root. An empty file has no
+ * pieces, and its root is the digest of no data (also its file hash).
+ *
+ * Only the leaves are kept (the root is computed once), so a tree takes
+ * DIGEST_SIZE bytes per piece.
+ */
+public class MerkleTree {
+
+	public static final int PIECE_SIZE = 1024 * 1024;
+
+	/**
+	 * One digest instance per thread, so that pieces can be hashed in parallel
+	 */
+	private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance(FileDigest.algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+
+	private final byte[][] pieceHashes;
+	private final byte[] root;
+
+	/**
+	 * @param pieceHashes The digest of each piece, in order
+	 */
+	public MerkleTree(byte[][] pieceHashes) {
+		this.pieceHashes = pieceHashes;
+		this.root = computeRoot(pieceHashes);
+	}
+
+	/**
+	 * Builds a tree from piece hashes in hexadecimal, as sent by peers
+	 *
+	 * @throws IllegalArgumentException If a hash is not a valid hexadecimal
+	 *                                  digest
+	 */
+	public static MerkleTree fromHexStrings(List<String> pieceHashes) {
+		int digestSize = FileDigest.getFileDigestSize();
+		byte[][] hashes = new byte[pieceHashes.size()][];
+		int i = 0;
+		for (String hex : pieceHashes) {
+			ByteBuffer digest = ByteBuffer.allocate(digestSize);
+			if (hex.length() != 2 * digestSize || !FileDigest.putChecksumFromHexString(hex, digest)) {
+				throw new IllegalArgumentException("Invalid piece hash: " + hex);
+			}
+			hashes[i++] = digest.array();
+		}
+		return new MerkleTree(hashes);
+	}
+
+	/**
+	 * @return The number of pieces of a file of the given size
+	 */
+	public static int getPieceCount(long fileSize) {
+		return (int) ((fileSize + PIECE_SIZE - 1) / PIECE_SIZE);
+	}
+
+	/**
+	 * @return The digest of a piece (or of any byte range)
+	 */
+	public static byte[] hashPiece(byte[] data, int offset, int length) {
+		MessageDigest md = DIGEST.get();
+		md.update(data, offset, length);
+		return md.digest();
+	}
+
+	public int getPieceCount() {
+		return pieceHashes.length;
+	}
+
+	public byte[] getRoot() {
+		return root.clone();
+	}
+
+	public String getRootHex() {
+		return FileDigest.getChecksumHexString(root);
+	}
+
+	/**
+	 * @return The hashes of count pieces starting at the given one, in
+	 *         hexadecimal
+	 */
+	public List<String> getPieceHashesHex(int first, int count) {
+		List<String> hashes = new ArrayList<String>(count);
+		for (int i = first; i < first + count; i++) {
+			hashes.add(FileDigest.getChecksumHexString(pieceHashes[i]));
+		}
+		return hashes;
+	}
+
+	/**
+	 * Checks the contents of a piece against its hash. Can be called from
+	 * several threads at once.
+	 */
+	public boolean verifyPiece(int piece, byte[] data, int offset, int length) {
+		return MessageDigest.isEqual(pieceHashes[piece], hashPiece(data, offset, length));
+	}
+
+	private static byte[] computeRoot(byte[][] pieceHashes) {
+		MessageDigest md = DIGEST.get();
+		if (pieceHashes.length == 0) {
+			return md.digest();
+		}
+		byte[][] level = pieceHashes;
+		while (level.length > 1) {
+			byte[][] parents = new byte[(level.length + 1) / 2][];
+			for (int i = 0; i < parents.length; i++) {
+				if (2 * i + 1 < level.length) {
+					md.update(level[2 * i]);
+					md.update(level[2 * i + 1]);
+					parents[i] = md.digest();
+				} else {
+					parents[i] = level[2 * i];
+				}
+			}
+			level = parents;
+		}
+		return level[0].clone();
+	}
+
+	/**
+	 * Computes the piece hashes of a file from its contents, fed in order in
+	 * blocks of any size (e.g. while computing the file hash in the same pass)
+	 */
+	public static class Builder {
+		private final MessageDigest md;
+		private final List<byte[]> pieceHashes = new ArrayList<byte[]>();
+		private int pieceFill = 0;
+
+		public Builder() {
+			try {
+				md = MessageDigest.getInstance(FileDigest.algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void update(byte[] data, int offset, int length) {
+			while (length > 0) {
+				int n = Math.min(length, PIECE_SIZE - pieceFill);
+				md.update(data, offset, n);
+				pieceFill += n;
+				offset += n;
+				length -= n;
+				if (pieceFill == PIECE_SIZE) {
+					pieceHashes.add(md.digest());
+					pieceFill = 0;
+				}
+			}
+		}
+
+		public MerkleTree build() {
+			if (pieceFill > 0) {
+				pieceHashes.add(md.digest());
+				pieceFill = 0;
+			}
+			return new MerkleTree(pieceHashes.toArray(new byte[pieceHashes.size()][]));
+		}
+	}
+}